@@ -44,6 +44,9 @@ public class PacAgent extends Agent {
 
 	private double currentDistance = 0;
 
+	// Finds paths around the agents and packages seen so far
+	private PathPlanner planner = null;
+
     Random rand = new Random();
 
     /** Provide a Percept to the agent. This function is called by the
@@ -57,6 +60,10 @@ public class PacAgent extends Agent {
    public void see(Percept p)
    {
        cp = (PacPercept) p;
+       if(planner == null){
+    	   planner = new PathPlanner(cp.getWorldSize());
+       }
+       planner.update(cp, this.getId());
 
        System.out.println("AGENT ID: "+id);
    }
@@ -151,6 +158,13 @@ public class PacAgent extends Agent {
 	   if(this.selPackage != null){
 		   int packageDirection = this.calculateDirection(currentX, currentY,  this.selPackage.getX(), this.selPackage.getY());
 		   double packageDistance = this.calculateDistance(currentX, currentY, this.selPackage.getX(), this.selPackage.getY());
+		   if(packageDistance != 1){
+			   // Go around the obstacles we know about, if there is a way
+			   int pathDirection = planner.directionTo(currentX, currentY, this.selPackage.getX(), this.selPackage.getY());
+			   if(pathDirection >= 0){
+				   packageDirection = pathDirection;
+			   }
+		   }
 
 		   System.out.println(packageDirection);
 		   if(packageDistance == 1){
@@ -242,8 +256,17 @@ public class PacAgent extends Agent {
    }
 
    public void calculateDeliveryVector(){
-	   	this.deliveryDistance = this.calculateDistance(this.currentX, this.currentY, this.selPackage.getDestX(), this.selPackage.getDestY());
-		this.deliveryDirection = this.calculateDirection(this.currentX,  this.currentY, this.selPackage.getDestX(), this.selPackage.getDestY());
+	   	// The package we hold, even if it isn't the one we selected
+	   	VisiblePackage held = cp.getHeldPackage();
+	   	this.deliveryDistance = this.calculateDistance(this.currentX, this.currentY, held.getDestX(), held.getDestY());
+		this.deliveryDirection = this.calculateDirection(this.currentX,  this.currentY, held.getDestX(), held.getDestY());
+		if(deliveryDistance != 1){
+			// Follow the planner's distance field to the destination
+			int pathDirection = planner.nextDirection(held.getDestX(), held.getDestY(), currentX, currentY, held.getX(), held.getY());
+			if(pathDirection >= 0){
+				this.deliveryDirection = pathDirection;
+			}
+		}
    }
 
    // Calculates the distance between an agent and a target package
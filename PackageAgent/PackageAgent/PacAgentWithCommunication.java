@@ -17,8 +17,12 @@ public class PacAgentWithCommunication extends Agent {
 	// Current Percept
     PacPercept cp;
 
-    // TODO: initialize all to null
-    public int[][] internalMap = new int[50][50];
+    // What the agent has seen, created when it learns the world's size
+    public OccupancyMap internalMap = null;
+    // The number of turns the agent has had
+    private int turn = 0;
+    // A package remembered from the internal map, to go and look for
+    private Location memoryTarget = null;
 
     // An array of all packages currently visible to the agent
     private VisiblePackage[] visPackages = null;
@@ -47,6 +51,9 @@ public class PacAgentWithCommunication extends Agent {
 
 	private double currentDistance = 0;
 
+	// Finds paths around the agents and packages seen so far
+	private PathPlanner planner = null;
+
     Random rand = new Random();
 
     /** Provide a Percept to the agent. This function is called by the
@@ -60,6 +67,12 @@ public class PacAgentWithCommunication extends Agent {
    public void see(Percept p)
    {
        cp = (PacPercept) p;
+       if(planner == null){
+    	   planner = new PathPlanner(cp.getWorldSize());
+    	   internalMap = new OccupancyMap(cp.getWorldSize());
+       }
+       planner.update(cp, this.getId());
+       internalMap.update(cp, this.getId(), turn++);
 
        System.out.println("AGENT ID: "+id);
    }
@@ -154,6 +167,13 @@ public class PacAgentWithCommunication extends Agent {
 	   if(this.selPackage != null){
 		   int packageDirection = this.calculateDirection(currentX, currentY,  this.selPackage.getX(), this.selPackage.getY());
 		   double packageDistance = this.calculateDistance(currentX, currentY, this.selPackage.getX(), this.selPackage.getY());
+		   if(packageDistance != 1){
+			   // Go around the obstacles we know about, if there is a way
+			   int pathDirection = planner.directionTo(currentX, currentY, this.selPackage.getX(), this.selPackage.getY());
+			   if(pathDirection >= 0){
+				   packageDirection = pathDirection;
+			   }
+		   }
 
 		   System.out.println(packageDirection);
 		   if(packageDistance == 1){
@@ -165,6 +185,17 @@ public class PacAgentWithCommunication extends Agent {
 			   return new Move(packageDirection);
 		   }
 	   }
+	   else if(this.memoryTarget != null){
+		   // Head for a package we saw earlier
+		   int x = this.memoryTarget.getX();
+		   int y = this.memoryTarget.getY();
+		   int targetDirection = planner.directionTo(currentX, currentY, x, y);
+		   if(targetDirection < 0){
+			   targetDirection = this.calculateDirection(currentX, currentY, x, y);
+		   }
+		   System.out.println("Moving to remembered package at " + x + ", " + y);
+		   return new Move(targetDirection);
+	   }
 	   else{
 		   System.out.println("Moving Spiral");
 		   return new Move(this.spiralDirection());
@@ -194,22 +225,18 @@ public class PacAgentWithCommunication extends Agent {
 	   System.out.println("Finding Nearest Package");
 	   this.visPackages = cp.getVisPackages();
 	   double minDistance = 100;
+	   this.memoryTarget = null;
 
 	   // If packages can be seen by the agent,
 	   // don't bother looking at the internal map
 	   if(this.visPackages.length > 0){
 	   		// Loop through the visible packages
 		   for(int i = 0; i < this.visPackages.length; i++){
+			   // see() has already recorded the packages in the internal map
 			   if(visPackages[i].isHeld()){
 				   	// skip this package
-			   		// Mark Package as held in the internal map.
-			   		internalMap[this.visPackages[i].getX()][this.visPackages[i].getY()] = 3;
 				   continue;
 			   }
-			   else{
-			   		// Mark the internal map with a free package
-			   		internalMap[this.visPackages[i].getX()][this.visPackages[i].getY()] = 2;
-			   }
 			   System.out.println("Inspecting " + this.visPackages[i].toString());
 
 			   // Calculate the distance between the agent's current location
@@ -227,21 +254,12 @@ public class PacAgentWithCommunication extends Agent {
 	   // If a nearby package isn't found, look at the internal map before choosing
 	   // random movement
 	   else{
-	   		for(int i=0; i < this.internalMap.length; i++){
-	   			for(int j=0; j < this.internalMap.length; j++){
-	   				if(this.internalMap[i][j] == 2){
-	   					this.currentDistance = this.calculateDistance(currentX, currentY,i, j);
-	   					System.out.println("Current Distance using InternalMap: " + currentDistance);
-
-	   					if(this.currentDistance < minDistance){
-	   						// Create a dummy package so the agent will move towards
-	   						// the coordinates
-	   						//this.selPackage = new VisiblePackage(new pacworld.Package());
-	   					}
-	   				}
-	   			}
+	   		// The cell will be seen again on the way, and forgotten if the
+	   		// package has gone
+	   		this.memoryTarget = this.internalMap.findNearestPackage(currentX, currentY);
+	   		if(this.memoryTarget != null){
+	   			System.out.println("Remembered package at " + memoryTarget.getX() + ", " + memoryTarget.getY());
 	   		}
-
 	   }
 	   if(this.selPackage != null){
 		   // Display the results of the selected package
@@ -274,8 +292,17 @@ public class PacAgentWithCommunication extends Agent {
    }
 
    public void calculateDeliveryVector(){
-	   	this.deliveryDistance = this.calculateDistance(this.currentX, this.currentY, this.selPackage.getDestX(), this.selPackage.getDestY());
-		this.deliveryDirection = this.calculateDirection(this.currentX,  this.currentY, this.selPackage.getDestX(), this.selPackage.getDestY());
+	   	// The package we hold, even if it isn't the one we selected
+	   	VisiblePackage held = cp.getHeldPackage();
+	   	this.deliveryDistance = this.calculateDistance(this.currentX, this.currentY, held.getDestX(), held.getDestY());
+		this.deliveryDirection = this.calculateDirection(this.currentX,  this.currentY, held.getDestX(), held.getDestY());
+		if(deliveryDistance != 1){
+			// Follow the planner's distance field to the destination
+			int pathDirection = planner.nextDirection(held.getDestX(), held.getDestY(), currentX, currentY, held.getX(), held.getY());
+			if(pathDirection >= 0){
+				this.deliveryDirection = pathDirection;
+			}
+		}
    }
 
    // Calculates the distance between an agent and a target package
@@ -1,6 +1,11 @@
 package agent;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /** The top-level class for an agent simulation. This can be used for
     either single or multi-agent environments. This is intended for
@@ -9,6 +14,11 @@ import java.util.ArrayList;
     sense and act, or a dynamic multi-agent environment would require
     multiple threads, one for managing the way the environment changes 
     and one for each agent.
+
+    <p>Alternatively, the environment can run in simultaneous mode (see
+    setSimultaneous()), in which every agent perceives the same state at
+    the start of a round and all agents choose their actions at the same
+    time on a thread pool. The environment then applies the actions.
  */
 public abstract class Environment {
 
@@ -18,6 +28,10 @@ public abstract class Environment {
    /** The current state of the environment. */
    protected State state = null;
 
+   /** The thread pool used to let the agents think at the same time, or
+      null if the agents take turns. */
+   protected ExecutorService executor = null;
+
    /** Construct a new environment. Initialize the agents vector. */
    public Environment() {
 
@@ -41,17 +55,80 @@ public abstract class Environment {
 
       numAgents = agents.size();
       while (!isComplete()) {
+         if (executor != null) {
+            runSimultaneousRound();
+            state.display();
+            continue;
+         }
          for (int i=0; i < numAgents; i++) {
             a = (Agent)agents.get(i);
             p = getPercept(a);
-            a.see(p);
-            action = a.selectAction();
+            action = think(a, p);
             updateState(a, action);
             state.display();
          }
       }
    }
 
+   /** Run the simulation in simultaneous mode, using the given thread pool
+      for the agents' decisions. Passing null returns to the default mode,
+      in which the agents take turns. The environment does not shut the
+      pool down. */
+   public void setSimultaneous(ExecutorService executor) {
+      this.executor = executor;
+   }
+
+   /** Give an agent its percept and have it select an action. In 
+      simultaneous mode this is called for several agents at the same time,
+      so subclasses that override it must be thread-safe. */
+   protected Action think(Agent a, Percept p) {
+      a.see(p);
+      return a.selectAction();
+   }
+
+   /** Run one round in simultaneous mode. All percepts are created from
+      the same state before any agent acts, the agents think in parallel,
+      and then resolveActions() applies the actions. */
+   protected void runSimultaneousRound() {
+
+      int numAgents = agents.size();
+      List<Callable<Action>> tasks = new ArrayList<Callable<Action>>(numAgents);
+      for (int i=0; i < numAgents; i++) {
+         final Agent a = agents.get(i);
+         final Percept p = getPercept(a);
+         tasks.add(new Callable<Action>() {
+            public Action call() {
+               return think(a, p);
+            }
+         });
+      }
+
+      Action[] actions = new Action[numAgents];
+      try {
+         List<Future<Action>> futures = executor.invokeAll(tasks);
+         for (int i=0; i < numAgents; i++)
+            actions[i] = futures.get(i).get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while agents were thinking", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException)e.getCause();
+         throw new RuntimeException(e.getCause());
+      }
+      resolveActions(actions);
+   }
+
+   /** Apply the actions chosen in a simultaneous round. actions[i] is the
+      action of the i-th agent. By default the actions are simply applied
+      in the order of the agents; environments in which actions can
+      conflict should override this method with their own rules. */
+   protected void resolveActions(Action[] actions) {
+
+      for (int i=0; i < actions.length; i++)
+         updateState(agents.get(i), actions[i]);
+   }
+
    /** Is the simulation over? Returns true if it is, otherwise false. */
    protected abstract boolean isComplete();
 
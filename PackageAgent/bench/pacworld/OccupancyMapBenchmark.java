@@ -0,0 +1,254 @@
+package pacworld;
+
+import agent.*;
+import PackageAgent.PacAgentWithCommunication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Measures OccupancyMap. It first checks, while random agents (see
+    ReplayBenchmark) move about, that the map remembers the same as a
+    plain array of the whole world would, and that findNearestPackage()
+    finds the closest package. It then reports how much memory the map
+    and a PathPlanner use as an agent explores a big world, compared with
+    plain arrays, how long updating the map from a percept takes, and the
+    scores of
+    PacAgentWithCommunication, which uses the map, in worlds of
+    different sizes. The usage is:
+    <pre>
+    java -cp .:bench pacworld.OccupancyMapBenchmark [-sizes 50,100,200] [-seeds first count] [-turns max] [-millis 500]
+    </pre> */
+public class OccupancyMapBenchmark {
+
+   /** A world that also stops after a maximum number of turns. */
+   static class CappedWorld extends PackageWorld {
+
+      protected boolean isComplete() {
+         return count >= maxTurns || super.isComplete();
+      }
+   }
+
+   private static int maxTurns = 4000;
+
+   static boolean check(int size) {
+
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < 8; i++)
+         agts.add(new ReplayBenchmark.RandomAgent(i));
+      PackageState state = PackageState.getInitState(1, agts,
+            SimulationBenchmark.numPackages(size),
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      Agent self = agts.get(0);
+      OccupancyMap map = new OccupancyMap(size);
+      int[] codes = new int[size * size];
+      int[] lastSeen = new int[size * size];
+      Arrays.fill(lastSeen, -1);
+
+      int bad = 0;
+      for (int turn = 0; turn < 5000; turn++) {
+         for (int i = 0; i < agts.size(); i++) {
+            Agent a = agts.get(i);
+            a.selectAction().execute(a, state);
+         }
+         PacPercept p = new PacPercept(state, self);
+         map.update(p, self.getId(), turn);
+
+         // remember the view the slow way
+         int ax = state.getAgentX(self);
+         int ay = state.getAgentY(self);
+         for (int x = Math.max(ax - 4, 0); x <= Math.min(ax + 4, size - 1); x++) {
+            for (int y = Math.max(ay - 4, 0); y <= Math.min(ay + 4, size - 1); y++) {
+               int code = state.getCellType(x, y);
+               if (code == PackageState.PACKAGE &&
+                     ((Package)state.getObjectAt(x, y)).getAgent() != null)
+                  code = OccupancyMap.HELD_PACKAGE;
+               codes[x * size + y] = (x == ax && y == ay) ? OccupancyMap.EMPTY : code;
+               lastSeen[x * size + y] = turn;
+            }
+         }
+
+         if (turn % 500 == 0) {
+            int best = Integer.MAX_VALUE;
+            for (int c = 0; c < codes.length; c++)
+               if (codes[c] == OccupancyMap.PACKAGE)
+                  best = Math.min(best, Math.abs(c / size - ax) + Math.abs(c % size - ay));
+            Location loc = map.findNearestPackage(ax, ay);
+            int found = loc == null ? Integer.MAX_VALUE :
+               Math.abs(loc.getX() - ax) + Math.abs(loc.getY() - ay);
+            if (found != best || (loc != null &&
+                  map.get(loc.getX(), loc.getY()) != OccupancyMap.PACKAGE))
+               bad++;
+         }
+      }
+      int explored = 0;
+      for (int x = 0; x < size; x++) {
+         for (int y = 0; y < size; y++) {
+            int c = x * size + y;
+            if (map.get(x, y) != codes[c] || map.getLastSeen(x, y) != lastSeen[c] ||
+                  map.isExplored(x, y) != (lastSeen[c] >= 0))
+               bad++;
+            if (lastSeen[c] >= 0)
+               explored++;
+         }
+      }
+      SimulationBenchmark.out.println("check size " + size + ": " + bad +
+            " wrong, " + explored + " cells explored");
+      return bad == 0;
+   }
+
+   /** Walk an agent through a big world in a spiral, like the student
+      agents do when they don't see a package, and print how much memory
+      the map and a planner use as it goes. The planner knows all of the
+      destinations, and now and then searches for a way back to the
+      middle, the way an agent heads for a package it remembers. */
+   static void benchMemory(int size) {
+
+      List<Agent> agts = new ArrayList<Agent>();
+      agts.add(new SimulationBenchmark.StubAgent(0));
+      // few packages, so that they don't box the agent in
+      PackageState state = PackageState.getInitState(1, agts,
+            PackageWorld.DEFAULT_NUM_PACKAGES,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      Agent self = agts.get(0);
+      // start in the middle, so the spiral has room to grow
+      if (!state.hasObstacle(size / 2, size / 2))
+         state.repositionAgent(self, size / 2, size / 2);
+      OccupancyMap map = new OccupancyMap(size);
+      PathPlanner planner = new PathPlanner(size);
+      Location[] dests = state.getDestinations();
+      for (int i = 0; i < dests.length; i++)
+         planner.addDestination(dests[i].getX(), dests[i].getY());
+      // what an int per cell for the codes and one for the times would
+      // take, and what the planner took with arrays of the whole world:
+      // a boolean and three ints for the searches, an int per destination,
+      // and two ints and a long for A*
+      long dense = 8L * size * size;
+      long densePlanner = (13L + 4 * dests.length + 16) * size * size;
+      SimulationBenchmark.out.println(String.format("%-8s %10s %10s %12s %12s %14s %14s",
+            "turns", "explored", "chunks", "map bytes", "array bytes",
+            "planner bytes", "array bytes"));
+
+      int turn = 0;
+      int dir = 0;
+      int leg = 1;
+      for (int report = 1000; report <= 64000; report *= 4) {
+         while (turn < report) {
+            // the legs grow by 8 cells every other turn, so the rings of
+            // the spiral are just far enough apart for the 9x9 view
+            for (int i = 0; i < leg && turn < report; i++) {
+               int x = state.getAgentX(self) + Direction.DELTA_X[dir];
+               int y = state.getAgentY(self) + Direction.DELTA_Y[dir];
+               if (state.inBounds(x, y) && !state.hasObstacle(x, y))
+                  state.repositionAgent(self, x, y);
+               PacPercept p = new PacPercept(state, self);
+               map.update(p, self.getId(), turn);
+               planner.update(p, self.getId());
+               if (turn % 100 == 0)
+                  planner.directionTo(state.getAgentX(self), state.getAgentY(self),
+                        size / 2, size / 2);
+               turn++;
+            }
+            dir = (dir + 1) % 4;
+            if (dir % 2 == 0)
+               leg += 8;
+         }
+         int explored = 0;
+         for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+               if (map.isExplored(x, y))
+                  explored++;
+         SimulationBenchmark.out.println(String.format("%-8d %10d %10d %12d %12d %14d %14d",
+               turn, explored, map.getNumChunks(), map.getMemoryBytes(), dense,
+               planner.getMemoryBytes(), densePlanner));
+      }
+   }
+
+   static void bench(int size) {
+
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < 8; i++)
+         agts.add(new ReplayBenchmark.RandomAgent(i));
+      final PackageState state = PackageState.getInitState(1, agts,
+            SimulationBenchmark.numPackages(size),
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      final Agent self = agts.get(0);
+      final PacPercept percept = new PacPercept(state, self);
+      final OccupancyMap map = new OccupancyMap(size);
+      SimulationBenchmark.measure("update", size, 8, new SimulationBenchmark.Op() {
+         int turn = 0;
+         public long run() {
+            map.update(percept, self.getId(), turn++);
+            return map.getNumChunks();
+         }
+      });
+      SimulationBenchmark.measure("find nearest package", size, 8,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            Location loc = map.findNearestPackage(0, 0);
+            return loc == null ? 0 : loc.getX();
+         }
+      });
+   }
+
+   /** Play a simulation and print its score. */
+   static void play(int size, long seed) {
+      CappedWorld world = new CappedWorld();
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < PackageWorld.DEFAULT_NUM_AGENTS; i++) {
+         agts.add(new PacAgentWithCommunication(i));
+         world.addAgent(agts.get(i));
+      }
+      PackageState state = PackageState.getInitState(seed, agts,
+            PackageWorld.DEFAULT_NUM_PACKAGES,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      world.start(state);
+      SimulationBenchmark.out.println(String.format("%-6d %6d %10d %10d %8d",
+            size, seed, world.getNumDelivered(), world.getNumTurns(),
+            world.getTeamPerformanceMeasure()));
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {50, 100, 200};
+      int firstSeed = 0;
+      int numSeeds = 3;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-seeds")) {
+            firstSeed = Integer.parseInt(args[++i]);
+            numSeeds = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-turns"))
+            maxTurns = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-millis"))
+            SimulationBenchmark.measureMillis = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.OccupancyMapBenchmark " +
+                  "[-sizes 50,100,200] [-seeds first count] [-turns max] [-millis 500]");
+            System.exit(1);
+         }
+      }
+
+      PackageWorld.setBatch(true);
+      ReplayBenchmark.quietActions();
+      boolean ok = check(50);
+      ok &= check(200);
+
+      benchMemory(1000);
+
+      SimulationBenchmark.out.println(String.format("%-22s %6s %6s %14s", "benchmark",
+            "size", "agents", "ns/op"));
+      bench(50);
+      bench(1000);
+
+      SimulationBenchmark.out.println(String.format("%-6s %6s %10s %10s %8s",
+            "size", "seed", "delivered", "turns", "score"));
+      for (int s = 0; s < sizes.length; s++)
+         for (long seed = firstSeed; seed < firstSeed + numSeeds; seed++)
+            play(sizes[s], seed);
+      if (!ok)
+         System.exit(1);
+   }
+}
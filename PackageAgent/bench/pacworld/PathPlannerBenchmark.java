@@ -0,0 +1,291 @@
+package pacworld;
+
+import agent.*;
+import PackageAgent.PacAgent;
+import PackageAgent.PacAgentWithCommunication;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Measures PathPlanner. It first checks that the distance fields it
+    repairs as obstacles come and go are the same as fields computed from
+    scratch and as a plain breadth-first search, and that directionTo()
+    finds shortest paths. It then compares
+    the cost of repairing the fields after an obstacle moves with the cost
+    of computing them again, and plays simulations with the student
+    agents, which use the planner, and reports their scores. The usage is:
+    <pre>
+    java -cp .:bench pacworld.PathPlannerBenchmark [-sizes 50,500,1000] [-seeds first count] [-turns max] [-millis 500]
+    </pre> */
+public class PathPlannerBenchmark {
+
+   /** A world that also stops after a maximum number of turns. */
+   static class CappedWorld extends PackageWorld {
+
+      protected boolean isComplete() {
+         return count >= maxTurns || super.isComplete();
+      }
+   }
+
+   private static int maxTurns = 4000;
+
+   /** Return a planner with the given obstacles and destinations, whose
+      fields were computed after all of the obstacles were known. */
+   static PathPlanner fromScratch(PathPlanner p, int size) {
+      PathPlanner fresh = new PathPlanner(size);
+      for (int x = 0; x < size; x++)
+         for (int y = 0; y < size; y++)
+            fresh.setBlocked(x, y, p.isBlocked(x, y));
+      return fresh;
+   }
+
+   /** Return the number of cells where two planners' fields differ. */
+   static int differences(PathPlanner a, PathPlanner b, int[][] dests, int size) {
+      int bad = 0;
+      for (int i = 0; i < dests.length; i++) {
+         int da = a.getDestination(dests[i][0], dests[i][1]);
+         int db = b.addDestination(dests[i][0], dests[i][1]);
+         for (int x = 0; x < size; x++)
+            for (int y = 0; y < size; y++)
+               if (a.getDistance(da, x, y) != b.getDistance(db, x, y))
+                  bad++;
+      }
+      return bad;
+   }
+
+   /** Return the number of cells where a planner's fields differ from a
+      breadth-first search around its obstacles. */
+   static int bfsDifferences(PathPlanner p, int[][] dests, int size) {
+      int bad = 0;
+      int[] dist = new int[size * size];
+      int[] queue = new int[size * size];
+      for (int i = 0; i < dests.length; i++) {
+         Arrays.fill(dist, PathPlanner.UNREACHABLE);
+         int start = dests[i][0] * size + dests[i][1];
+         dist[start] = 0;
+         queue[0] = start;
+         int head = 0;
+         int tail = 1;
+         while (head < tail) {
+            int u = queue[head++];
+            for (int d = 0; d < 4; d++) {
+               int vx = u / size + Direction.DELTA_X[d];
+               int vy = u % size + Direction.DELTA_Y[d];
+               if (vx >= 0 && vx < size && vy >= 0 && vy < size &&
+                     !p.isBlocked(vx, vy) && dist[vx * size + vy] == PathPlanner.UNREACHABLE) {
+                  dist[vx * size + vy] = dist[u] + 1;
+                  queue[tail++] = vx * size + vy;
+               }
+            }
+         }
+         int dest = p.getDestination(dests[i][0], dests[i][1]);
+         for (int c = 0; c < dist.length; c++)
+            if (p.getDistance(dest, c / size, c % size) != dist[c])
+               bad++;
+      }
+      return bad;
+   }
+
+   static int[][] randomDestinations(Random rand, int size) {
+      int[][] dests = new int[PathPlanner.MAX_DESTINATIONS][];
+      for (int i = 0; i < dests.length; i++)
+         dests[i] = new int[] {rand.nextInt(size), rand.nextInt(size)};
+      return dests;
+   }
+
+   /** Block and free cells at random, mostly in a few clusters so that
+      walls and dead ends form, and compare the repaired fields with new
+      ones now and then. */
+   static boolean check(int size) {
+
+      Random rand = new Random(size);
+      PathPlanner planner = new PathPlanner(size);
+      int[][] dests = randomDestinations(rand, size);
+      for (int i = 0; i < dests.length; i++)
+         planner.addDestination(dests[i][0], dests[i][1]);
+
+      int bad = 0;
+      int changes = size * size / 2;
+      for (int i = 1; i <= changes; i++) {
+         int x, y;
+         if (rand.nextInt(4) == 0) {
+            x = rand.nextInt(size);
+            y = rand.nextInt(size);
+         }
+         else {
+            // grow lines across the middle of the world
+            x = rand.nextBoolean() ? size / 2 : rand.nextInt(size);
+            y = x == size / 2 ? rand.nextInt(size) : size / 3;
+         }
+         planner.setBlocked(x, y, rand.nextInt(3) != 0);
+         if (i % (changes / 5) == 0) {
+            bad += differences(planner, fromScratch(planner, size), dests, size);
+            bad += bfsDifferences(planner, dests, size);
+         }
+      }
+
+      // follow directionTo() to free cells and compare with the fields
+      PathPlanner fresh = fromScratch(planner, size);
+      int paths = 0;
+      for (int i = 0; i < 50; i++) {
+         int tx = rand.nextInt(size);
+         int ty = rand.nextInt(size);
+         int x = rand.nextInt(size);
+         int y = rand.nextInt(size);
+         if (planner.isBlocked(tx, ty) || planner.isBlocked(x, y))
+            continue;
+         int dest = fresh.addDestination(tx, ty);
+         int expected = fresh.getDistance(dest, x, y);
+         if (expected == PathPlanner.UNREACHABLE || expected <= 1) {
+            if (expected > 1 && planner.directionTo(x, y, tx, ty) != -1)
+               bad++;
+            continue;
+         }
+         int steps = 0;
+         int dir;
+         while ((dir = planner.directionTo(x, y, tx, ty)) >= 0) {
+            x += Direction.DELTA_X[dir];
+            y += Direction.DELTA_Y[dir];
+            steps++;
+         }
+         if (steps != expected - 1 || Math.abs(x - tx) + Math.abs(y - ty) != 1)
+            bad++;
+         paths++;
+         // one destination at a time is enough
+         fresh = fromScratch(planner, size);
+      }
+      SimulationBenchmark.out.println("check size " + size + ": " + bad +
+            " wrong, " + paths + " paths");
+      return bad == 0;
+   }
+
+   static void bench(final int size) {
+
+      Random rand = new Random(1);
+      final PathPlanner planner = new PathPlanner(size);
+      final int[][] dests = randomDestinations(rand, size);
+      for (int i = 0; i < PackageWorld.DEFAULT_NUM_DESTINATIONS; i++)
+         planner.addDestination(dests[i][0], dests[i][1]);
+      // scatter obstacles like packages and agents in a world
+      final int[] obstacles = new int[SimulationBenchmark.numPackages(size)];
+      for (int i = 0; i < obstacles.length; i++) {
+         obstacles[i] = rand.nextInt(size * size);
+         planner.setBlocked(obstacles[i] / size, obstacles[i] % size, true);
+      }
+
+      SimulationBenchmark.measure("move an obstacle", size, 0,
+            new SimulationBenchmark.Op() {
+         int next = 0;
+         public long run() {
+            // move an obstacle one step, the way agents do
+            int i = next++ % obstacles.length;
+            int c = obstacles[i];
+            int x = c / size;
+            int y = c % size;
+            int nx = x + (x + 1 < size ? 1 : -1);
+            planner.setBlocked(x, y, false);
+            planner.setBlocked(nx, y, true);
+            obstacles[i] = nx * size + y;
+            return planner.getWork();
+         }
+      });
+      SimulationBenchmark.measure("next direction", size, 0,
+            new SimulationBenchmark.Op() {
+         int next = 0;
+         public long run() {
+            int c = next++ % (size * size);
+            return planner.nextDirection(dests[0][0], dests[0][1],
+                  c / size, c % size, -1, -1);
+         }
+      });
+      SimulationBenchmark.measure("recompute fields", size, 0,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            PathPlanner fresh = new PathPlanner(size);
+            for (int i = 0; i < PackageWorld.DEFAULT_NUM_DESTINATIONS; i++)
+               fresh.addDestination(dests[i][0], dests[i][1]);
+            return fresh.getWork();
+         }
+      });
+      SimulationBenchmark.measure("A* 20 cells", size, 0,
+            new SimulationBenchmark.Op() {
+         int next = 0;
+         public long run() {
+            int c = next++ % (size * size);
+            int x = c / size;
+            int y = c % size;
+            return planner.directionTo(x, y, (x + 10) % size, (y + 10) % size);
+         }
+      });
+   }
+
+   /** Play a simulation and print its score. */
+   static void play(String name, List<Agent> agts, long seed) {
+      CappedWorld world = new CappedWorld();
+      for (int i = 0; i < agts.size(); i++)
+         world.addAgent(agts.get(i));
+      PackageState state = PackageState.getInitState(seed, agts,
+            PackageWorld.DEFAULT_NUM_PACKAGES,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS,
+            PackageWorld.DEFAULT_WORLD_SIZE);
+      world.start(state);
+      int perf = world.getTeamPerformanceMeasure();
+      SimulationBenchmark.out.println(String.format("%-14s %6d %10d %10d %12.2f %8d",
+            name, seed, world.getNumDelivered(), world.getNumTurns(),
+            (double)world.getNumTurns() / Math.max(world.getNumDelivered(), 1), perf));
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {50, 500, 1000};
+      int firstSeed = 0;
+      int numSeeds = 10;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-seeds")) {
+            firstSeed = Integer.parseInt(args[++i]);
+            numSeeds = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-turns"))
+            maxTurns = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-millis"))
+            SimulationBenchmark.measureMillis = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.PathPlannerBenchmark " +
+                  "[-sizes 50,500,1000] [-seeds first count] [-turns max] [-millis 500]");
+            System.exit(1);
+         }
+      }
+
+      PackageWorld.setBatch(true);
+      // the student agents print what they are thinking
+      ReplayBenchmark.quietActions();
+      boolean ok = true;
+      // comparing every field with a new one is too slow for big worlds
+      ok &= check(50);
+      ok &= check(200);
+
+      SimulationBenchmark.out.println(String.format("%-22s %6s %6s %14s", "benchmark",
+            "size", "agents", "ns/op"));
+      for (int s = 0; s < sizes.length; s++)
+         bench(sizes[s]);
+
+      SimulationBenchmark.out.println(String.format("%-14s %6s %10s %10s %12s %8s", "agent",
+            "seed", "delivered", "turns", "turns/pkg", "score"));
+      for (long seed = firstSeed; seed < firstSeed + numSeeds; seed++) {
+         List<Agent> plain = new ArrayList<Agent>();
+         List<Agent> talking = new ArrayList<Agent>();
+         for (int i = 0; i < PackageWorld.DEFAULT_NUM_AGENTS; i++) {
+            plain.add(new PacAgent(i));
+            talking.add(new PacAgentWithCommunication(i));
+         }
+         play("PacAgent", plain, seed);
+         play("PacAgentWithCom", talking, seed);
+      }
+      if (!ok)
+         System.exit(1);
+   }
+}
@@ -0,0 +1,99 @@
+package pacworld;
+
+import agent.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/** Measures how many bytes are allocated to build one agent's percept,
+    with and without pooled percepts. Each turn an agent gets its percept,
+    reads the visible agents and packages the way PacAgent does, and then
+    moves in a random direction, so the neighborhoods keep changing.
+    The usage is:
+    <pre>
+    java -cp .:bench pacworld.PerceptAllocationBenchmark [numAgents] [numPackages] [worldSize] [turns]
+    </pre> */
+public class PerceptAllocationBenchmark {
+
+   /** An agent that does nothing. The benchmark chooses its moves. */
+   static class StubAgent extends Agent {
+
+      StubAgent(int id) {
+         super(id);
+      }
+
+      public void see(Percept p) {
+      }
+
+      public Action selectAction() {
+         return null;
+      }
+   }
+
+   /** A world whose state can be set without starting the simulation. */
+   static class BenchWorld extends PackageWorld {
+
+      void setState(State s) {
+         state = s;
+      }
+   }
+
+   /** Run the given number of turns and return the average number of
+      bytes allocated per turn. */
+   static double bytesPerTurn(boolean pooled, int numAgents, int numPackages,
+         int worldSize, int turns) {
+
+      BenchWorld world = new BenchWorld();
+      for (int i = 0; i < numAgents; i++)
+         world.addAgent(new StubAgent(i));
+      world.setPooledPercepts(pooled);
+      PackageState state = PackageState.getInitState(42, world.getAgents(),
+            numPackages, PackageWorld.DEFAULT_NUM_DESTINATIONS, worldSize);
+      world.setState(state);
+
+      Move[] moves = new Move[4];
+      for (int d = 0; d < 4; d++)
+         moves[d] = new Move(d);
+      Random rand = new Random(42);
+
+      com.sun.management.ThreadMXBean bean =
+         (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+      long tid = Thread.currentThread().getId();
+      int seen = 0;
+
+      // warm up first, so that the pools are full and the JIT has run
+      for (int pass = 0; pass < 2; pass++) {
+         long before = bean.getThreadAllocatedBytes(tid);
+         for (int t = 0; t < turns; t++) {
+            Agent a = world.getAgents().get(t % numAgents);
+            PacPercept p = (PacPercept)world.getPercept(a);
+            seen += p.getVisAgents().length + p.getVisPackages().length;
+            moves[rand.nextInt(4)].execute(a, state);
+         }
+         long after = bean.getThreadAllocatedBytes(tid);
+         if (pass == 1) {
+            if (seen < 0)
+               System.out.println(seen);
+            return (double)(after - before) / turns;
+         }
+      }
+      return 0;
+   }
+
+   public static void main(String[] args) {
+
+      int numAgents = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+      int numPackages = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+      int worldSize = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+      int turns = args.length > 3 ? Integer.parseInt(args[3]) : 200000;
+
+      System.out.println("agents=" + numAgents + " packages=" + numPackages +
+            " worldSize=" + worldSize + " turns=" + turns);
+      System.out.println("new percept per turn: " +
+            bytesPerTurn(false, numAgents, numPackages, worldSize, turns) +
+            " bytes/turn");
+      System.out.println("pooled percepts:      " +
+            bytesPerTurn(true, numAgents, numPackages, worldSize, turns) +
+            " bytes/turn");
+   }
+}
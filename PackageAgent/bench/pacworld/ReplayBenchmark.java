@@ -0,0 +1,214 @@
+package pacworld;
+
+import agent.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Measures the cost of recording a simulation with ReplayWriter and of
+    seeking to a turn with ReplayPlayer, and checks that the player
+    rebuilds exactly the state the simulation had after every turn. The
+    agents pick random actions of every kind, and the simulation is run
+    both with the agents taking turns and with simultaneous moves, which
+    produce collisions. The usage is:
+    <pre>
+    java -cp .:bench pacworld.ReplayBenchmark [-size 50] [-agents 8] [-rounds 2000] [-keyframe 100]
+    </pre> */
+public class ReplayBenchmark {
+
+   /** An agent that takes a pseudo-random action every turn. */
+   static class RandomAgent extends Agent {
+
+      private Random rand;
+
+      RandomAgent(int id) {
+         super(id);
+         rand = new Random(id);
+      }
+
+      public void see(Percept p) {
+      }
+
+      public Action selectAction() {
+         int r = rand.nextInt(20);
+         if (r < 12)
+            return new Move(rand.nextInt(4));
+         if (r < 14)
+            return new Pickup(rand.nextInt(4));
+         if (r < 16)
+            return new Dropoff(rand.nextInt(4));
+         if (r < 18)
+            return new Say(r == 17 ? null : "msg " + rand.nextInt(1000) + " \u00e9");
+         return new Idle();
+      }
+   }
+
+   /** A world that stops after a fixed number of rounds and can keep a
+      copy of its state after every turn. */
+   static class CheckedWorld extends PackageWorld {
+
+      private int roundsLeft;
+      List<byte[]> history = null;
+
+      CheckedWorld(int rounds) {
+         roundsLeft = rounds;
+      }
+
+      protected boolean isComplete() {
+         return roundsLeft-- <= 0;
+      }
+
+      protected void updateState(Agent a, Action action) {
+         super.updateState(a, action);
+         if (history != null)
+            history.add(fingerprint((PackageState)state));
+      }
+   }
+
+   private static int size = 50;
+   private static int numAgents = 8;
+   private static int rounds = 2000;
+   private static int keyframeInterval = 100;
+
+   /** The random agents' failed actions print complaints on System.out,
+      so send those nowhere and print the results on the real output. */
+   static void quietActions() {
+      SimulationBenchmark.out = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+   }
+
+   /** Return the keyframe of a state followed by its grid. */
+   static byte[] fingerprint(PackageState s) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         s.writeKeyframe(out);
+         for (int i = 0; i < s.grid.length; i++)
+            out.writeInt(s.grid[i]);
+         for (int i = 0; i < s.numAgents; i++)
+            PackageState.writeString(out, s.agentsByIndex[i].getMessage());
+         out.writeInt(s.getMessageList().hashCode());
+         out.flush();
+         return bytes.toByteArray();
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
+   /** Run a simulation, recording it to file if it isn't null, and return
+      the number of nanoseconds it took. */
+   static long simulate(CheckedWorld world, File file, ExecutorService pool)
+         throws IOException {
+
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < numAgents; i++) {
+         agts.add(new RandomAgent(i));
+         world.addAgent(agts.get(i));
+      }
+      int numPackages = Math.max(PackageWorld.DEFAULT_NUM_PACKAGES, size * size / 50);
+      PackageState state = PackageState.getInitState(1, agts, numPackages,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      ReplayWriter replay = null;
+      if (file != null) {
+         replay = new ReplayWriter(file, 1, numAgents, numPackages,
+               PackageWorld.DEFAULT_NUM_DESTINATIONS, size, keyframeInterval);
+         world.setReplay(replay);
+      }
+      world.setSimultaneous(pool);
+      if (world.history != null)
+         world.history.add(fingerprint(state));
+
+      long start = System.nanoTime();
+      world.start(state);
+      if (replay != null)
+         replay.close();
+      return System.nanoTime() - start;
+   }
+
+   /** Record a simulation, then check the state the player makes for
+      every turn. Returns false if any of them is wrong. */
+   static boolean check(String mode, ExecutorService pool) throws IOException {
+
+      File file = File.createTempFile("replay", ".pwrp");
+      file.deleteOnExit();
+      CheckedWorld world = new CheckedWorld(rounds);
+      world.history = new ArrayList<byte[]>();
+      simulate(world, file, pool);
+
+      ReplayPlayer player = new ReplayPlayer(file);
+      boolean ok = player.getNumTurns() == world.getNumTurns();
+      int bad = 0;
+      for (int t = 0; t <= player.getNumTurns() && ok; t++) {
+         if (!Arrays.equals(fingerprint(player.getState(t)), world.history.get(t)))
+            bad++;
+      }
+      player.close();
+      SimulationBenchmark.out.println(mode + ": " + world.getNumTurns() + " turns, " +
+            file.length() + " bytes, " + bad + " wrong states");
+      file.delete();
+      return ok && bad == 0;
+   }
+
+   static void bench(ExecutorService pool) throws IOException {
+
+      // warm up, then time the simulation without and with recording
+      File file = File.createTempFile("replay", ".pwrp");
+      file.deleteOnExit();
+      for (int i = 0; i < 3; i++) {
+         simulate(new CheckedWorld(rounds), null, pool);
+         simulate(new CheckedWorld(rounds), file, pool);
+      }
+      long plain = simulate(new CheckedWorld(rounds), null, pool);
+      long recorded = simulate(new CheckedWorld(rounds), file, pool);
+      SimulationBenchmark.out.println(String.format("simulation: %.2f ms, recorded: %.2f ms",
+            plain / 1e6, recorded / 1e6));
+
+      ReplayPlayer player = new ReplayPlayer(file);
+      Random rand = new Random(0);
+      int seeks = 200;
+      for (int i = 0; i < seeks; i++)
+         player.getState(rand.nextInt(player.getNumTurns() + 1));
+      long start = System.nanoTime();
+      for (int i = 0; i < seeks; i++)
+         player.getState(rand.nextInt(player.getNumTurns() + 1));
+      long nanos = System.nanoTime() - start;
+      SimulationBenchmark.out.println(String.format("seek to a random turn: %.3f ms",
+            nanos / 1e6 / seeks));
+      player.close();
+      file.delete();
+   }
+
+   public static void main(String[] args) throws IOException {
+
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-size"))
+            size = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-agents"))
+            numAgents = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-rounds"))
+            rounds = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-keyframe"))
+            keyframeInterval = Integer.parseInt(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.ReplayBenchmark " +
+                  "[-size 50] [-agents 8] [-rounds 2000] [-keyframe 100]");
+            System.exit(1);
+         }
+      }
+
+      PackageWorld.setBatch(true);
+      quietActions();
+      ExecutorService pool = Executors.newFixedThreadPool(2);
+      boolean ok = check("turns", null);
+      ok &= check("simultaneous", pool);
+      bench(null);
+      pool.shutdown();
+      if (!ok)
+         System.exit(1);
+   }
+}
@@ -0,0 +1,250 @@
+package pacworld;
+
+import agent.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Measures RolloutPlanner. It first checks that two planners with the
+    same seed and a rollout limit value the same actions the same way, on
+    their first and on later decisions, and that a reused belief state
+    is the same as a new one. It then reports how many rollouts per
+    second the planner does with different numbers of threads, and plays
+    whole simulations with agents that use the planner and with agents
+    that just follow its rollout policy. The planner agents do a fixed
+    number of rollouts per thread for each decision, so their scores
+    don't depend on the speed or the number of processors; with -budget
+    they have a time limit instead, and the scores do. The usage is:
+    <pre>
+    java -cp .:bench pacworld.RolloutBenchmark [-threads 1,2,4] [-seeds first count] [-rollouts n] [-budget ms] [-turns max]
+    </pre> */
+public class RolloutBenchmark {
+
+   /** An agent that follows the planner's greedy rollout policy. */
+   static class PolicyAgent extends Agent {
+
+      PacPercept percept;
+      Random rand;
+      List<Agent> others = new ArrayList<Agent>();
+      PackageState belief;
+
+      PolicyAgent(int id) {
+         super(id);
+         rand = new Random(id);
+      }
+
+      public void see(Percept p) {
+         percept = (PacPercept)p;
+      }
+
+      public Action selectAction() {
+         while (others.size() < percept.getVisAgents().length)
+            others.add(new RolloutPlanner.OtherAgent(others.size()));
+         belief = PackageState.getBeliefState(percept, this, others, belief);
+         return RolloutPlanner.policy(belief, this, rand);
+      }
+   }
+
+   /** An agent that asks a planner for every action. */
+   static class PlannerAgent extends Agent {
+
+      PacPercept percept;
+      RolloutPlanner planner;
+
+      PlannerAgent(int id, RolloutPlanner planner) {
+         super(id);
+         this.planner = planner;
+      }
+
+      public void see(Percept p) {
+         percept = (PacPercept)p;
+      }
+
+      public Action selectAction() {
+         return planner.selectAction(percept, this, budgetMillis);
+      }
+   }
+
+   /** A world that also stops after a maximum number of turns. */
+   static class CappedWorld extends PackageWorld {
+
+      protected boolean isComplete() {
+         return count >= maxTurns || super.isComplete();
+      }
+   }
+
+   private static long budgetMillis = 0;
+   private static int maxRollouts = 50;
+   private static int maxTurns = 4000;
+
+   /** Return a world with packages near the first agent, and its percept. */
+   static PacPercept samplePercept(List<Agent> agts, long seed) {
+      PackageState state = PackageState.getInitState(seed, agts, 400,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, 50);
+      return new PacPercept(state, agts.get(0));
+   }
+
+   static boolean check() {
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < 4; i++)
+         agts.add(new PolicyAgent(i));
+      int bad = 0;
+      for (long seed = 0; seed < 20; seed++) {
+         PacPercept p = samplePercept(agts, seed);
+         RolloutPlanner a = new RolloutPlanner(2, seed);
+         RolloutPlanner b = new RolloutPlanner(2, seed);
+         a.setMaxRollouts(200);
+         b.setMaxRollouts(200);
+         double[] va = a.evaluate(p, agts.get(0), 0);
+         double[] vb = b.evaluate(p, agts.get(0), 0);
+         if (!Arrays.equals(va, vb))
+            bad++;
+         // later decisions must not depend on anything but the seed and
+         // the earlier decisions
+         double[] va2 = a.evaluate(p, agts.get(0), 0);
+         RolloutPlanner c = new RolloutPlanner(2, seed);
+         c.setMaxRollouts(200);
+         c.evaluate(p, agts.get(0), 0);
+         if (!Arrays.equals(va2, c.evaluate(p, agts.get(0), 0)))
+            bad++;
+         a.shutdown();
+         b.shutdown();
+         c.shutdown();
+      }
+      bad += checkBeliefReuse(agts);
+      System.out.println("check: " + bad + " differences");
+      return bad == 0;
+   }
+
+   /** Refill a belief state that rollouts have changed without undoing
+      them, and return the number of times it differs from a new one. */
+   static int checkBeliefReuse(List<Agent> agts) {
+      Agent self = agts.get(0);
+      List<Agent> others = new ArrayList<Agent>();
+      for (int i = 0; i < 8; i++)
+         others.add(new RolloutPlanner.OtherAgent(i));
+      Random rand = new Random(0);
+      PackageState reused = null;
+      int bad = 0;
+      for (long seed = 0; seed < 20; seed++) {
+         PacPercept p = samplePercept(agts, seed);
+         reused = PackageState.getBeliefState(p, self, others, reused);
+         PackageState fresh = PackageState.getBeliefState(p, self, others);
+         if (!Arrays.equals(reused.grid, fresh.grid) ||
+               reused.getNumPackages() != fresh.getNumPackages() ||
+               countNear(reused) != countNear(fresh))
+            bad++;
+         for (int i = 0; i < 10; i++)
+            RolloutPlanner.policy(reused, self, rand).execute(self, reused);
+      }
+      return bad;
+   }
+
+   /** Return the number of objects in the grid indexes of a state. */
+   static int countNear(PackageState state) {
+      int max = state.getMapSize() - 1;
+      List<PacAgentRep> agentReps = new ArrayList<PacAgentRep>();
+      List<Package> packages = new ArrayList<Package>();
+      state.findAgentRepsNear(0, 0, max, max, agentReps);
+      state.findPackagesNear(0, 0, max, max, packages);
+      return agentReps.size() * 1000 + packages.size();
+   }
+
+   static void benchThroughput(int numThreads) {
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < 4; i++)
+         agts.add(new PolicyAgent(i));
+      RolloutPlanner planner = new RolloutPlanner(numThreads, 1);
+      PacPercept p = samplePercept(agts, 1);
+      for (int i = 0; i < 20; i++)
+         planner.evaluate(p, agts.get(0), 20);
+      long rollouts = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < 50; i++) {
+         planner.evaluate(p, agts.get(0), 20);
+         rollouts += planner.getRollouts();
+      }
+      double secs = (System.nanoTime() - start) / 1e9;
+      planner.shutdown();
+      System.out.println(String.format("%-8d %14.0f", numThreads,
+            rollouts / secs));
+   }
+
+   /** Play a simulation and print its score. */
+   static void play(String name, List<Agent> agts, long seed) {
+      CappedWorld world = new CappedWorld();
+      for (int i = 0; i < agts.size(); i++)
+         world.addAgent(agts.get(i));
+      PackageState state = PackageState.getInitState(seed, agts,
+            PackageWorld.DEFAULT_NUM_PACKAGES,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS,
+            PackageWorld.DEFAULT_WORLD_SIZE);
+      world.start(state);
+      System.out.println(String.format("%-8s %6d %10d %10d %12.3f %8d", name,
+            seed, world.getNumDelivered(), world.getNumTurns(),
+            (double)world.getThinkTime() / world.getNumTurns(),
+            world.getTeamPerformanceMeasure()));
+   }
+
+   public static void main(String[] args) {
+
+      int[] threads = {1, 2, 4};
+      int firstSeed = 0;
+      int numSeeds = 3;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-threads"))
+            threads = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-seeds")) {
+            firstSeed = Integer.parseInt(args[++i]);
+            numSeeds = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-rollouts"))
+            maxRollouts = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-budget"))
+            budgetMillis = Long.parseLong(args[++i]);
+         else if (args[i].equals("-turns"))
+            maxTurns = Integer.parseInt(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.RolloutBenchmark " +
+                  "[-threads 1,2,4] [-seeds first count] [-rollouts n] [-budget ms] [-turns max]");
+            System.exit(1);
+         }
+      }
+
+      PackageWorld.setBatch(true);
+      if (!check())
+         System.exit(1);
+
+      int numThreads = threads[threads.length - 1];
+      System.out.println("processors: " +
+            Runtime.getRuntime().availableProcessors());
+      System.out.println(String.format("%-8s %14s", "threads", "rollouts/s"));
+      for (int t = 0; t < threads.length; t++)
+         benchThroughput(threads[t]);
+
+      RolloutPlanner planner = new RolloutPlanner(numThreads, 0);
+      if (budgetMillis > 0)
+         System.out.println("planner: " + numThreads + " threads, " +
+               budgetMillis + " ms per decision");
+      else {
+         planner.setMaxRollouts(maxRollouts);
+         System.out.println("planner: " + numThreads + " threads, " +
+               maxRollouts + " rollouts per thread per decision");
+      }
+      System.out.println(String.format("%-8s %6s %10s %10s %12s %8s", "agent",
+            "seed", "delivered", "turns", "think ms", "score"));
+      for (long seed = firstSeed; seed < firstSeed + numSeeds; seed++) {
+         List<Agent> policyAgents = new ArrayList<Agent>();
+         List<Agent> plannerAgents = new ArrayList<Agent>();
+         for (int i = 0; i < PackageWorld.DEFAULT_NUM_AGENTS; i++) {
+            policyAgents.add(new PolicyAgent(i));
+            plannerAgents.add(new PlannerAgent(i, planner));
+         }
+         play("policy", policyAgents, seed);
+         play("planner", plannerAgents, seed);
+      }
+      planner.shutdown();
+   }
+}
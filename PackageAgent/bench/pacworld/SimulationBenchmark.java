@@ -0,0 +1,240 @@
+package pacworld;
+
+import agent.*;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Micro-benchmarks for the hot loops of the package world simulator:
+    creating an initial state, building percepts, executing Move, Pickup
+    and Dropoff, and running one full round of the environment with stub
+    agents. Each benchmark is run for every combination of world size and
+    number of agents, after a warm-up period, and reports the average time
+    per operation. The usage is:
+    <pre>
+    java -cp .:bench pacworld.SimulationBenchmark [-sizes 50,200,500] [-agents 4,16,64] [-millis 500]
+    </pre> */
+public class SimulationBenchmark {
+
+   /** An operation to be timed. */
+   interface Op {
+      /** Perform the operation once and return something that depends on
+         its result, so the JIT can't optimize the work away. */
+      long run();
+   }
+
+   /** An agent that moves in a pseudo-random direction every turn. */
+   static class StubAgent extends Agent {
+
+      private Random rand;
+      private Move[] moves = new Move[4];
+
+      StubAgent(int id) {
+         super(id);
+         rand = new Random(id);
+         for (int d = 0; d < 4; d++)
+            moves[d] = new Move(d);
+      }
+
+      public void see(Percept p) {
+      }
+
+      public Action selectAction() {
+         return moves[rand.nextInt(4)];
+      }
+   }
+
+   /** A world that stops after a fixed number of rounds. */
+   static class BenchWorld extends PackageWorld {
+
+      private int rounds;
+      private int roundsLeft;
+
+      BenchWorld(int rounds) {
+         this.rounds = rounds;
+      }
+
+      public void start(State initState) {
+         roundsLeft = rounds;
+         super.start(initState);
+      }
+
+      protected boolean isComplete() {
+         return roundsLeft-- <= 0;
+      }
+   }
+
+   static long measureMillis = 500;
+
+   /** Where the results are printed. */
+   static PrintStream out = System.out;
+   private static volatile long sink;
+
+   /** Time an operation and print the average number of nanoseconds it
+      takes. The operation is first run for a warm-up period, then in
+      batches until measureMillis have passed. */
+   static void measure(String name, int size, int numAgents, Op op) {
+
+      long batch = 1;
+      long result = 0;
+      long warmupEnd = System.nanoTime() + measureMillis * 1000000 / 2;
+      while (System.nanoTime() < warmupEnd) {
+         for (long i = 0; i < batch; i++)
+            result += op.run();
+         if (batch < (1 << 20))
+            batch *= 2;
+      }
+
+      long ops = 0;
+      long start = System.nanoTime();
+      long end = start + measureMillis * 1000000;
+      long now;
+      do {
+         for (long i = 0; i < batch; i++)
+            result += op.run();
+         ops += batch;
+         now = System.nanoTime();
+      } while (now < end);
+      sink += result;
+
+      out.println(String.format("%-22s %6d %6d %14.1f", name, size,
+            numAgents, (double)(now - start) / ops));
+   }
+
+   static List<Agent> makeAgents(int numAgents) {
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < numAgents; i++)
+         agts.add(new StubAgent(i));
+      return agts;
+   }
+
+   /** The number of packages used for a world of the given size: about one
+      location in fifty. */
+   static int numPackages(int size) {
+      return Math.max(PackageWorld.DEFAULT_NUM_PACKAGES, size * size / 50);
+   }
+
+   static void benchInitState(final int size, final int numAgents) {
+      final List<Agent> agts = makeAgents(numAgents);
+      final int numPackages = numPackages(size);
+      measure("getInitState", size, numAgents, new Op() {
+         long seed = 0;
+         public long run() {
+            PackageState s = PackageState.getInitState(seed++, agts,
+                  numPackages, PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+            return s.getNumPackages();
+         }
+      });
+   }
+
+   static void benchPercept(final int size, final int numAgents) {
+      final List<Agent> agts = makeAgents(numAgents);
+      final PackageState state = PackageState.getInitState(1, agts,
+            numPackages(size), PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      measure("PacPercept", size, numAgents, new Op() {
+         int i = 0;
+         public long run() {
+            Agent a = agts.get(i++ % numAgents);
+            PacPercept p = new PacPercept(state, a);
+            return p.getVisPackages().length;
+         }
+      });
+   }
+
+   static void benchMove(final int size, final int numAgents) {
+      final List<Agent> agts = makeAgents(numAgents);
+      final PackageState state = PackageState.getInitState(1, agts,
+            numPackages(size), PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      measure("Move.execute", size, numAgents, new Op() {
+         int i = 0;
+         public long run() {
+            Agent a = agts.get(i++ % numAgents);
+            a.selectAction().execute(a, state);
+            return state.getAgentX(a);
+         }
+      });
+   }
+
+   static void benchPickupDropoff(final int size, final int numAgents) {
+      final List<Agent> agts = makeAgents(numAgents);
+      final PackageState state = PackageState.getInitState(1, agts,
+            numPackages(size), PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+
+      // put the first agent just west of a package that isn't on the edge
+      final Agent a = agts.get(0);
+      List<Package> packages = state.getPackages();
+      for (int i = 0; i < packages.size(); i++) {
+         Package p = packages.get(i);
+         if (p.getX() > 0 && !state.hasObstacle(p.getX() - 1, p.getY())) {
+            state.repositionAgent(a, p.getX() - 1, p.getY());
+            break;
+         }
+      }
+      final Pickup pickup = new Pickup(Direction.EAST);
+      final Dropoff dropoff = new Dropoff(Direction.EAST);
+      measure("Pickup+Dropoff", size, numAgents, new Op() {
+         public long run() {
+            pickup.execute(a, state);
+            dropoff.execute(a, state);
+            return state.getWorkCount();
+         }
+      });
+   }
+
+   static void benchRound(final int size, final int numAgents) {
+      final BenchWorld world = new BenchWorld(1);
+      List<Agent> agts = makeAgents(numAgents);
+      for (int i = 0; i < numAgents; i++)
+         world.addAgent(agts.get(i));
+      final PackageState state = PackageState.getInitState(1, agts,
+            numPackages(size), PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      measure("Environment round", size, numAgents, new Op() {
+         public long run() {
+            world.start(state);
+            return world.getNumTurns();
+         }
+      });
+   }
+
+   static int[] parseList(String str) {
+      String[] parts = str.split(",");
+      int[] vals = new int[parts.length];
+      for (int i = 0; i < parts.length; i++)
+         vals[i] = Integer.parseInt(parts[i].trim());
+      return vals;
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {50, 200, 500};
+      int[] agentCounts = {4, 16, 64};
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = parseList(args[++i]);
+         else if (args[i].equals("-agents"))
+            agentCounts = parseList(args[++i]);
+         else if (args[i].equals("-millis"))
+            measureMillis = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.SimulationBenchmark " +
+                  "[-sizes 50,200,500] [-agents 4,16,64] [-millis 500]");
+            System.exit(1);
+         }
+      }
+
+      PackageWorld.setBatch(true);
+      System.out.println(String.format("%-22s %6s %6s %14s", "benchmark",
+            "size", "agents", "ns/op"));
+      for (int s = 0; s < sizes.length; s++) {
+         for (int n = 0; n < agentCounts.length; n++) {
+            benchInitState(sizes[s], agentCounts[n]);
+            benchPercept(sizes[s], agentCounts[n]);
+            benchMove(sizes[s], agentCounts[n]);
+            benchPickupDropoff(sizes[s], agentCounts[n]);
+            benchRound(sizes[s], agentCounts[n]);
+         }
+      }
+   }
+}
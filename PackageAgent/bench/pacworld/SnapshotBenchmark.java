@@ -0,0 +1,170 @@
+package pacworld;
+
+import agent.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Measures PackageState.snapshot() and restore(), and Action.apply()
+    and undo(), and checks that they put a state back exactly as it was.
+    Random agents (see ReplayBenchmark) take a number of turns after a
+    snapshot, and the state is restored, or the agents apply their actions
+    and the actions are undone in reverse. For comparison, the time to rebuild the state from scratch, which is
+    what a deep copy would cost, is also printed. The usage is:
+    <pre>
+    java -cp .:bench pacworld.SnapshotBenchmark [-sizes 50,500] [-agents 8] [-turns 1,10,100] [-millis 500]
+    </pre> */
+public class SnapshotBenchmark {
+
+   /** Take turns for the agents, one after another. */
+   static void play(PackageState state, List<Agent> agts, int turns, int first) {
+      for (int t = 0; t < turns; t++) {
+         Agent a = agts.get((first + t) % agts.size());
+         a.selectAction().execute(a, state);
+      }
+   }
+
+   /** Check that restoring nested snapshots brings back the states they
+      were taken in. Returns false if any of them is wrong. */
+   static boolean check(int size, int numAgents) {
+
+      List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < numAgents; i++)
+         agts.add(new ReplayBenchmark.RandomAgent(i));
+      int numPackages = SimulationBenchmark.numPackages(size);
+      PackageState state = PackageState.getInitState(1, agts, numPackages,
+            PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+      // deliver some packages first, so that restores have to bring them back
+      play(state, agts, 20000, 0);
+
+      int bad = 0;
+      List<PackageState.Snapshot> snaps = new ArrayList<PackageState.Snapshot>();
+      List<byte[]> prints = new ArrayList<byte[]>();
+      for (int i = 0; i < 50; i++) {
+         snaps.add(state.snapshot());
+         prints.add(ReplayBenchmark.fingerprint(state));
+         play(state, agts, 1 + i * 7, i);
+      }
+      for (int i = snaps.size() - 1; i >= 0; i -= 3) {
+         // try a different future from the same snapshot, then go back
+         state.restore(snaps.get(i));
+         if (!Arrays.equals(ReplayBenchmark.fingerprint(state), prints.get(i)))
+            bad++;
+         play(state, agts, 500, i + 1);
+         state.restore(snaps.get(i));
+         if (!Arrays.equals(ReplayBenchmark.fingerprint(state), prints.get(i)))
+            bad++;
+         if (i + 1 < snaps.size() && snaps.get(i + 1).isValid())
+            bad++;
+      }
+      state.releaseSnapshots();
+      if (snaps.get(0).isValid())
+         bad++;
+
+      // undo actions one at a time
+      List<Action> applied = new ArrayList<Action>();
+      prints.clear();
+      for (int t = 0; t < 200; t++) {
+         Agent a = agts.get(t % numAgents);
+         Action action = a.selectAction();
+         prints.add(ReplayBenchmark.fingerprint(state));
+         action.apply(a, state);
+         applied.add(action);
+      }
+      for (int t = applied.size() - 1; t >= 0; t--) {
+         applied.get(t).undo(agts.get(t % numAgents), state);
+         if (!Arrays.equals(ReplayBenchmark.fingerprint(state), prints.get(t)))
+            bad++;
+      }
+      SimulationBenchmark.out.println("check size " + size + ": " + bad + " wrong");
+      return bad == 0;
+   }
+
+   static void bench(final int size, final int numAgents, final int turns) {
+
+      final List<Agent> agts = new ArrayList<Agent>();
+      for (int i = 0; i < numAgents; i++)
+         agts.add(new ReplayBenchmark.RandomAgent(i));
+      final int numPackages = SimulationBenchmark.numPackages(size);
+      final PackageState state = PackageState.getInitState(1, agts,
+            numPackages, PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+
+      SimulationBenchmark.measure("play " + turns, size, numAgents,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            play(state, agts, turns, 0);
+            return state.getWorkCount();
+         }
+      });
+      SimulationBenchmark.measure("snapshot+play+restore", size, numAgents,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            PackageState.Snapshot snap = state.snapshot();
+            play(state, agts, turns, 0);
+            state.restore(snap);
+            state.releaseSnapshots();
+            return state.getWorkCount();
+         }
+      });
+      final Action[] applied = new Action[turns];
+      SimulationBenchmark.measure("apply+undo", size, numAgents,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            for (int t = 0; t < turns; t++) {
+               Agent a = agts.get(t % numAgents);
+               applied[t] = a.selectAction();
+               applied[t].apply(a, state);
+            }
+            long result = state.getWorkCount();
+            for (int t = turns - 1; t >= 0; t--)
+               applied[t].undo(agts.get(t % numAgents), state);
+            return result;
+         }
+      });
+      SimulationBenchmark.measure("rebuild", size, numAgents,
+            new SimulationBenchmark.Op() {
+         public long run() {
+            PackageState s = PackageState.getInitState(1, agts, numPackages,
+                  PackageWorld.DEFAULT_NUM_DESTINATIONS, size);
+            return s.getNumPackages();
+         }
+      });
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {50, 500};
+      int[] agents = {8};
+      int[] turns = {1, 10, 100};
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-agents"))
+            agents = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-turns"))
+            turns = SimulationBenchmark.parseList(args[++i]);
+         else if (args[i].equals("-millis"))
+            SimulationBenchmark.measureMillis = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java pacworld.SnapshotBenchmark " +
+                  "[-sizes 50,500] [-agents 8] [-turns 1,10,100] [-millis 500]");
+            System.exit(1);
+         }
+      }
+
+      ReplayBenchmark.quietActions();
+      boolean ok = true;
+      for (int s = 0; s < sizes.length; s++)
+         ok &= check(sizes[s], agents[0]);
+
+      SimulationBenchmark.out.println(String.format("%-22s %6s %6s %14s", "benchmark",
+            "size", "agents", "ns/op"));
+      for (int s = 0; s < sizes.length; s++)
+         for (int a = 0; a < agents.length; a++)
+            for (int t = 0; t < turns.length; t++)
+               bench(sizes[s], agents[a], turns[t]);
+      if (!ok)
+         System.exit(1);
+   }
+}
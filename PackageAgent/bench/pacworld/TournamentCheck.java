@@ -0,0 +1,84 @@
+package pacworld;
+
+import agent.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Checks that a PackageTournament records the runs whose agents fail and
+    still returns every other run. The stub agent overflows its stack in a
+    world of size 13, fails an assertion in a world of size 14, throws
+    from its constructor when there are 3 agents, and otherwise stands
+    still. The usage is:
+    <pre>
+    java -cp .:bench pacworld.TournamentCheck [-threads n]
+    </pre> */
+public class TournamentCheck {
+
+   /** An agent whose failure depends on the world it is in. */
+   public static class FailingAgent extends Agent {
+
+      private int worldSize;
+
+      public FailingAgent(int id) {
+         super(id);
+         if (id == 2)
+            throw new IllegalStateException("no third agent");
+      }
+
+      public void see(Percept p) {
+         worldSize = ((PacPercept)p).getWorldSize();
+      }
+
+      public Action selectAction() {
+         if (worldSize == 13)
+            return recurse(0);
+         if (worldSize == 14)
+            throw new AssertionError("bad world size");
+         return new Idle();
+      }
+
+      private Action recurse(int depth) {
+         Action a = recurse(depth + 1);
+         return depth < 0 ? a : null;
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+
+      int numThreads = 0;
+      if (args.length == 2 && args[0].equals("-threads"))
+         numThreads = Integer.parseInt(args[1]);
+
+      String[] sizes = { "2,5,3,13", "2,5,3,14", "3,5,3,20", "2,5,3,20" };
+      String[] errors = { "java.lang.StackOverflowError",
+            "java.lang.AssertionError: bad world size",
+            "java.lang.IllegalStateException: no third agent", null };
+      List<PackageTournament.Config> configs =
+         new ArrayList<PackageTournament.Config>();
+      for (String s : sizes)
+         configs.add(PackageTournament.Config.parse(s));
+      int numSeeds = 3;
+
+      PackageTournament tournament =
+         new PackageTournament(FailingAgent.class, numThreads);
+      List<PackageTournament.Result> results = tournament.run(0, numSeeds, configs);
+      PackageTournament.printResults(results, "csv", System.out);
+
+      int wrong = 0;
+      if (results.size() != sizes.length * numSeeds)
+         wrong++;
+      for (int i = 0; i < results.size(); i++) {
+         PackageTournament.Result r = results.get(i);
+         String expected = errors[i / numSeeds];
+         if (r.getSeed() != i % numSeeds ||
+               r.getConfig() != configs.get(i / numSeeds) ||
+               (expected == null ? r.getError() != null :
+                  !expected.equals(r.getError())))
+            wrong++;
+      }
+      System.out.println(wrong + " wrong rows");
+      if (wrong > 0)
+         System.exit(1);
+   }
+}
@@ -31,7 +31,6 @@ public class CustomPanel extends JPanel {
       g.setColor(Color.white);
       g.fillRect(0, 0, 5 * myState.getMapSize(), 5 * myState.getMapSize());
 
-      Object[][] myMap = myState.getMap();
       if (myState.getDestinations().length > 8) return;
       for (int i = 0; i < myState.getDestinations().length; i++) {
          g.setColor(myColors[i]);
@@ -40,20 +39,19 @@ public class CustomPanel extends JPanel {
       }
       for (int i = 0; i < myState.getMapSize(); i++) {
          for (int j = 0; j < myState.getMapSize(); j++) {
-            if (myMap[i][j] != null) {
-               if (myMap[i][j] instanceof Package) {
-                  Package p = (Package)(myMap[i][j]);
-                  g.setColor(myColors[p.getDestId()]);
-                  g.fillRect(5 * i, 5 * j, 5, 5);
-               }
-               else if (myMap[i][j] instanceof Agent) {
-                  Agent a = (Agent)(myMap[i][j]);
-                  if (myState.getPackageHeldByAgent(a) == null)
-                     g.setColor(Color.black);
-                  else g.setColor(Color.gray);
-                  g.fillRect(5 * i, 5 * j, 5, 5);
-               }
-            } // myMap[i][j] != null
+            int type = myState.getCellType(i, j);
+            if (type == PackageState.PACKAGE) {
+               Package p = (Package)myState.getObjectAt(i, j);
+               g.setColor(myColors[p.getDestId()]);
+               g.fillRect(5 * i, 5 * j, 5, 5);
+            }
+            else if (type == PackageState.AGENT) {
+               Agent a = (Agent)myState.getObjectAt(i, j);
+               if (myState.getPackageHeldByAgent(a) == null)
+                  g.setColor(Color.black);
+               else g.setColor(Color.gray);
+               g.fillRect(5 * i, 5 * j, 5, 5);
+            }
          } // for j
       } //for j
    }
@@ -76,6 +76,11 @@ public class Dropoff extends Action {
       return state;
    }
 
+   /** Return the direction to drop the package in. */
+   int getDirection() {
+      return direction;
+   }
+
    public String toString() {
       return "DROPOFF " + Direction.toString(direction);
    }
@@ -0,0 +1,98 @@
+package pacworld;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/** A uniform grid of buckets that records which objects are near which
+    locations of a square map. The map is divided into square cells of
+    CELL_SIZE x CELL_SIZE locations, and each cell keeps a list of the
+    objects located in it. Finding the objects in a rectangle then only
+    costs as much as the cells that the rectangle overlaps, rather than
+    the number of objects in the whole map. The index does not know where
+    an object is, so the caller must always pass the object's current
+    location when it is added, moved or removed. */
+public class GridIndex<T> {
+
+   /** The length (and width) of a cell. Since agents can see a 9x9 square,
+      a percept never overlaps more than 2x2 cells. */
+   public static final int CELL_SIZE = 9;
+
+   private int cellsPerSide;
+   private ArrayList<T>[] cells;
+
+   /** Create an empty index for a map with the given length. */
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public GridIndex(int mapSize) {
+      cellsPerSide = (mapSize + CELL_SIZE - 1) / CELL_SIZE;
+      if (cellsPerSide < 1)
+         cellsPerSide = 1;
+      cells = (ArrayList<T>[])new ArrayList[cellsPerSide * cellsPerSide];
+   }
+
+   /** Add an object located at (x,y) to the index. */
+   public void add(T obj, int x, int y) {
+      int c = cellOf(x, y);
+      if (cells[c] == null)
+         cells[c] = new ArrayList<T>(4);
+      cells[c].add(obj);
+   }
+
+   /** Remove an object located at (x,y) from the index. */
+   public void remove(T obj, int x, int y) {
+      ArrayList<T> cell = cells[cellOf(x, y)];
+      if (cell != null) {
+         // remove by identity, since Package.equals() compares ids
+         for (int i = 0; i < cell.size(); i++) {
+            if (cell.get(i) == obj) {
+               // order within a cell is not significant
+               int last = cell.size() - 1;
+               cell.set(i, cell.get(last));
+               cell.remove(last);
+               return;
+            }
+         }
+      }
+   }
+
+   /** Record that an object has moved from (oldX,oldY) to (newX,newY). */
+   public void move(T obj, int oldX, int oldY, int newX, int newY) {
+      if (cellOf(oldX, oldY) != cellOf(newX, newY)) {
+         remove(obj, oldX, oldY);
+         add(obj, newX, newY);
+      }
+   }
+
+   /** Add to out every object in a cell that overlaps the rectangle from
+      (minX,minY) to (maxX,maxY), inclusive. Note, some of these objects
+      may be outside the rectangle itself, so the caller must still check
+      each object's location. */
+   public void findNear(int minX, int minY, int maxX, int maxY,
+         Collection<T> out) {
+      int minCX = clamp(minX / CELL_SIZE);
+      int minCY = clamp(minY / CELL_SIZE);
+      int maxCX = clamp(maxX / CELL_SIZE);
+      int maxCY = clamp(maxY / CELL_SIZE);
+      for (int cx = minCX; cx <= maxCX; cx++) {
+         for (int cy = minCY; cy <= maxCY; cy++) {
+            ArrayList<T> cell = cells[cx * cellsPerSide + cy];
+            if (cell != null) {
+               // addAll() would copy the cell into a temporary array
+               for (int i = 0; i < cell.size(); i++)
+                  out.add(cell.get(i));
+            }
+         }
+      }
+   }
+
+   private int cellOf(int x, int y) {
+      return (x / CELL_SIZE) * cellsPerSide + (y / CELL_SIZE);
+   }
+
+   private int clamp(int c) {
+      if (c < 0)
+         return 0;
+      if (c >= cellsPerSide)
+         return cellsPerSide - 1;
+      return c;
+   }
+}
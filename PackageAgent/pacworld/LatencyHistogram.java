@@ -0,0 +1,83 @@
+package pacworld;
+
+/** A histogram of latencies, used to report how long an agent takes to
+    think. Values are recorded in nanoseconds into logarithmic buckets, each
+    power of two being split into SUB_BUCKETS linear buckets, so the memory
+    used does not depend on the number of values recorded and percentiles
+    are accurate to within 1/SUB_BUCKETS of the true value. */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 4;
+   private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+   private long[] counts = new long[64 * SUB_BUCKETS];
+   private long count = 0;
+   private long max = 0;
+   private long total = 0;
+
+   /** Record a latency, in nanoseconds. Negative values count as zero. */
+   public synchronized void record(long nanos) {
+      if (nanos < 0)
+         nanos = 0;
+      counts[bucketOf(nanos)]++;
+      count++;
+      total += nanos;
+      if (nanos > max)
+         max = nanos;
+   }
+
+   /** Return the number of recorded values. */
+   public synchronized long getCount() {
+      return count;
+   }
+
+   /** Return the largest recorded value, in nanoseconds. */
+   public synchronized long getMax() {
+      return max;
+   }
+
+   /** Return the mean of the recorded values, in nanoseconds. */
+   public synchronized double getMean() {
+      if (count == 0)
+         return 0;
+      return (double)total / count;
+   }
+
+   /** Return the value (in nanoseconds) that pct percent of the recorded
+      values are less than or equal to, for pct between 0 and 100. */
+   public synchronized long getPercentile(double pct) {
+      if (count == 0)
+         return 0;
+      long rank = (long)Math.ceil(pct / 100.0 * count);
+      if (rank < 1)
+         rank = 1;
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+         seen += counts[i];
+         if (seen >= rank)
+            return Math.min(upperBound(i), max);
+      }
+      return max;
+   }
+
+   /** Values below SUB_BUCKETS get a bucket each. Above that, a value with
+      its highest bit at position e goes in the bucket chosen by e and the
+      SUB_BITS bits below the highest bit. */
+   private static int bucketOf(long v) {
+      if (v < SUB_BUCKETS)
+         return (int)v;
+      int e = 63 - Long.numberOfLeadingZeros(v);
+      int sub = (int)(v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+   }
+
+   /** The largest value that falls in a bucket. */
+   private static long upperBound(int bucket) {
+      if (bucket < SUB_BUCKETS)
+         return bucket;
+      int e = bucket / SUB_BUCKETS + SUB_BITS - 1;
+      long sub = bucket % SUB_BUCKETS;
+      long lower = (SUB_BUCKETS + sub) << (e - SUB_BITS);
+      return lower + (1L << (e - SUB_BITS)) - 1;
+   }
+}
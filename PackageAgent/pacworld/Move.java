@@ -95,9 +95,76 @@ public class Move extends Action {
       return state;
    }
 
+   /** Return the locations (as x * mapSize + y) that the agent and the
+      package it holds, if any, would occupy after this move. Locations
+      that are out of bounds are left out. This is used to detect
+      collisions when agents move at the same time. */
+   int[] getTargetCells(Agent agent, PackageState state) {
+
+      if (dir < 0 || dir > 3)
+         return new int[0];
+      int size = state.getMapSize();
+      int[] cells = new int[2];
+      int num = 0;
+      int newX = state.getAgentX(agent) + Direction.DELTA_X[dir];
+      int newY = state.getAgentY(agent) + Direction.DELTA_Y[dir];
+      if (state.inBounds(newX, newY))
+         cells[num++] = newX * size + newY;
+      Package p = state.getPackageHeldByAgent(agent);
+      if (p != null) {
+         int newPX = p.getX() + Direction.DELTA_X[dir];
+         int newPY = p.getY() + Direction.DELTA_Y[dir];
+         if (state.inBounds(newPX, newPY))
+            cells[num++] = newPX * size + newPY;
+      }
+      int[] result = new int[num];
+      System.arraycopy(cells, 0, result, 0, num);
+      return result;
+   }
+
+   /** Return an action with the effect of this move failing because
+      another agent moved into the same location at the same time: the
+      agent stays where it is and feels a bump. */
+   Action collide() {
+
+      return new Collision(dir);
+   }
+
+   /** Return the direction of the move. */
+   int getDirection() {
+      return dir;
+   }
+
    public String toString() {
       return "MOVE " + Direction.toString(dir);
    }
 
+   /** A move that failed because of a collision. See collide(). */
+   static class Collision extends Action {
+
+      private int dir;
+
+      Collision(int dir) {
+         this.dir = dir;
+      }
+
+      public State execute(Agent agent, State s) {
+         PackageState state = (PackageState)s;
+         state.setIdleCount(0);
+         state.setMessage(agent, null);
+         state.setBump(agent, true);
+         return state;
+      }
+
+      /** Return the direction of the move that failed. */
+      int getDirection() {
+         return dir;
+      }
+
+      public String toString() {
+         return "MOVE " + Direction.toString(dir) + " (COLLISION)";
+      }
+   }
+
    private int dir;
 }
@@ -0,0 +1,197 @@
+package pacworld;
+
+import java.util.List;
+
+/** An agent's memory of what it has seen in the package world. For every
+    cell it has seen, the map remembers what was in it (see the cell
+    codes below), the turn it was last seen in, and that it has been
+    explored. The world is split into square chunks, and a chunk is only
+    allocated when the agent first sees one of its cells, so the memory
+    the map uses grows with the part of the world the agent has explored
+    rather than with the size of the world. An agent might use it like
+    this:
+    <pre>
+    public void see(Percept p) {
+       percept = (PacPercept)p;
+       if (map == null)
+          map = new OccupancyMap(percept.getWorldSize());
+       map.update(percept, getId(), turn++);
+    }
+    </pre> */
+public class OccupancyMap {
+
+   /** The code of a cell with nothing in it, or that hasn't been seen. */
+   public static final int EMPTY = PackageState.EMPTY;
+   /** The code of a cell with another agent in it. */
+   public static final int AGENT = PackageState.AGENT;
+   /** The code of a cell with a package that nobody holds. */
+   public static final int PACKAGE = PackageState.PACKAGE;
+   /** The code of a cell with a package that an agent holds. */
+   public static final int HELD_PACKAGE = 3;
+
+   /** The length of a chunk is 1 << CHUNK_BITS. */
+   public static final int CHUNK_BITS = 4;
+   private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+   /** What is known about the cells of one chunk. A cell is at
+      (x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK) in the arrays. */
+   private static class Chunk {
+      byte[] codes = new byte[CHUNK_CELLS];
+      int[] lastSeen = new int[CHUNK_CELLS];
+      long[] explored = new long[CHUNK_CELLS / 64];
+      /* the number of cells with a free package, so that searches can
+         skip the chunk */
+      int numPackages = 0;
+   }
+
+   private int size;
+   private int chunksPerSide;
+   private Chunk[] chunks;
+   private int numChunks = 0;
+
+   /** Create an empty map of a world of the given length. */
+   public OccupancyMap(int worldSize) {
+      if (worldSize < 1)
+         throw new IllegalArgumentException("Bad world size: " + worldSize);
+      size = worldSize;
+      chunksPerSide = (size + CHUNK_SIZE - 1) >> CHUNK_BITS;
+      chunks = new Chunk[chunksPerSide * chunksPerSide];
+   }
+
+   /** Record what the agent with the given id sees on the given turn.
+      Every cell in its view is explored and last seen now, and the agents
+      and packages in it are where the percept says. The agent itself
+      isn't recorded, so its own cell is EMPTY. */
+   public void update(PacPercept percept, String selfId, int turn) {
+
+      List<VisibleAgent> agents = percept.getVisAgentList();
+      VisibleAgent self = null;
+      for (int i = 0; i < agents.size(); i++)
+         if (agents.get(i).getId().equals(selfId))
+            self = agents.get(i);
+      if (self == null)
+         throw new IllegalArgumentException("Agent " + selfId + " isn't in its percept");
+
+      int minX = Math.max(self.getX() - 4, 0);
+      int maxX = Math.min(self.getX() + 4, size - 1);
+      int minY = Math.max(self.getY() - 4, 0);
+      int maxY = Math.min(self.getY() + 4, size - 1);
+      for (int x = minX; x <= maxX; x++)
+         for (int y = minY; y <= maxY; y++)
+            set(x, y, EMPTY, turn);
+      for (int i = 0; i < agents.size(); i++) {
+         VisibleAgent a = agents.get(i);
+         if (a != self)
+            set(a.getX(), a.getY(), AGENT, turn);
+      }
+      List<VisiblePackage> packages = percept.getVisPackageList();
+      for (int i = 0; i < packages.size(); i++) {
+         VisiblePackage p = packages.get(i);
+         set(p.getX(), p.getY(), p.isHeld() ? HELD_PACKAGE : PACKAGE, turn);
+      }
+   }
+
+   /** Record that (x,y) was seen with the given code in it on the given
+      turn. */
+   public void set(int x, int y, int code, int turn) {
+      checkBounds(x, y);
+      int c = (x >> CHUNK_BITS) * chunksPerSide + (y >> CHUNK_BITS);
+      Chunk chunk = chunks[c];
+      if (chunk == null) {
+         chunk = new Chunk();
+         chunks[c] = chunk;
+         numChunks++;
+      }
+      int i = (x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK);
+      if (chunk.codes[i] == PACKAGE)
+         chunk.numPackages--;
+      if (code == PACKAGE)
+         chunk.numPackages++;
+      chunk.codes[i] = (byte)code;
+      chunk.lastSeen[i] = turn;
+      chunk.explored[i >> 6] |= 1L << i;
+   }
+
+   /** Return the code of what was in (x,y) when it was last seen, or
+      EMPTY if it hasn't been. */
+   public int get(int x, int y) {
+      checkBounds(x, y);
+      Chunk chunk = chunks[(x >> CHUNK_BITS) * chunksPerSide + (y >> CHUNK_BITS)];
+      if (chunk == null)
+         return EMPTY;
+      return chunk.codes[(x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK)];
+   }
+
+   /** Return true if (x,y) has been seen. */
+   public boolean isExplored(int x, int y) {
+      checkBounds(x, y);
+      Chunk chunk = chunks[(x >> CHUNK_BITS) * chunksPerSide + (y >> CHUNK_BITS)];
+      if (chunk == null)
+         return false;
+      int i = (x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK);
+      return (chunk.explored[i >> 6] & (1L << i)) != 0;
+   }
+
+   /** Return the turn (x,y) was last seen in, or -1 if it hasn't been. */
+   public int getLastSeen(int x, int y) {
+      if (!isExplored(x, y))
+         return -1;
+      Chunk chunk = chunks[(x >> CHUNK_BITS) * chunksPerSide + (y >> CHUNK_BITS)];
+      return chunk.lastSeen[(x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK)];
+   }
+
+   /** Return the location of the free package closest to (x,y), by the
+      number of moves without obstacles, that was there when its cell was
+      last seen. Returns null if the map doesn't have one. */
+   public Location findNearestPackage(int x, int y) {
+      int bestDist = Integer.MAX_VALUE;
+      int bestX = -1;
+      int bestY = -1;
+      for (int cx = 0; cx < chunksPerSide; cx++) {
+         for (int cy = 0; cy < chunksPerSide; cy++) {
+            Chunk chunk = chunks[cx * chunksPerSide + cy];
+            if (chunk == null || chunk.numPackages == 0)
+               continue;
+            // skip chunks that can't have anything closer
+            int minX = cx << CHUNK_BITS;
+            int minY = cy << CHUNK_BITS;
+            int dx = Math.max(0, Math.max(minX - x, x - (minX + CHUNK_MASK)));
+            int dy = Math.max(0, Math.max(minY - y, y - (minY + CHUNK_MASK)));
+            if (dx + dy >= bestDist)
+               continue;
+            for (int i = 0; i < CHUNK_CELLS; i++) {
+               if (chunk.codes[i] != PACKAGE)
+                  continue;
+               int px = minX + i / CHUNK_SIZE;
+               int py = minY + (i & CHUNK_MASK);
+               int dist = Math.abs(px - x) + Math.abs(py - y);
+               if (dist < bestDist) {
+                  bestDist = dist;
+                  bestX = px;
+                  bestY = py;
+               }
+            }
+         }
+      }
+      return bestX < 0 ? null : new Location(bestX, bestY);
+   }
+
+   /** Return the number of chunks that have been allocated. */
+   public int getNumChunks() {
+      return numChunks;
+   }
+
+   /** Return roughly how many bytes the map uses. */
+   public long getMemoryBytes() {
+      // a chunk's object and array headers come to about 64 bytes
+      long chunkBytes = 64 + CHUNK_CELLS + CHUNK_CELLS * 4 + CHUNK_CELLS / 8;
+      return 16 + chunks.length * 4L + numChunks * chunkBytes;
+   }
+
+   private void checkBounds(int x, int y) {
+      if (x < 0 || x >= size || y < 0 || y >= size)
+         throw new IllegalArgumentException("(" + x + "," + y + ") is outside the world");
+   }
+}
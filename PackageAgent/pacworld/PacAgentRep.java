@@ -9,6 +9,9 @@ import agent.Agent;
 public class PacAgentRep {
 
   Agent agent;
+
+  /** The position of the agent in the state's list of agents. */
+  int index;
   private int x;
   private int y;
   private String message;            // a message sent by the agent
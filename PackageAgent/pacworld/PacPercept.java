@@ -4,8 +4,8 @@ import agent.Percept;
 import agent.Agent;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /** A percept in the package delivery world. */
@@ -14,10 +14,37 @@ public class PacPercept extends Percept{
    protected boolean bump;
    protected ArrayList<VisibleAgent> visAgents;
    protected ArrayList<VisiblePackage> visPackages;
+   protected List<String> messageList;
+   /** The copy of messageList returned by getMessages(), made on the
+      first call. */
    protected String[] messages;
    protected VisiblePackage heldPackage;
    protected int worldSize;
 
+   /** If true, this percept is reused from turn to turn, so the visible
+      objects and the arrays returned by getVisAgents() and getVisPackages()
+      are overwritten on the agent's next turn. */
+   protected boolean pooled = false;
+
+   /* Objects kept between calls to update() so that a pooled percept does
+      not allocate anything once it has seen its largest neighborhood. */
+   private ArrayList<PacAgentRep> nearAgents = new ArrayList<PacAgentRep>();
+   private ArrayList<Package> nearPackages = new ArrayList<Package>();
+   private ArrayList<VisibleAgent> agentPool = new ArrayList<VisibleAgent>();
+   private ArrayList<VisiblePackage> packagePool = new ArrayList<VisiblePackage>();
+   private VisibleAgent[] visAgentArray;
+   private VisiblePackage[] visPackageArray;
+   private List<VisibleAgent> visAgentView;
+   private List<VisiblePackage> visPackageView;
+
+   /** Orders packages by id. */
+   private static final Comparator<Package> PACKAGE_ORDER =
+      new Comparator<Package>() {
+         public int compare(Package p1, Package p2) {
+            return p1.getId() - p2.getId();
+         }
+      };
+
 
    /** Construct a package delivery world percept. The agents can
       see everything in 9x9 grid centered on it. If the agent moved into an
@@ -26,46 +53,88 @@ public class PacPercept extends Percept{
 
       super(state,agent);
 
+      visAgents = new ArrayList<VisibleAgent>();
+      visPackages = new ArrayList<VisiblePackage>();
+      visAgentView = Collections.unmodifiableList(visAgents);
+      visPackageView = Collections.unmodifiableList(visPackages);
+      update(state, agent);
+   }
+
+   /** Construct a percept that will be reused for every turn of an agent.
+      See PackageWorld.setPooledPercepts(). */
+   PacPercept(PackageState state, Agent agent, boolean pooled) {
+
+      this(state, agent);
+      this.pooled = pooled;
+   }
+
+   /** Refill the percept so that it reflects the given state. The visible
+      agent and package objects of the previous turn are recycled. */
+   protected void update(PackageState state, Agent agent) {
+
       worldSize = state.getMapSize();
 
       int ax = state.getAgentX(agent);
       int ay = state.getAgentY(agent);
       
-      Collection<PacAgentRep> agentReps = state.getAgentReps();
-      visAgents = new ArrayList<VisibleAgent>();
-      Iterator<PacAgentRep> agtItr = agentReps.iterator();
+      // only look at the objects in the part of the world near the agent
+      nearAgents.clear();
+      state.findAgentRepsNear(ax-4, ay-4, ax+4, ay+4, nearAgents);
+      visAgents.clear();
       int tx, ty;
-      while (agtItr.hasNext()) {
-         PacAgentRep arep = agtItr.next();
+      for (int i=0; i < nearAgents.size(); i++) {
+         PacAgentRep arep = nearAgents.get(i);
          tx = arep.getX();
          ty = arep.getY();
          if (inRange(ax,ay,tx,ty)) {
-            VisibleAgent vagent = new VisibleAgent(arep.getId(), arep.getX(), 
-                                                   arep.getY());
+            VisibleAgent vagent;
+            if (visAgents.size() < agentPool.size()) {
+               vagent = agentPool.get(visAgents.size());
+               vagent.set(arep.getId(), tx, ty);
+            }
+            else {
+               vagent = new VisibleAgent(arep.getId(), tx, ty);
+               agentPool.add(vagent);
+            }
             visAgents.add(vagent);
          }
       }
-
-      List<Package> packages = state.getPackages();
-      visPackages = new ArrayList<VisiblePackage>();
-      for (int i=0; i < state.getOrigNumPackages(); i++) {
-         if (packages.get(i) != null) {
-            Package pack = (Package)(packages.get(i));
-            tx = pack.getX();
-            ty = pack.getY();
-            if (inRange(ax,ay,tx,ty)) {
-               VisiblePackage vpack;
+      nearAgents.clear();
+
+      nearPackages.clear();
+      state.findPackagesNear(ax-4, ay-4, ax+4, ay+4, nearPackages);
+      // list the packages in order of id, as if we had searched all of them
+      Collections.sort(nearPackages, PACKAGE_ORDER);
+      visPackages.clear();
+      heldPackage = null;
+      for (int i=0; i < nearPackages.size(); i++) {
+         Package pack = nearPackages.get(i);
+         tx = pack.getX();
+         ty = pack.getY();
+         if (inRange(ax,ay,tx,ty)) {
+            VisiblePackage vpack;
+            if (visPackages.size() < packagePool.size()) {
+               vpack = packagePool.get(visPackages.size());
+               vpack.set(pack);
+            }
+            else {
                vpack = new VisiblePackage(pack);
-               visPackages.add(vpack);
-               
-               // added 9/29/09
-               PacAgentRep arep = pack.getAgent(); 
-               if (arep != null && arep.agent == agent)
-                  heldPackage = vpack;
+               packagePool.add(vpack);
             }
+            visPackages.add(vpack);
+
+            // added 9/29/09
+            PacAgentRep arep = pack.getAgent(); 
+            if (arep != null && arep.agent == agent)
+               heldPackage = vpack;
          }
       }
-      messages = state.getMessages().clone();
+      nearPackages.clear();
+
+      // every percept in a round shares the state's read-only message
+      // list, and only agents that ask for an array get a copy
+      messageList = state.getMessageList();
+      messages = null;
 
       // determine bump
       if (state.bumped(agent))
@@ -92,14 +161,34 @@ public class PacPercept extends Percept{
    /** Returns an array of the visible agents. Each element is of type
       VisibleAgent. */
    public VisibleAgent[] getVisAgents() {
-      return visAgents.toArray(new VisibleAgent[visAgents.size()]);
+      if (!pooled)
+         return visAgents.toArray(new VisibleAgent[visAgents.size()]);
+      if (visAgentArray == null || visAgentArray.length != visAgents.size())
+         visAgentArray = new VisibleAgent[visAgents.size()];
+      return visAgents.toArray(visAgentArray);
+   }
+
+   /** Returns a read-only list of the visible agents. Unlike getVisAgents(),
+      this never allocates anything. */
+   public List<VisibleAgent> getVisAgentList() {
+      return visAgentView;
    }
 
    /** Return an array of the visible packages. Each element is of type
       VisiblePackage. Only packages that have not been delivered will
       appear. */
    public VisiblePackage[] getVisPackages() {
-      return visPackages.toArray(new VisiblePackage[visPackages.size()]);
+      if (!pooled)
+         return visPackages.toArray(new VisiblePackage[visPackages.size()]);
+      if (visPackageArray == null || visPackageArray.length != visPackages.size())
+         visPackageArray = new VisiblePackage[visPackages.size()];
+      return visPackages.toArray(visPackageArray);
+   }
+
+   /** Returns a read-only list of the visible packages. Unlike 
+      getVisPackages(), this never allocates anything. */
+   public List<VisiblePackage> getVisPackageList() {
+      return visPackageView;
    }
 
    /** Returns an array of strings representing messages sent since the
@@ -107,9 +196,17 @@ public class PacPercept extends Percept{
       sent, and there is no identification of which agent sent which
       message. */
    public String[] getMessages() {
+      if (messages == null)
+         messages = messageList.toArray(new String[messageList.size()]);
       return messages;
    }
 
+   /** Returns a read-only list of the messages sent since the agent's last
+      turn. Unlike getMessages(), this never allocates anything. */
+   public List<String> getMessageList() {
+      return messageList;
+   }
+
    /** Returns the visible package that the agent is currently holding.
     * If the agent is not holding a package, returns null. Note, since
     * the agent can see all packages in the 9x9 square centered on 
@@ -130,8 +227,8 @@ public class PacPercept extends Percept{
          System.out.println(visAgents.get(i));
       for (int i=0; i < visPackages.size(); i++)
          System.out.println(visPackages.get(i));
-      for (int i=0; i < messages.length; i++)
-         System.out.println(messages[i]);
+      for (int i=0; i < messageList.size(); i++)
+         System.out.println(messageList.get(i));
       System.out.println();
       System.out.println();
    }
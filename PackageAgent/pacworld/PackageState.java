@@ -6,15 +6,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Random;
 
 
 /** Represents a state in the package world. */
-public class PackageState extends State {
-
-   // A pseudo-random number generator used in creating initial states
-   private static Random rand = new Random();
+public class PackageState extends State implements Reversible {
 
    /** Construct a new package state. */
    public PackageState() {
@@ -47,21 +46,115 @@ public class PackageState extends State {
    protected int nonProductiveCount = 0;
    protected PacGUI gui = null;
 
-   /** An array to that contains the locations of objects in the world. */
-   protected Object[][] map;
+   /** Cell types of the grid. */
+   public static final int EMPTY = 0;
+   public static final int AGENT = 1;
+   public static final int PACKAGE = 2;
+
+   /* Each cell of the grid packs the type of the object in the cell into
+      its low TYPE_BITS bits and the id of the object into the rest. The id
+      of an agent is the index of its PacAgentRep and the id of a package is
+      its package id. An empty cell is 0. */
+   protected static final int TYPE_BITS = 2;
+   protected static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+   /** An array that contains the locations of objects in the world. The
+      cell for (x,y) is grid[x * mapSize + y]. */
+   protected int[] grid;
+
+   /** The agent reps, indexed by the ids used in the grid. */
+   protected PacAgentRep[] agentsByIndex;
+
+   /** Bucket indexes of the agents and the undelivered packages, used to
+      find the objects that are visible from a location without looking at
+      every object in the world. */
+   protected GridIndex<PacAgentRep> agentIndex;
+   protected GridIndex<Package> packageIndex;
+
+   /** The message board. The messages currently said by the agents are
+      packed into the first numPosted elements of board, in no particular
+      order. boardPos gives the position of each agent's message (or -1)
+      and boardOwner gives the agent that owns each position. Agents are
+      identified by the index of their PacAgentRep. */
+   protected String[] board;
+   protected int[] boardPos;
+   protected int[] boardOwner;
+   protected int numPosted = 0;
+
+   /** The read-only list returned by getMessageList(), shared by every
+      caller until the board changes. Null when it must be rebuilt. */
+   protected List<String> messageSnapshot = Collections.emptyList();
+
+   /** A point that a state can be restored to. See snapshot(). */
+   public static class Snapshot {
+
+      private PackageState state;
+      private int mark;
+      private boolean valid = true;
+
+      private int numPackages;
+      private int idleCount;
+      private int workCount;
+      private int pacCount;
+      private int messageCount;
+      private long totalMessageLength;
+      private int nonProductiveCount;
+
+      /** Return true if the state can still be restored to this
+         snapshot. */
+      public boolean isValid() {
+         return valid;
+      }
+   }
+
+   /* Kinds of entries in the undo log. Each entry is UNDO_STRIDE ints: the
+      kind followed by up to three arguments, plus an object in undoRefs
+      for the kinds that need one. */
+   private static final int UNDO_CELL = 0;       // cell, old code
+   private static final int UNDO_AGENT = 1;      // agent index, old x, old y
+   private static final int UNDO_PACKAGE = 2;    // package id, old x, old y
+   private static final int UNDO_BUMP = 3;       // agent index, old bump
+   private static final int UNDO_HELD = 4;       // agent index, old package id or -1
+   private static final int UNDO_DELIVERED = 5;  // package id; ref is the package
+   private static final int UNDO_MESSAGE = 6;    // agent index, old board pos; ref is the old message
+   private static final int UNDO_ADD_AGENT = 7;  // ref is the agent rep added to the index
+   private static final int UNDO_ADD_PACKAGE = 8; // ref is the package added to the index
+   private static final int UNDO_STRIDE = 4;
+
+   /** The snapshots that can be restored, oldest first. The log is only
+      kept while there is at least one. */
+   protected ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+   /** The undo log: how to reverse each change made since the oldest
+      snapshot. */
+   protected int[] undoLog = null;
+   protected Object[] undoRefs = null;
+   protected int undoSize = 0;
+
+   /** For a belief state, the snapshot taken while it was still empty.
+      See getBeliefState(). */
+   protected Snapshot emptyBelief = null;
 
    /** Use the given seed to generate a pseudo-random initial state for 
     * the vacuum world. */
    public static PackageState getInitState(long seed, List<Agent> agts,
          int numPackages, 
          int numDests, int mapSize) {
-      rand = new Random(seed);
-      return getInitState(agts, numPackages, numDests, mapSize);
+      return getInitState(new Random(seed), agts, numPackages, numDests, mapSize);
    }
 
    /** Return a random initial state for the vacuum world. */
    public static PackageState getInitState(List<Agent> agts, int numPackages, 
          int numDests, int mapSize) {
+      return getInitState(new Random(), agts, numPackages, numDests, mapSize);
+   }
+
+   /** Return a random initial state for the package world, using the given
+    * random number generator. Each simulation should use its own generator,
+    * so that several worlds can be generated at the same time on different
+    * threads and a seed always produces the same state. */
+   public static PackageState getInitState(Random rand, List<Agent> agts,
+         int numPackages, int numDests, int mapSize) {
       PackageState state;
       int i, x, y;
       
@@ -72,10 +165,9 @@ public class PackageState extends State {
       state.packages = new ArrayList<Package>();
 
       state.mapSize = mapSize;
-      state.map = new Object[mapSize][mapSize];
-      for (i = 0; i < mapSize; i++)
-         for (int j = 0; j < mapSize; j++)
-            state.map[i][j] = null;
+      state.grid = new int[mapSize * mapSize];    // all cells are EMPTY
+      state.agentIndex = new GridIndex<PacAgentRep>(mapSize);
+      state.packageIndex = new GridIndex<Package>(mapSize);
 
       state.numDests = numDests;
       state.destinations = new Location[numDests];
@@ -94,7 +186,7 @@ public class PackageState extends State {
             x = (int)(rand.nextFloat() * mapSize);
             y = (int)(rand.nextFloat() * mapSize);
             destId = (int)(rand.nextFloat() * numDests);
-         } while (state.map[x][y] != null || 
+         } while (state.hasObstacle(x, y) || 
                (state.destinations[destId].getX() == x &&
                      state.destinations[destId].getY() == y));     
          Package p = new Package(i, destId, state.destinations[destId].getX(),
@@ -102,20 +194,30 @@ public class PackageState extends State {
          p.setX(x);
          p.setY(y);
          state.packages.add(p);
-         state.map[x][y] = p;
+         state.packageIndex.add(p, x, y);
+         state.grid[x * mapSize + y] = packageCode(p);
       }
 
+      state.board = new String[state.numAgents];
+      state.boardPos = new int[state.numAgents];
+      state.boardOwner = new int[state.numAgents];
+      Arrays.fill(state.boardPos, -1);
+      state.agentsByIndex = new PacAgentRep[state.numAgents];
+
       for (i = 0; i < state.numAgents; i++) {
          Agent agt = agts.get(i);
          PacAgentRep arep = new PacAgentRep(agt);
+         arep.index = i;
+         state.agentsByIndex[i] = arep;
          do {
             x = (int)(rand.nextFloat() * mapSize);
             y = (int)(rand.nextFloat() * mapSize);
-         } while (state.map[x][y] != null);
+         } while (state.hasObstacle(x, y));
          arep.setX(x);
          arep.setY(y);
          state.agentReps.put(agt,arep);
-         state.map[x][y] = agt;
+         state.agentIndex.add(arep, x, y);
+         state.grid[x * mapSize + y] = agentCode(arep);
       }
 
       /*
@@ -128,6 +230,136 @@ public class PackageState extends State {
       return state;
    }
 
+   /** Return a state that contains only what an agent knows from its
+      percept: itself, the agents and packages it can see, and the
+      destinations of those packages. Everything else is assumed to be
+      empty. The other agents are represented by the first agents in
+      others, which must have at least as many elements as there are
+      other visible agents. A package held by another agent is given to
+      an agent next to it. */
+   static PackageState getBeliefState(PacPercept percept, Agent self,
+         List<Agent> others) {
+      return getBeliefState(percept, self, others, null);
+   }
+
+   /** Like getBeliefState(percept, self, others), but refills reuse, a
+      state returned by an earlier call, if it is for a map of the same
+      size. The objects are placed while the state keeps a snapshot of
+      itself empty, so restoring that snapshot removes the objects of the
+      previous percept. A new belief then costs as much as the objects in
+      the two percepts rather than the size of the map. Any changes made
+      to reuse since it was returned are undone as well, because every
+      change to a belief state is recorded in its undo log. */
+   static PackageState getBeliefState(PacPercept percept, Agent self,
+         List<Agent> others, PackageState reuse) {
+
+      VisibleAgent[] visAgents = percept.getVisAgents();
+      VisiblePackage[] visPackages = percept.getVisPackages();
+      int mapSize = percept.getWorldSize();
+
+      PackageState state;
+      if (reuse != null && reuse.mapSize == mapSize &&
+            reuse.emptyBelief != null && reuse.emptyBelief.isValid()) {
+         state = reuse;
+         state.restore(state.emptyBelief);
+         state.agentReps.clear();
+      }
+      else {
+         state = new PackageState();
+         state.mapSize = mapSize;
+         state.grid = new int[mapSize * mapSize];
+         state.agentIndex = new GridIndex<PacAgentRep>(mapSize);
+         state.packageIndex = new GridIndex<Package>(mapSize);
+         state.agentReps = new HashMap<Agent,PacAgentRep>();
+         state.emptyBelief = state.snapshot();
+      }
+
+      // the agent itself is always agent 0
+      state.numAgents = visAgents.length;
+      state.agentsByIndex = new PacAgentRep[state.numAgents];
+      int next = 1;
+      for (int i = 0; i < visAgents.length; i++) {
+         boolean isSelf = visAgents[i].getId().equals(self.getId());
+         Agent agt = isSelf ? self : others.get(next - 1);
+         PacAgentRep arep = new PacAgentRep(agt);
+         arep.index = isSelf ? 0 : next++;
+         arep.setX(visAgents[i].getX());
+         arep.setY(visAgents[i].getY());
+         state.agentsByIndex[arep.index] = arep;
+         state.agentReps.put(agt, arep);
+         state.agentIndex.add(arep, arep.getX(), arep.getY());
+         state.log(UNDO_ADD_AGENT, 0, 0, 0, arep);
+         state.setCell(arep.getX() * mapSize + arep.getY(), agentCode(arep));
+      }
+      state.agentsByIndex[0].setBumped(percept.feelBump());
+
+      int maxId = -1;
+      ArrayList<Location> dests = new ArrayList<Location>();
+      for (int i = 0; i < visPackages.length; i++) {
+         maxId = Math.max(maxId, visPackages[i].getId());
+         if (indexOf(dests, visPackages[i].getDestX(), visPackages[i].getDestY()) < 0)
+            dests.add(new Location(visPackages[i].getDestX(),
+                     visPackages[i].getDestY()));
+      }
+      state.packages = new ArrayList<Package>();
+      for (int i = 0; i <= maxId; i++)
+         state.packages.add(null);
+      state.numDests = dests.size();
+      state.destinations = dests.toArray(new Location[dests.size()]);
+
+      VisiblePackage held = percept.getHeldPackage();
+      for (int i = 0; i < visPackages.length; i++) {
+         VisiblePackage vp = visPackages[i];
+         Package p = new Package(vp.getId(),
+               indexOf(dests, vp.getDestX(), vp.getDestY()),
+               vp.getDestX(), vp.getDestY());
+         p.setX(vp.getX());
+         p.setY(vp.getY());
+         state.packages.set(vp.getId(), p);
+         state.packageIndex.add(p, p.getX(), p.getY());
+         state.log(UNDO_ADD_PACKAGE, 0, 0, 0, p);
+         state.setCell(p.getX() * mapSize + p.getY(), packageCode(p));
+         if (vp.isHeld()) {
+            PacAgentRep holder = null;
+            if (held != null && held.getId() == vp.getId())
+               holder = state.agentsByIndex[0];
+            else
+               holder = state.findHolder(p);
+            if (holder != null) {
+               holder.setHeldPackage(p);
+               p.setAgent(holder);
+            }
+         }
+      }
+      state.origNumPackages = state.numPackages = visPackages.length;
+
+      state.board = new String[state.numAgents];
+      state.boardPos = new int[state.numAgents];
+      state.boardOwner = new int[state.numAgents];
+      Arrays.fill(state.boardPos, -1);
+      return state;
+   }
+
+   private static int indexOf(List<Location> locs, int x, int y) {
+      for (int i = 0; i < locs.size(); i++)
+         if (locs.get(i).getX() == x && locs.get(i).getY() == y)
+            return i;
+      return -1;
+   }
+
+   /** Return an agent next to a package that isn't holding anything, or
+      null if there isn't one. */
+   private PacAgentRep findHolder(Package p) {
+      for (int i = 1; i < numAgents; i++) {
+         PacAgentRep arep = agentsByIndex[i];
+         int dist = Math.abs(arep.getX() - p.getX()) +
+            Math.abs(arep.getY() - p.getY());
+         if (dist == 1 && arep.getHeldPackage() == null)
+            return arep;
+      }
+      return null;
+   }
+
    public void printState() {
       int i;
       System.out.println("Agents:");
@@ -199,6 +431,7 @@ public class PackageState extends State {
          System.out.println("Agent " + a.getId() + " tried to grab a " +
          "package held by another agent!");
       else {
+         logHeld(arep);
          arep.setHeldPackage(p);
          p.setAgent(arep);
       }
@@ -214,12 +447,16 @@ public class PackageState extends State {
       PacAgentRep arep = getAgentRep(a);
       oldx = arep.getX();
       oldy = arep.getY();
+      if (snapshots.size() > 0)
+         log(UNDO_AGENT, arep.index, oldx, oldy, null);
       arep.setX(newX);
       arep.setY(newY);
+      agentIndex.move(arep, oldx, oldy, newX, newY);
       // make sure we haven't moved something to agent's position first
-      if (map[oldx][oldy] == a)
-         map[oldx][oldy] = null;      
-      map[newX][newY] = a;
+      int code = agentCode(arep);
+      if (grid[oldx * mapSize + oldy] == code)
+         setCell(oldx * mapSize + oldy, EMPTY);      
+      setCell(newX * mapSize + newY, code);
    }
 
    /** Change a package's position. Update the package's location and
@@ -230,13 +467,16 @@ public class PackageState extends State {
       pacCount++;
       oldx = p.getX();
       oldy = p.getY();
+      if (snapshots.size() > 0)
+         log(UNDO_PACKAGE, p.getId(), oldx, oldy, null);
       p.setX(newX);
       p.setY(newY);
+      packageIndex.move(p, oldx, oldy, newX, newY);
       // it is possible that the agent have moved in the direction of
       // of the package, so we must be careful not to overwrite it.
-      if (map[oldx][oldy] instanceof Package)
-         map[oldx][oldy] = null;      
-      map[newX][newY] = p;
+      if ((grid[oldx * mapSize + oldy] & TYPE_MASK) == PACKAGE)
+         setCell(oldx * mapSize + oldy, EMPTY);      
+      setCell(newX * mapSize + newY, packageCode(p));
    }
 
 
@@ -244,22 +484,51 @@ public class PackageState extends State {
       during its previous move. */
    public void setBump(Agent a, boolean bump) {
       PacAgentRep arep = getAgentRep(a);
+      if (snapshots.size() > 0 && arep.hasBumped() != bump)
+         log(UNDO_BUMP, arep.index, arep.hasBumped() ? 1 : 0, 0, null);
       arep.setBumped(bump);
    }
 
    /** Return true if the specified location has an obstacle in it. */
    public boolean hasObstacle(int x, int y) {
-
-      if (map[x][y] != null)
-         return true;
-      else
-         return false;
+      return grid[x * mapSize + y] != EMPTY;
    }
 
    /** Return the object located at the specified location. If there is
-      no object there, returns null. */
+      no object there, returns null. Agents are returned as Agent objects
+      and packages as Package objects. */
    public Object getObjectAt(int x, int y) {
-      return map[x][y];
+      int code = grid[x * mapSize + y];
+      switch (code & TYPE_MASK) {
+         case AGENT:
+            return agentsByIndex[code >>> TYPE_BITS].agent;
+         case PACKAGE:
+            return packages.get(code >>> TYPE_BITS);
+         default:
+            return null;
+      }
+   }
+
+   /** Return the type of object at the specified location: EMPTY, AGENT
+      or PACKAGE. */
+   public int getCellType(int x, int y) {
+      return grid[x * mapSize + y] & TYPE_MASK;
+   }
+
+   /** Return the id of the object at the specified location. For a package
+      this is the package id, for an agent it is the agent's position in the
+      list of agents the state was created with. Only meaningful if the
+      cell is not EMPTY. */
+   public int getCellId(int x, int y) {
+      return grid[x * mapSize + y] >>> TYPE_BITS;
+   }
+
+   private static int agentCode(PacAgentRep arep) {
+      return (arep.index << TYPE_BITS) | AGENT;
+   }
+
+   private static int packageCode(Package p) {
+      return (p.getId() << TYPE_BITS) | PACKAGE;
    }
 
    /** Return true if the agent bumped into an obstacle on its previous
@@ -287,6 +556,7 @@ public class PackageState extends State {
       PacAgentRep arep = getAgentRep(a);
       Package p = arep.getHeldPackage();
       if (p != null) {
+         logHeld(arep);
          p.setAgent(null);
          arep.setHeldPackage(null);
          int x = p.getX();
@@ -294,18 +564,24 @@ public class PackageState extends State {
 
          // if package is dropped at its destination, then it disappears
          if (dropX == p.getDestX() && dropY == p.getDestY()) {
+            if (snapshots.size() > 0)
+               log(UNDO_DELIVERED, p.getId(), 0, 0, p);
             packages.set(p.getId(), null);
+            packageIndex.remove(p, x, y);
             p = null;
-            map[x][y] = null;
+            setCell(x * mapSize + y, EMPTY);
             numPackages--;
             nonProductiveCount = 0;
          }
          // if package is dropped in a different location from where it was
          else if (x != dropX || y != dropY) {
-            map[x][y] = null;
-            map[dropX][dropY] = p;
+            if (snapshots.size() > 0)
+               log(UNDO_PACKAGE, p.getId(), x, y, null);
+            setCell(x * mapSize + y, EMPTY);
+            setCell(dropX * mapSize + dropY, packageCode(p));
             p.setX(dropX);
             p.setY(dropY);
+            packageIndex.move(p, x, y, dropX, dropY);
          }
          // otherwise, package stays where it is
       }
@@ -342,17 +618,41 @@ public class PackageState extends State {
    public Collection<PacAgentRep> getAgentReps() {
       return agentReps.values();
    }
+
+   /** Add to out the agent reps that may be located in the rectangle from
+      (minX,minY) to (maxX,maxY). The result can include agents that are
+      a little outside the rectangle, so callers must check the locations.
+      This only costs as much as the number of agents nearby. */
+   public void findAgentRepsNear(int minX, int minY, int maxX, int maxY,
+         Collection<PacAgentRep> out) {
+      agentIndex.findNear(minX, minY, maxX, maxY, out);
+   }
+
+   /** Add to out the undelivered packages that may be located in the
+      rectangle from (minX,minY) to (maxX,maxY). The result can include
+      packages that are a little outside the rectangle, so callers must
+      check the locations. */
+   public void findPackagesNear(int minX, int minY, int maxX, int maxY,
+         Collection<Package> out) {
+      packageIndex.findNear(minX, minY, maxX, maxY, out);
+   }
    
+   /** Return the messages said by the agents on their most recent turns,
+      in a new array. */
    public String[] getMessages() {
-      ArrayList<String> messages = new ArrayList<String>();
-      Iterator<PacAgentRep> agtItr = agentReps.values().iterator();
-      while (agtItr.hasNext()) {
-         PacAgentRep arep = agtItr.next();
-         String msg = arep.getMessage();
-         if (msg != null)
-            messages.add(msg);
-      }
-      return messages.toArray(new String[messages.size()]);
+      List<String> msgs = getMessageList();
+      return msgs.toArray(new String[msgs.size()]);
+   }
+
+   /** Return a read-only list of the messages said by the agents on their
+      most recent turns. The same list is returned to every caller until
+      some agent's message changes, so the percepts of a round all share
+      one copy of the board. */
+   public List<String> getMessageList() {
+      if (messageSnapshot == null)
+         messageSnapshot = Collections.unmodifiableList(
+               Arrays.asList(Arrays.copyOf(board, numPosted)));
+      return messageSnapshot;
    }
 
    public Location[] getDestinations() {
@@ -382,7 +682,10 @@ public class PackageState extends State {
    /** Set whatever message was said by the agent in its previous move. */
    public void setMessage(Agent a, String s) {
       PacAgentRep arep = getAgentRep(a);
+      if (snapshots.size() > 0 && (s != null || arep.getMessage() != null))
+         log(UNDO_MESSAGE, arep.index, boardPos[arep.index], 0, arep.getMessage());
       arep.setMessage(s);
+      postMessage(arep.index, s);
       if (s != null) {
          workCount++;
          nonProductiveCount++;
@@ -391,6 +694,364 @@ public class PackageState extends State {
       }
    }
 
+   /** Put an agent's message on the board, replacing its previous message.
+      A null message removes the agent's message. This takes constant time;
+      the list returned by getMessageList() is only rebuilt when asked for. */
+   protected void postMessage(int agentIndex, String s) {
+      int pos = boardPos[agentIndex];
+      if (s == null) {
+         if (pos < 0)
+            return;
+         // move the last message into the hole
+         int last = --numPosted;
+         board[pos] = board[last];
+         boardOwner[pos] = boardOwner[last];
+         boardPos[boardOwner[pos]] = pos;
+         board[last] = null;
+         boardPos[agentIndex] = -1;
+      }
+      else {
+         if (pos < 0) {
+            pos = numPosted++;
+            boardPos[agentIndex] = pos;
+            boardOwner[pos] = agentIndex;
+         }
+         board[pos] = s;
+      }
+      messageSnapshot = null;
+   }
+
+   /** Return a snapshot that the state can later be restored to with
+      restore(). From the first snapshot on, every change to the state is
+      recorded in an undo log, so taking a snapshot only costs a few
+      counters, and restoring one costs as much as the changes made since
+      it was taken, not the size of the map. Snapshots can be nested, and
+      a snapshot can be restored to any number of times, for example to
+      try several actions from the same state. The log grows until
+      releaseSnapshots() is called, so long runs that checkpoint every
+      few turns should release the snapshots they no longer need. To save
+      a state to disk, use ReplayWriter instead. */
+   public Snapshot snapshot() {
+      if (undoLog == null) {
+         undoLog = new int[64 * UNDO_STRIDE];
+         undoRefs = new Object[64];
+      }
+      Snapshot snap = new Snapshot();
+      snap.state = this;
+      snap.mark = undoSize;
+      snap.numPackages = numPackages;
+      snap.idleCount = idleCount;
+      snap.workCount = workCount;
+      snap.pacCount = pacCount;
+      snap.messageCount = messageCount;
+      snap.totalMessageLength = totalMessageLength;
+      snap.nonProductiveCount = nonProductiveCount;
+      snapshots.add(snap);
+      return snap;
+   }
+
+   /** Undo every change made to the state since the snapshot was taken.
+      The snapshot stays valid, but the snapshots taken after it don't.
+      The objects in each cell of the grid indexes may come back in a
+      different order, which the indexes never promise anyway. */
+   public void restore(Snapshot snap) {
+      if (snap.state != this || !snap.valid)
+         throw new IllegalArgumentException("Snapshot is not valid for this state");
+
+      while (undoSize > snap.mark) {
+         undoSize -= UNDO_STRIDE;
+         undo(undoSize);
+      }
+      for (int i = snapshots.size() - 1; snapshots.get(i) != snap; i--)
+         snapshots.remove(i).valid = false;
+
+      numPackages = snap.numPackages;
+      idleCount = snap.idleCount;
+      workCount = snap.workCount;
+      pacCount = snap.pacCount;
+      messageCount = snap.messageCount;
+      totalMessageLength = snap.totalMessageLength;
+      nonProductiveCount = snap.nonProductiveCount;
+   }
+
+   /** Invalidate all of the snapshots and stop recording changes. */
+   public void releaseSnapshots() {
+      for (int i = 0; i < snapshots.size(); i++)
+         snapshots.get(i).valid = false;
+      snapshots.clear();
+      undoLog = null;
+      undoRefs = null;
+      undoSize = 0;
+   }
+
+   /** Take a snapshot for Action.apply(). The snapshots of apply() and
+      snapshot() share the undo log, so they must be nested properly. */
+   public void markChanges() {
+      snapshot();
+   }
+
+   /** Restore the most recent snapshot and discard it, for
+      Action.undo(). */
+   public void undoChanges() {
+      if (snapshots.size() == 0)
+         throw new IllegalStateException("No changes to undo");
+      Snapshot snap = snapshots.get(snapshots.size() - 1);
+      restore(snap);
+      snapshots.remove(snapshots.size() - 1);
+      snap.valid = false;
+   }
+
+   /** Set a cell of the grid, recording its old code if there is a
+      snapshot. */
+   private void setCell(int cell, int code) {
+      if (snapshots.size() > 0)
+         log(UNDO_CELL, cell, grid[cell], 0, null);
+      grid[cell] = code;
+   }
+
+   private void logHeld(PacAgentRep arep) {
+      if (snapshots.size() > 0) {
+         Package held = arep.getHeldPackage();
+         log(UNDO_HELD, arep.index, held == null ? -1 : held.getId(), 0, null);
+      }
+   }
+
+   private void log(int kind, int a, int b, int c, Object ref) {
+      if (undoSize == undoLog.length) {
+         undoLog = Arrays.copyOf(undoLog, undoSize * 2);
+         undoRefs = Arrays.copyOf(undoRefs, undoRefs.length * 2);
+      }
+      undoLog[undoSize] = kind;
+      undoLog[undoSize + 1] = a;
+      undoLog[undoSize + 2] = b;
+      undoLog[undoSize + 3] = c;
+      undoRefs[undoSize / UNDO_STRIDE] = ref;
+      undoSize += UNDO_STRIDE;
+   }
+
+   /** Reverse the change recorded by the log entry at position e. */
+   private void undo(int e) {
+      int a = undoLog[e + 1];
+      int b = undoLog[e + 2];
+      int c = undoLog[e + 3];
+      Object ref = undoRefs[e / UNDO_STRIDE];
+      undoRefs[e / UNDO_STRIDE] = null;
+
+      switch (undoLog[e]) {
+         case UNDO_CELL:
+            grid[a] = b;
+            break;
+         case UNDO_AGENT: {
+            PacAgentRep arep = agentsByIndex[a];
+            agentIndex.move(arep, arep.getX(), arep.getY(), b, c);
+            arep.setX(b);
+            arep.setY(c);
+            break;
+         }
+         case UNDO_PACKAGE: {
+            Package p = packages.get(a);
+            packageIndex.move(p, p.getX(), p.getY(), b, c);
+            p.setX(b);
+            p.setY(c);
+            break;
+         }
+         case UNDO_BUMP:
+            agentsByIndex[a].setBumped(b != 0);
+            break;
+         case UNDO_HELD: {
+            PacAgentRep arep = agentsByIndex[a];
+            Package held = arep.getHeldPackage();
+            if (held != null)
+               held.setAgent(null);
+            held = b < 0 ? null : packages.get(b);
+            arep.setHeldPackage(held);
+            if (held != null)
+               held.setAgent(arep);
+            break;
+         }
+         case UNDO_DELIVERED: {
+            Package p = (Package)ref;
+            packages.set(a, p);
+            packageIndex.add(p, p.getX(), p.getY());
+            break;
+         }
+         case UNDO_MESSAGE:
+            unpostMessage(a, b, (String)ref);
+            agentsByIndex[a].setMessage((String)ref);
+            break;
+         case UNDO_ADD_AGENT: {
+            PacAgentRep arep = (PacAgentRep)ref;
+            agentIndex.remove(arep, arep.getX(), arep.getY());
+            break;
+         }
+         case UNDO_ADD_PACKAGE: {
+            Package p = (Package)ref;
+            packageIndex.remove(p, p.getX(), p.getY());
+            break;
+         }
+      }
+   }
+
+   /** Reverse postMessage(agentIndex, s): put the board back the way it
+      was when the agent's message was old and at position oldPos (or -1
+      if it had none). */
+   private void unpostMessage(int agentIndex, int oldPos, String old) {
+      int pos = boardPos[agentIndex];
+      if (oldPos < 0) {
+         // the message was added at the end
+         numPosted--;
+         board[numPosted] = null;
+         boardPos[agentIndex] = -1;
+      }
+      else if (pos >= 0)
+         board[pos] = old;    // the message was replaced
+      else {
+         // the message was removed and the last one was moved into its
+         // place, unless it was the last one itself
+         int last = numPosted++;
+         if (oldPos != last) {
+            board[last] = board[oldPos];
+            boardOwner[last] = boardOwner[oldPos];
+            boardPos[boardOwner[last]] = last;
+         }
+         board[oldPos] = old;
+         boardOwner[oldPos] = agentIndex;
+         boardPos[agentIndex] = oldPos;
+      }
+      messageSnapshot = null;
+   }
+
+   /** Write everything that actions can change about the state: the
+      counters, the agents, the packages and the message board. The
+      destinations and the original packages are not written, since they
+      are fixed by the seed the state was created with. See
+      readKeyframe(). */
+   void writeKeyframe(DataOutput out) throws IOException {
+      out.writeInt(numPackages);
+      out.writeInt(idleCount);
+      out.writeInt(workCount);
+      out.writeInt(pacCount);
+      out.writeInt(messageCount);
+      out.writeLong(totalMessageLength);
+      out.writeInt(nonProductiveCount);
+
+      for (int i = 0; i < numAgents; i++) {
+         PacAgentRep arep = agentsByIndex[i];
+         Package held = arep.getHeldPackage();
+         out.writeInt(arep.getX());
+         out.writeInt(arep.getY());
+         out.writeBoolean(arep.hasBumped());
+         out.writeInt(held == null ? -1 : held.getId());
+      }
+
+      for (int i = 0; i < packages.size(); i++) {
+         Package p = packages.get(i);
+         out.writeBoolean(p == null);
+         if (p != null) {
+            out.writeInt(p.getX());
+            out.writeInt(p.getY());
+         }
+      }
+
+      // in board order, so that getMessages() comes back the same
+      out.writeInt(numPosted);
+      for (int i = 0; i < numPosted; i++) {
+         out.writeInt(boardOwner[i]);
+         writeString(out, board[i]);
+      }
+   }
+
+   /** Replace the changeable part of the state with one written by
+      writeKeyframe(). The state must be a fresh one from getInitState(),
+      made with the same seed and settings as the state that was written,
+      because delivered packages can't be brought back. */
+   void readKeyframe(DataInput in) throws IOException {
+      releaseSnapshots();
+      numPackages = in.readInt();
+      idleCount = in.readInt();
+      workCount = in.readInt();
+      pacCount = in.readInt();
+      messageCount = in.readInt();
+      totalMessageLength = in.readLong();
+      nonProductiveCount = in.readInt();
+
+      Arrays.fill(grid, EMPTY);
+      agentIndex = new GridIndex<PacAgentRep>(mapSize);
+      packageIndex = new GridIndex<Package>(mapSize);
+
+      int[] heldIds = new int[numAgents];
+      for (int i = 0; i < numAgents; i++) {
+         PacAgentRep arep = agentsByIndex[i];
+         arep.setX(in.readInt());
+         arep.setY(in.readInt());
+         arep.setBumped(in.readBoolean());
+         heldIds[i] = in.readInt();
+         arep.setHeldPackage(null);
+         arep.setMessage(null);
+      }
+
+      for (int i = 0; i < packages.size(); i++) {
+         Package p = packages.get(i);
+         if (in.readBoolean()) {
+            packages.set(i, null);
+            continue;
+         }
+         if (p == null)
+            throw new IOException("Package " + i + " was already delivered");
+         p.setX(in.readInt());
+         p.setY(in.readInt());
+         p.setAgent(null);
+         packageIndex.add(p, p.getX(), p.getY());
+         grid[p.getX() * mapSize + p.getY()] = packageCode(p);
+      }
+
+      // agents are placed after packages, as in getInitState()
+      for (int i = 0; i < numAgents; i++) {
+         PacAgentRep arep = agentsByIndex[i];
+         agentIndex.add(arep, arep.getX(), arep.getY());
+         grid[arep.getX() * mapSize + arep.getY()] = agentCode(arep);
+         if (heldIds[i] >= 0) {
+            Package p = packages.get(heldIds[i]);
+            arep.setHeldPackage(p);
+            p.setAgent(arep);
+         }
+      }
+
+      Arrays.fill(board, null);
+      Arrays.fill(boardPos, -1);
+      numPosted = 0;
+      messageSnapshot = null;
+      int posted = in.readInt();
+      for (int i = 0; i < posted; i++) {
+         int owner = in.readInt();
+         String s = readString(in);
+         agentsByIndex[owner].setMessage(s);
+         postMessage(owner, s);
+      }
+      messageSnapshot = null;
+   }
+
+   /** Write a string of any length (writeUTF() is limited to 64K bytes),
+      or null. */
+   static void writeString(DataOutput out, String s) throws IOException {
+      if (s == null) {
+         out.writeInt(-1);
+         return;
+      }
+      byte[] bytes = s.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+
+   static String readString(DataInput in) throws IOException {
+      int len = in.readInt();
+      if (len < 0)
+         return null;
+      byte[] bytes = new byte[len];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+   }
+
    /** Print an output of the state to the screen. */
    public void display() {
       if (gui != null)
@@ -401,8 +1062,16 @@ public class PackageState extends State {
       gui = pg;
    }
 
-   /** Returns the map. This is needed for the CustomPanel class. */
+   /** Returns a copy of the map, with an Agent or Package object (or null)
+      for each location. The state itself only keeps the compact grid, so
+      this builds a new array on every call; use getCellType() and
+      getObjectAt() when only a few locations are needed. */
    public Object[][] getMap() {
+      Object[][] map = new Object[mapSize][mapSize];
+      for (int x = 0; x < mapSize; x++)
+         for (int y = 0; y < mapSize; y++)
+            if (grid[x * mapSize + y] != EMPTY)
+               map[x][y] = getObjectAt(x, y);
       return map;
    }
 
@@ -0,0 +1,351 @@
+package pacworld;
+
+import agent.*;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Evaluates a package delivery agent over many seeds and world
+    configurations at once. Every run gets its own PackageWorld, its own
+    PackageState and its own random number generator, so the runs are
+    spread over a fork-join pool and a seed always gives the same world
+    no matter how many threads are used. The results are printed as a
+    CSV or JSON table, one row per run, in seed order. */
+public class PackageTournament {
+
+   /** The parameters of a world: number of agents, packages and
+      destinations, and the length of the world. */
+   public static class Config {
+
+      int numAgents;
+      int numPackages;
+      int numDestinations;
+      int worldSize;
+
+      public Config(int numAgents, int numPackages, int numDestinations,
+            int worldSize) {
+         this.numAgents = numAgents;
+         this.numPackages = numPackages;
+         this.numDestinations = numDestinations;
+         this.worldSize = worldSize;
+      }
+
+      /** Parse a configuration of the form
+         numAgents[,numPackages[,numDestinations[,worldSize]]]. Missing
+         values use the PackageWorld defaults. */
+      public static Config parse(String str) {
+         String[] parts = str.split(",");
+         Config c = new Config(PackageWorld.DEFAULT_NUM_AGENTS,
+               PackageWorld.DEFAULT_NUM_PACKAGES,
+               PackageWorld.DEFAULT_NUM_DESTINATIONS,
+               PackageWorld.DEFAULT_WORLD_SIZE);
+         if (parts.length > 0)
+            c.numAgents = Integer.parseInt(parts[0].trim());
+         if (parts.length > 1)
+            c.numPackages = Integer.parseInt(parts[1].trim());
+         if (parts.length > 2)
+            c.numDestinations = Integer.parseInt(parts[2].trim());
+         if (parts.length > 3)
+            c.worldSize = Integer.parseInt(parts[3].trim());
+         if (c.numDestinations > PackageWorld.MAX_NUM_DESTINATIONS)
+            throw new IllegalArgumentException("A maximum of " +
+                  PackageWorld.MAX_NUM_DESTINATIONS +
+                  " destinations are allowed.");
+         return c;
+      }
+
+      public String toString() {
+         return numAgents + "," + numPackages + "," + numDestinations +
+         "," + worldSize;
+      }
+   }
+
+   /** The outcome of a single simulation. */
+   public static class Result {
+
+      long seed;
+      Config config;
+      int performance;
+      int delivered;
+      int origNumPackages;
+      int turns;
+      long totalMessageLength;
+      long thinkTime;
+      String error;
+
+      public long getSeed() {
+         return seed;
+      }
+
+      public Config getConfig() {
+         return config;
+      }
+
+      public int getPerformance() {
+         return performance;
+      }
+
+      public int getDelivered() {
+         return delivered;
+      }
+
+      public int getOrigNumPackages() {
+         return origNumPackages;
+      }
+
+      public int getTurns() {
+         return turns;
+      }
+
+      /** Note, think time is wall clock time, so it is the one column
+         that is not reproducible from the seed. */
+      public long getThinkTime() {
+         return thinkTime;
+      }
+
+      /** Returns a description of the exception that ended the run, or
+         null if the simulation ran to completion. */
+      public String getError() {
+         return error;
+      }
+
+      public static String getCSVHeader() {
+         return "seed,numAgents,numPackages,numDestinations,worldSize," +
+         "performance,delivered,turns,messageLength,thinkTime,error";
+      }
+
+      public String toCSV() {
+         return seed + "," + config + "," + performance + "," + delivered +
+         "," + turns + "," + totalMessageLength + "," + thinkTime + "," +
+         (error == null ? "" : "\"" + error.replace("\"", "'") + "\"");
+      }
+
+      public String toJSON() {
+         return "{\"seed\": " + seed +
+         ", \"numAgents\": " + config.numAgents +
+         ", \"numPackages\": " + config.numPackages +
+         ", \"numDestinations\": " + config.numDestinations +
+         ", \"worldSize\": " + config.worldSize +
+         ", \"performance\": " + performance +
+         ", \"delivered\": " + delivered +
+         ", \"turns\": " + turns +
+         ", \"messageLength\": " + totalMessageLength +
+         ", \"thinkTime\": " + thinkTime +
+         ", \"error\": " + (error == null ? "null" :
+            "\"" + error.replace("\\", "\\\\").replace("\"", "\\\"") + "\"") +
+         "}";
+      }
+   }
+
+   private Constructor<? extends Agent> agentConstructor;
+   private int numThreads;
+
+   /** Create a tournament for the given agent class. The class must have a
+      public constructor that takes an integer id. If numThreads is less
+      than one, all available processors are used. */
+   public PackageTournament(Class<? extends Agent> agentClass, int numThreads)
+      throws NoSuchMethodException {
+
+      agentConstructor = agentClass.getConstructor(int.class);
+      if (numThreads < 1)
+         numThreads = Runtime.getRuntime().availableProcessors();
+      this.numThreads = numThreads;
+   }
+
+   /** Run a single simulation to completion in batch mode and return its
+      result. This is safe to call from several threads at once. If an
+      agent throws an exception, the run is stopped and the result records
+      the error along with the score at the time it happened. Errors such
+      as a StackOverflowError in an agent are recorded the same way, and
+      so is an exception thrown by an agent's constructor, in a result
+      with nothing but the error. */
+   public Result runOne(long seed, Config config) throws Exception {
+
+      Result r = new Result();
+      r.seed = seed;
+      r.config = config;
+      PackageWorld world = new PackageWorld();
+      world.setNumPackages(config.numPackages);
+      world.setNumDestinations(config.numDestinations);
+      world.setWorldSize(config.worldSize);
+      try {
+         for (int i = 0; i < config.numAgents; i++)
+            world.addAgent(agentConstructor.newInstance(i));
+      } catch (InvocationTargetException ex) {
+         r.error = ex.getCause().toString();
+         return r;
+      }
+
+      PackageState initState = PackageState.getInitState(seed,
+            world.getAgents(), config.numPackages, config.numDestinations,
+            config.worldSize);
+      try {
+         world.start(initState);
+      } catch (Throwable ex) {
+         // PackageWorld.think() rethrows whatever the agent threw
+         r.error = ex.toString();
+      }
+
+      r.performance = world.getTeamPerformanceMeasure();
+      r.delivered = world.getNumDelivered();
+      r.origNumPackages = initState.getOrigNumPackages();
+      r.turns = world.getNumTurns();
+      r.totalMessageLength = initState.getTotalMessageLength();
+      r.thinkTime = world.getThinkTime();
+      return r;
+   }
+
+   /** Run every seed in [firstSeed, firstSeed + numSeeds) against every
+      configuration. The results are returned ordered by configuration and
+      then by seed, regardless of the order in which the runs finished. A
+      run that fails outside of runOne()'s own error handling is returned
+      with only its error, so one run never loses the others. */
+   public List<Result> run(long firstSeed, int numSeeds, List<Config> configs)
+      throws InterruptedException {
+
+      boolean oldBatch = PackageWorld.isBatch();
+      PackageWorld.setBatch(true);
+
+      List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+      for (final Config c : configs) {
+         for (int i = 0; i < numSeeds; i++) {
+            final long seed = firstSeed + i;
+            tasks.add(new Callable<Result>() {
+               public Result call() throws Exception {
+                  return runOne(seed, c);
+               }
+            });
+         }
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(numThreads);
+      List<Result> results = new ArrayList<Result>(tasks.size());
+      try {
+         List<Future<Result>> futures = pool.invokeAll(tasks);
+         for (int i = 0; i < futures.size(); i++) {
+            try {
+               results.add(futures.get(i).get());
+            } catch (ExecutionException ex) {
+               Result r = new Result();
+               r.seed = firstSeed + i % numSeeds;
+               r.config = configs.get(i / numSeeds);
+               r.error = ex.getCause().toString();
+               results.add(r);
+            }
+         }
+      }
+      finally {
+         pool.shutdown();
+         PackageWorld.setBatch(oldBatch);
+      }
+      return results;
+   }
+
+   /** Print a table of results in either "csv" or "json" format. */
+   public static void printResults(List<Result> results, String format,
+         PrintStream out) {
+
+      if (format.equals("json")) {
+         out.println("[");
+         for (int i = 0; i < results.size(); i++) {
+            out.print("  " + results.get(i).toJSON());
+            if (i < results.size() - 1)
+               out.print(",");
+            out.println();
+         }
+         out.println("]");
+      }
+      else {
+         out.println(Result.getCSVHeader());
+         for (Result r : results)
+            out.println(r.toCSV());
+      }
+   }
+
+   /** Runs the tournament. The usage is:
+    * <pre>
+    * java pacworld.PackageTournament [-threads n] [-seeds first count]
+    *    [-json] [-verbose] agentpack [config ...]
+    * </pre>
+    * Each config has the form numAgents,numPackages,numDestinations,worldSize.
+    * If no config is given, the PackageWorld defaults are used. Unless
+    * -verbose is given, anything the agents print to System.out is
+    * discarded while the tournament runs. */
+   public static void main(String[] args) {
+
+      int numThreads = 0;
+      long firstSeed = 0;
+      int numSeeds = 10;
+      String format = "csv";
+      boolean verbose = false;
+      Class<? extends Agent> agentClass = null;
+      List<Config> configs = new ArrayList<Config>();
+      String usage = "Usage: java pacworld.PackageTournament [-threads n] " +
+      "[-seeds first count] [-json] [-verbose] agentpack [config ...]";
+
+      try {
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads"))
+               numThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seeds")) {
+               firstSeed = Long.parseLong(args[++i]);
+               numSeeds = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-json"))
+               format = "json";
+            else if (args[i].equals("-verbose"))
+               verbose = true;
+            else if (agentClass == null) {
+               String agentName = args[i] + ".PacAgent";
+               try {
+                  ClassLoader myClassLoader = ClassLoader.getSystemClassLoader();
+                  agentClass = myClassLoader.loadClass(agentName).asSubclass(Agent.class);
+               } catch (Exception ex) {
+                  System.err.println("ERROR: Loading class " + agentName);
+                  System.exit(1);
+               }
+            }
+            else
+               configs.add(Config.parse(args[i]));
+         }
+      } catch (RuntimeException ex) {
+         System.err.println("ERROR: " + ex.getMessage());
+         System.err.println(usage);
+         System.exit(1);
+      }
+      if (agentClass == null) {
+         System.err.println(usage);
+         System.exit(1);
+      }
+      if (configs.isEmpty())
+         configs.add(Config.parse(String.valueOf(PackageWorld.DEFAULT_NUM_AGENTS)));
+
+      PrintStream console = System.out;
+      List<Result> results = null;
+      try {
+         PackageTournament tournament = new PackageTournament(agentClass, numThreads);
+         if (!verbose)
+            System.setOut(new PrintStream(new OutputStream() {
+               public void write(int b) {
+               }
+               public void write(byte[] b, int off, int len) {
+               }
+            }));
+         results = tournament.run(firstSeed, numSeeds, configs);
+      } catch (Exception ex) {
+         System.setOut(console);
+         System.err.println("ERROR - Running tournament");
+         ex.printStackTrace();
+         System.exit(1);
+      }
+      System.setOut(console);
+      printResults(results, format, console);
+   }
+}
@@ -7,7 +7,15 @@ package pacworld;
 import agent.*;
 
 import java.util.List;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.swing.JOptionPane;
 import java.io.*;
 import java.lang.reflect.Constructor;
@@ -15,9 +23,9 @@ import java.lang.reflect.Constructor;
 /** A simulator for the package delivery world environment. */
 public class PackageWorld extends Environment{
 
-   /** The number of milliseconds used by agents to process percepts and
+   /** The number of nanoseconds used by agents to process percepts and
       choose actions. */
-   protected long thinkTime = 0;
+   protected long thinkNanos = 0;
 
    public static int DEFAULT_NUM_AGENTS = 4;
 
@@ -38,8 +46,9 @@ public class PackageWorld extends Environment{
 
    // protected boolean logActions = false;
    
-   // note, actLog must be static for PacTest
-   public static PrintStream actLog = null;
+   /** Where the action log is written. Each world has its own log, so that
+      several simulations can run at the same time. */
+   protected PrintStream actLog = null;
    
    public PackageWorld() {
       super();
@@ -96,7 +105,7 @@ public class PackageWorld extends Environment{
       str += "\nTotal message length: ";
       str += s.getTotalMessageLength();
       str += "\nTotal think time (ms): ";
-      str += thinkTime;
+      str += getThinkTime();
        */
       str += "\n\nPerformance Measure: ";
       str += perf;
@@ -148,7 +157,7 @@ public class PackageWorld extends Environment{
       delivered = s.getOrigNumPackages() - s.getNumPackages();
       avgEffort = (float)count /  delivered;
       msgLengthPerTurn = (float)s.getTotalMessageLength() / count;
-      thinkPerTurn = (float)thinkTime / count;
+      thinkPerTurn = (float)thinkNanos / 1000000 / count;
 
       int perf = (int)(((float)delivered / s.getOrigNumPackages() * 1000) - 
             (avgEffort * 2) - (msgLengthPerTurn / 100) - thinkPerTurn);
@@ -166,6 +175,18 @@ public class PackageWorld extends Environment{
       if (state instanceof PackageState) {
          PackageState s = (PackageState) state;
          // PacAgentRep agt = (PacAgentRep) a;
+         // an agent that is still thinking about an earlier turn may be
+         // reading its pooled percept, so it must not be refilled
+         if (pooledPercepts && !isThinking(agt)) {
+            p = percepts.get(agt);
+            if (p == null) {
+               p = new PacPercept(s, agt, true);
+               percepts.put(agt, p);
+            }
+            else
+               p.update(s, agt);
+            return p;
+         }
          p = new PacPercept(s, agt);
          // System.out.println("Percept: " + p.toString());
          return p;
@@ -181,6 +202,123 @@ public class PackageWorld extends Environment{
 
       super.updateState(a, action);
       count++;
+      if (replay != null) {
+         PackageState s = (PackageState)state;
+         try {
+            replay.record(s.getAgentRep(a).index, action, s);
+         } catch (IOException e) {
+            System.err.println("ERROR writing replay: " + e.getMessage());
+            replay = null;
+         }
+      }
+   }
+
+   /** Record every turn of the simulation to a replay file (see
+      ReplayWriter). The writer must have been created with the settings
+      and the seed of the state the simulation starts from. Pass null to
+      stop recording. The world does not close the writer. */
+   public void setReplay(ReplayWriter replay) {
+      this.replay = replay;
+   }
+
+   /** Turn pooled percepts on or off. When on, each agent gets the same
+      PacPercept object on every turn, refilled in place, so that long
+      batch runs produce almost no garbage. Agents must then not keep the
+      percept, its arrays or its VisibleAgent/VisiblePackage objects from
+      one turn to the next, because they will be overwritten. */
+   public void setPooledPercepts(boolean pooled) {
+      pooledPercepts = pooled;
+      percepts.clear();
+   }
+
+   /** Return the number of turns taken so far. */
+   public int getNumTurns() {
+      return count;
+   }
+
+   /** Return the number of packages delivered so far. */
+   public int getNumDelivered() {
+      PackageState s = (PackageState)state;
+      return s.getOrigNumPackages() - s.getNumPackages();
+   }
+
+   /** Return the total number of milliseconds the agents have spent
+      thinking. */
+   public long getThinkTime() {
+      return thinkNanos / 1000000;
+   }
+
+   /** Set the number of milliseconds an agent has to see its percept and
+      select an action. An agent that misses the deadline is left to
+      finish on its own thread and does nothing (Idle) for that turn.
+      Agents are not thread-safe, so an agent is not given another turn
+      until the late call returns: a hung agent does nothing on every turn
+      until then, and its late action is discarded. A deadline of 0, the
+      default, means agents can take as long as they like. */
+   public void setThinkDeadline(long millis) {
+      thinkDeadline = millis;
+   }
+
+   /** Returns the per-turn think time deadline in milliseconds, or 0 if
+      there is none. */
+   public long getThinkDeadline() {
+      return thinkDeadline;
+   }
+
+   /** Return a histogram of the time the agent has spent thinking on each
+      of its turns. */
+   public synchronized LatencyHistogram getLatencies(Agent a) {
+      LatencyHistogram h = latencies.get(a);
+      if (h == null) {
+         h = new LatencyHistogram();
+         latencies.put(a, h);
+      }
+      return h;
+   }
+
+   /** Return the number of turns on which the agent missed the think time
+      deadline. */
+   public synchronized int getMissedDeadlines(Agent a) {
+      Integer missed = missedDeadlines.get(a);
+      return missed == null ? 0 : missed;
+   }
+
+   /** Returns a string with the median, 99th percentile and maximum think
+      time of each agent, in milliseconds, and the number of deadlines each
+      agent missed. */
+   public String getLatencyMsg() {
+
+      String str = "Think time per turn (ms):  p50 / p99 / max";
+      for (int i=0; i < getNumAgents(); i++) {
+         Agent a = agents.get(i);
+         LatencyHistogram h = getLatencies(a);
+         str += "\n" + a.getId() + ": " + formatMillis(h.getPercentile(50)) +
+            " / " + formatMillis(h.getPercentile(99)) + " / " +
+            formatMillis(h.getMax());
+         if (thinkDeadline > 0)
+            str += "  (missed " + getMissedDeadlines(a) + " deadlines)";
+      }
+      return str;
+   }
+
+   private static String formatMillis(long nanos) {
+      return String.format("%.3f", nanos / 1000000.0);
+   }
+
+   /** Set the number of packages used when the world creates its state. */
+   public void setNumPackages(int numPackages) {
+      this.numPackages = numPackages;
+   }
+
+   /** Set the number of destinations used when the world creates its 
+      state. */
+   public void setNumDestinations(int numDestinations) {
+      this.numDestinations = numDestinations;
+   }
+
+   /** Set the length (and width) of the world. */
+   public void setWorldSize(int worldSize) {
+      this.worldSize = worldSize;
    }
 
    /** Return the size of the grid for the environment. */
@@ -206,14 +344,13 @@ public class PackageWorld extends Environment{
       Percept p;
       Action action;
       Agent a;
-      Date d1, d2;
 
       state = initState;
       state.display();
 
       while (!isComplete()) {
          // if neither step nor run was pressed, wait
-         while(!pg.step() && !pg.run()) {
+         while(!batch && !pg.step() && !pg.run()) {
             try {
                 Thread.sleep(10);
             } catch (InterruptedException e) {
@@ -221,39 +358,189 @@ public class PackageWorld extends Environment{
             }
         }
          
-         PackageState s = (PackageState)state;
-         // s.printState();
-         for (int i=0; i < getNumAgents(); i++) {
-            a = agents.get(i);
-            p = getPercept(a);
-            // ((PacPercept)p).printPercept();
-            d1 = new Date();
-            a.see(p);
-            action = a.selectAction();
-            d2 = new Date();
-            thinkTime += (d2.getTime() - d1.getTime());
-            logMessage("Agent " + a.getId() + ": Action = " + action);
-            // logMessage("Total think time= " + thinkTime + "ms");
-
-            if (action == null) {
-               logMessage("\t" + "Substituting Idle() for null action");
-               action = new Idle();
-            }
-            updateState(a, action);
+         if (executor != null) {
+            // all agents act at once
+            runSimultaneousRound();
             state.display();
-            try {
-               Thread.sleep(pg.getDelay());
-               // Thread.sleep(100);
-            }
-            catch (InterruptedException ie) {
-               ie.printStackTrace();
+            pause();
+         }
+         else {
+            // s.printState();
+            for (int i=0; i < getNumAgents(); i++) {
+               a = agents.get(i);
+               p = getPercept(a);
+               // ((PacPercept)p).printPercept();
+               action = checkAction(a, think(a, p));
+               updateState(a, action);
+               state.display();
+               pause();
             }
          }
-         pg.setStep(false);    // after completing a step, turn step off
+         if (!batch)
+            pg.setStep(false);    // after completing a step, turn step off
          logMessage("");
       }
    }
 
+   /** Give an agent its percept, have it select an action, and add the
+      time it took to the total think time. If there is a think time
+      deadline, the agent thinks on a worker thread, and if it misses the
+      deadline this returns null, so that Idle() is substituted. The same
+      happens without calling the agent while it is still thinking about
+      an earlier turn. */
+   protected Action think(final Agent a, final Percept p) {
+
+      Action action;
+      long start = System.nanoTime();
+      if (thinkDeadline > 0) {
+         if (isThinking(a)) {
+            logMessage("\t" + "Agent " + a.getId() +
+                  " is still thinking about an earlier turn");
+            synchronized (this) {
+               missedDeadlines.put(a, getMissedDeadlines(a) + 1);
+            }
+            return null;
+         }
+         Future<Action> decision = getThinkExecutor().submit(new Callable<Action>() {
+            public Action call() {
+               return PackageWorld.super.think(a, p);
+            }
+         });
+         try {
+            action = decision.get(thinkDeadline, TimeUnit.MILLISECONDS);
+         } catch (TimeoutException e) {
+            // The call is not cancelled: agents don't respond to
+            // interrupts, and a cancelled Future is done even though the
+            // agent is still running
+            synchronized (this) {
+               pendingDecisions.put(a, decision);
+               missedDeadlines.put(a, getMissedDeadlines(a) + 1);
+            }
+            logMessage("\t" + "Agent " + a.getId() + " missed the " +
+                  thinkDeadline + "ms deadline");
+            action = null;
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            action = null;
+         } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+               throw (RuntimeException)e.getCause();
+            if (e.getCause() instanceof Error)
+               throw (Error)e.getCause();
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      else
+         action = super.think(a, p);
+      long elapsed = System.nanoTime() - start;
+
+      // agents may think at the same time in simultaneous mode
+      synchronized (this) {
+         thinkNanos += elapsed;
+      }
+      getLatencies(a).record(elapsed);
+      return action;
+   }
+
+   /** Returns true if the agent missed a deadline and has not yet
+      returned from that call. */
+   protected synchronized boolean isThinking(Agent a) {
+      Future<Action> decision = pendingDecisions.get(a);
+      if (decision == null)
+         return false;
+      if (!decision.isDone())
+         return true;
+      pendingDecisions.remove(a);
+      return false;
+   }
+
+   /** Returns the pool of worker threads used to enforce the think time
+      deadline. A thread whose agent missed the deadline may still be
+      busy, so the pool creates new threads as needed. The threads are
+      daemons, so a hung agent does not keep the program running. */
+   protected synchronized ExecutorService getThinkExecutor() {
+      if (thinkExecutor == null) {
+         thinkExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "PackageWorld-think");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return thinkExecutor;
+   }
+
+   /** Log the action selected by an agent and substitute Idle() if the
+      agent did not select one. */
+   protected Action checkAction(Agent a, Action action) {
+
+      logMessage("Agent " + a.getId() + ": Action = " + action);
+      // logMessage("Total think time= " + thinkTime + "ms");
+
+      if (action == null) {
+         logMessage("\t" + "Substituting Idle() for null action");
+         action = new Idle();
+      }
+      return action;
+   }
+
+   /** Apply the actions chosen in a simultaneous round. If two or more
+      agents try to move themselves or their packages into the same
+      location, none of them moves and they all feel a bump. The other
+      actions are applied in the order of the agents, so if several agents
+      try to pick up the same package, the first of them gets it and the
+      others' Pickup actions fail as they would in a turn-taking run. */
+   protected void resolveActions(Action[] actions) {
+
+      PackageState s = (PackageState)state;
+      int n = actions.length;
+
+      // count the number of moves that claim each location
+      int[][] moveCells = new int[n][];
+      HashMap<Integer,Integer> claims = new HashMap<Integer,Integer>();
+      for (int i=0; i < n; i++) {
+         actions[i] = checkAction(agents.get(i), actions[i]);
+         if (actions[i] instanceof Move) {
+            moveCells[i] = ((Move)actions[i]).getTargetCells(agents.get(i), s);
+            for (int j=0; j < moveCells[i].length; j++) {
+               Integer c = moveCells[i][j];
+               Integer num = claims.get(c);
+               claims.put(c, num == null ? 1 : num + 1);
+            }
+         }
+      }
+
+      for (int i=0; i < n; i++) {
+         Agent a = agents.get(i);
+         Action action = actions[i];
+         if (moveCells[i] != null) {
+            for (int j=0; j < moveCells[i].length; j++) {
+               if (claims.get(moveCells[i][j]) > 1) {
+                  logMessage("\t" + "Agent " + a.getId() + " collided with another agent");
+                  action = ((Move)action).collide();
+                  break;
+               }
+            }
+         }
+         updateState(a, action);
+      }
+   }
+
+   /** Wait between turns so that the GUI can be watched. In batch mode
+      there is nobody watching, so the simulation runs at full speed. */
+   private void pause() {
+      if (!batch) {
+         try {
+            Thread.sleep(pg.getDelay());
+            // Thread.sleep(100);
+         }
+         catch (InterruptedException ie) {
+            ie.printStackTrace();
+         }
+      }
+   }
+
    /** Outputs a message to the log and the GUI. */
    public void logMessage(String message) {
       if (actLog != null)
@@ -262,7 +549,20 @@ public class PackageWorld extends Environment{
        else
          System.out.println(message);
          */
-      pg.addToActionLog(message);
+      if (pg != null)
+         pg.addToActionLog(message);
+   }
+
+   /** Is the simulation being run in batch mode? */
+   public static boolean isBatch() {
+      return batch;
+   }
+
+   /** Turn batch mode on or off. In batch mode the simulation does not
+      build a GUI, does not wait for the step or run buttons, does not
+      pause between turns and does not display a summary dialog window. */
+   public static void setBatch(boolean b) {
+      batch = b;
    }
    
  
@@ -275,17 +575,41 @@ public class PackageWorld extends Environment{
       int numAgents = DEFAULT_NUM_AGENTS;
       boolean useSeed = false;
       long seed = 0;
+      String replayFile = null;
       
       world = new PackageWorld();
       world.count = 0;
 
       int pos = 0;
-      if (args.length > 2) {
-         if (args[0].equals("-rand")) {
+      while (args.length > pos && args[pos].startsWith("-")) {
+         if (args[pos].equals("-batch")) {
+            batch = true;
+            pos++;
+         }
+         else if (args[pos].equals("-pooled")) {
+            world.setPooledPercepts(true);
+            pos++;
+         }
+         else if (args[pos].equals("-deadline") && args.length > pos + 1) {
+            world.setThinkDeadline(Long.parseLong(args[pos + 1]));
+            pos += 2;
+         }
+         else if (args[pos].equals("-simultaneous") && args.length > pos + 1) {
+            int numThreads = Integer.parseInt(args[pos + 1]);
+            world.setSimultaneous(Executors.newFixedThreadPool(numThreads));
+            pos += 2;
+         }
+         else if (args[pos].equals("-rand") && args.length > pos + 1) {
             useSeed = true;
-            seed = Integer.parseInt(args[1]);
-            pos = 2;
+            seed = Integer.parseInt(args[pos + 1]);
+            pos += 2;
          }
+         else if (args[pos].equals("-replay") && args.length > pos + 1) {
+            replayFile = args[pos + 1];
+            pos += 2;
+         }
+         else
+            break;
       }
       if (args.length > pos) {
         	String agentName = null;
@@ -300,7 +624,7 @@ public class PackageWorld extends Environment{
       	}      	
       }
       else {
-      	System.err.println("Usage: java PackageWorld [-rand seed] agentClass [numAgents] [numPackages] [numDestinations] [worldSize]");
+      	System.err.println("Usage: java PackageWorld [-batch] [-pooled] [-simultaneous threads] [-deadline ms] [-rand seed] [-replay file] agentClass [numAgents] [numPackages] [numDestinations] [worldSize]");
       }
       if (args.length > pos) {
          numAgents = Integer.parseInt(args[pos++]);
@@ -320,7 +644,7 @@ public class PackageWorld extends Environment{
          world.worldSize = Integer.parseInt(args[pos++]);
       }
       if (args.length > pos){
-         System.out.println("Usage: java pacworld.PackageWorld [-rand seed] agentClass [numAgents] [numPackages] [numDestinations] [worldSize]");
+         System.out.println("Usage: java pacworld.PackageWorld [-batch] [-pooled] [-simultaneous threads] [-deadline ms] [-rand seed] [-replay file] agentClass [numAgents] [numPackages] [numDestinations] [worldSize]");
          System.exit(1);
       }
 
@@ -339,28 +663,89 @@ public class PackageWorld extends Environment{
       	System.err.println("ERROR - Attempting to instantiate agents");
       	System.exit(1);
       }
+      // a replay can only be played back from a known seed
+      if (replayFile != null && useSeed == false) {
+         useSeed = true;
+         seed = System.nanoTime();
+      }
       if (useSeed == false)
          initState = PackageState.getInitState(world.getAgents(), world.numPackages,
                                              world.numDestinations, world.worldSize);
       else
          initState = PackageState.getInitState(seed, world.getAgents(), world.numPackages,
                                              world.numDestinations, world.worldSize);
+      ReplayWriter replay = null;
+      if (replayFile != null) {
+         try {
+            replay = new ReplayWriter(new File(replayFile), seed, numAgents,
+                  world.numPackages, world.numDestinations, world.worldSize,
+                  ReplayWriter.DEFAULT_KEYFRAME_INTERVAL);
+            world.setReplay(replay);
+         } catch (IOException e) {
+            System.err.println("ERROR - Creating replay file " + replayFile);
+            System.exit(1);
+         }
+      }
          
+      if (batch) {
+         // no GUI at all: run at CPU speed and report the score on the console
+         world.start(initState);
+         closeReplay(replay);
+         System.out.println(world.getScoreMsg());
+         System.out.println();
+         System.out.println(world.getLatencyMsg());
+         System.exit(0);
+      }
+
       PacGUI pg = new PacGUI(world);
       pg.setDefaultCloseOperation(javax.swing.JFrame.EXIT_ON_CLOSE);
       world.setGUI(pg);
       initState.setGUI(pg);
 
       world.start(initState);
+      closeReplay(replay);
       world.pg.dispose();
       System.exit(0);
    }
 
+   private static void closeReplay(ReplayWriter replay) {
+      if (replay == null)
+         return;
+      try {
+         replay.close();
+      } catch (IOException e) {
+         System.err.println("ERROR writing replay: " + e.getMessage());
+      }
+   }
+
    /** The GUI that displays the current world */
    public PacGUI pg = null;
    
    protected PackageState initState = null;
 
+   /** The think time deadline in milliseconds, or 0 for none. */
+   protected long thinkDeadline = 0;
+
+   /** Worker threads used to enforce the think time deadline. */
+   protected ExecutorService thinkExecutor = null;
+
+   /** Think time histograms and missed deadline counts for each agent. */
+   protected HashMap<Agent,LatencyHistogram> latencies = new HashMap<Agent,LatencyHistogram>();
+   protected HashMap<Agent,Integer> missedDeadlines = new HashMap<Agent,Integer>();
+
+   /** The calls of agents that missed the deadline and are still
+      thinking. */
+   protected HashMap<Agent,Future<Action>> pendingDecisions = new HashMap<Agent,Future<Action>>();
+
+   /** Where the turns are recorded, or null if they aren't. */
+   protected ReplayWriter replay = null;
+
+   /** Reuse one percept per agent? See setPooledPercepts(). */
+   protected boolean pooledPercepts = false;
+
+   /** The percept of each agent when percepts are pooled. */
+   protected HashMap<Agent,PacPercept> percepts = new HashMap<Agent,PacPercept>();
+
    /** The number of turns (each agent's sense/act pair is a turn) */
    protected int count;
 
@@ -372,7 +757,8 @@ public class PackageWorld extends Environment{
    protected float thinkPerTurn;
 
    /** Run in batch mode? If true, then simulation automatically runs when
-      started and doesn't display a summary dialog window. */
+      started, never builds or waits on a GUI, and doesn't display a summary
+      dialog window. */
    protected static boolean batch = false;
 
 }
@@ -0,0 +1,651 @@
+package pacworld;
+
+import java.util.Arrays;
+import java.util.List;
+
+/** Finds the way around obstacles for a package world agent. The planner
+    keeps a map of the cells the agent has seen agents and packages in,
+    built from its percepts (see update()). For every destination it
+    learns about, it keeps a breadth-first distance field: the number of
+    moves from each cell to the destination around the known obstacles.
+    The field is computed once when the destination is first seen, and
+    is repaired, rather than recomputed, where obstacles appear or go
+    away. So the next move towards a destination takes a few array
+    lookups (see nextDirection()), however far away the destination is.
+    Packages aren't worth a field of their own, since they move and there
+    are many of them, so directionTo() does an A* search instead.
+    <p>
+    Like an OccupancyMap, the planner splits the world into square chunks
+    and only allocates the chunks it needs, so its memory grows with the
+    part of the world the agent has explored. Cells that haven't been
+    seen are free, so a distance in a field is the straight (Manhattan)
+    distance until a known obstacle gets in the way, and a field only
+    allocates the chunks where the obstacles have made a difference. The
+    work space of the searches is allocated where they go.
+    <p>
+    The agent itself and the package it holds are never obstacles on its
+    own map. A planner belongs to one agent and is not thread safe. An
+    agent might use it like this:
+    <pre>
+    public void see(Percept p) {
+       percept = (PacPercept)p;
+       if (planner == null)
+          planner = new PathPlanner(percept.getWorldSize());
+       planner.update(percept, getId());
+    }
+    </pre> */
+public class PathPlanner {
+
+   /** The distance to a destination that can't be reached. */
+   public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+   /** The most destinations a world can have. */
+   public static final int MAX_DESTINATIONS = PackageWorld.MAX_NUM_DESTINATIONS;
+
+   /* A cell is numbered by its chunk and its place in the chunk, so
+      that cell >>> CHUNK_SHIFT is the chunk and cell & CELL_MASK is the
+      place. A chunk is numbered (chunk x << chunkYBits) | chunk y, see
+      cellOf(). */
+   private static final int CHUNK_BITS = OccupancyMap.CHUNK_BITS;
+   private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+   private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+   private static final int CHUNK_SHIFT = 2 * CHUNK_BITS;
+   private static final int CHUNK_CELLS = 1 << CHUNK_SHIFT;
+   private static final int CELL_MASK = CHUNK_CELLS - 1;
+
+   /** An int for every cell, kept in chunks that are only allocated when
+      one of their cells is set to something other than its default. */
+   private class Cells {
+      int[][] chunks = new int[numChunkSlots][];
+      int numChunks = 0;
+
+      /** Return the value of a cell that hasn't been set. */
+      int defaultValue(int cell) {
+         return 0;
+      }
+
+      int get(int cell) {
+         int[] chunk = chunks[cell >>> CHUNK_SHIFT];
+         return chunk == null ? defaultValue(cell) : chunk[cell & CELL_MASK];
+      }
+
+      void set(int cell, int value) {
+         int[] chunk = chunks[cell >>> CHUNK_SHIFT];
+         if (chunk == null) {
+            if (value == defaultValue(cell))
+               return;
+            chunk = new int[CHUNK_CELLS];
+            int first = cell & ~CELL_MASK;
+            for (int i = 0; i < CHUNK_CELLS; i++)
+               chunk[i] = defaultValue(first | i);
+            chunks[cell >>> CHUNK_SHIFT] = chunk;
+            numChunks++;
+         }
+         chunk[cell & CELL_MASK] = value;
+      }
+
+      void clear() {
+         Arrays.fill(chunks, null);
+         numChunks = 0;
+      }
+
+      long getMemoryBytes() {
+         return 16 + chunks.length * 4L + numChunks * (16 + CHUNK_CELLS * 4L);
+      }
+   }
+
+   /** The distance field of a destination. A cell's default is its
+      distance to the destination without obstacles. */
+   private class Field extends Cells {
+      int destX;
+      int destY;
+
+      Field(int destX, int destY) {
+         this.destX = destX;
+         this.destY = destY;
+      }
+
+      int defaultValue(int cell) {
+         return Math.abs(xOf(cell) - destX) + Math.abs(yOf(cell) - destY);
+      }
+   }
+
+   private int size;
+   private int chunkYBits;
+   private int numChunkSlots;
+   /* A bit for every cell, only allocated for chunks with obstacles */
+   private long[][] blocked;
+   private int numBlockedChunks = 0;
+   private int numDests = 0;
+   private int[] destCells = new int[MAX_DESTINATIONS];
+   private Field[] fields = new Field[MAX_DESTINATIONS];
+
+   /* The cells an agent can see, see PacPercept.inRange(). */
+   private static final int VIEW_SIZE = 9;
+   private boolean[] view = new boolean[VIEW_SIZE * VIEW_SIZE];
+
+   /* Work space for the searches, kept so that repairs don't allocate.
+      A cell is in the current search if its mark is the current stamp.
+      The queues grow as needed. After a search that spread over more
+      than MAX_WORK_CHUNKS chunks, the work space is released, so that a
+      long search doesn't keep its memory. */
+   private static final int MAX_WORK_CHUNKS = 64;
+   private int[] queue = new int[256];
+   private Cells marks;
+   private int stamp = 0;
+   private int[] invalid = new int[256];
+   /* For each cell reached by directionTo(), the cost of the best path
+      to it so far << 2 | the first direction of that path */
+   private Cells paths;
+   private long[] heap = new long[256];
+   private int heapSize;
+
+   /* Counts the cells visited by searches and repairs, see getWork(). */
+   private long work = 0;
+
+   /** Create a planner for a world of the given length, with no known
+      obstacles or destinations. */
+   public PathPlanner(int worldSize) {
+      if (worldSize < 1)
+         throw new IllegalArgumentException("Bad world size: " + worldSize);
+      size = worldSize;
+      int chunksPerSide = (size + CHUNK_SIZE - 1) >> CHUNK_BITS;
+      while ((1 << chunkYBits) < chunksPerSide)
+         chunkYBits++;
+      numChunkSlots = chunksPerSide << chunkYBits;
+      blocked = new long[numChunkSlots][];
+      marks = new Cells();
+      paths = new Cells();
+   }
+
+   /** Learn what the agent with the given id can see: the destinations of
+      the visible packages, and which cells in its view are free or taken
+      by other agents and packages. Cells outside the view keep whatever
+      was last seen in them. */
+   public void update(PacPercept percept, String selfId) {
+
+      List<VisibleAgent> agents = percept.getVisAgentList();
+      VisibleAgent self = null;
+      for (int i = 0; i < agents.size(); i++)
+         if (agents.get(i).getId().equals(selfId))
+            self = agents.get(i);
+      if (self == null)
+         throw new IllegalArgumentException("Agent " + selfId + " isn't in its percept");
+
+      // note which cells of the view have obstacles, then go over it
+      int minX = self.getX() - 4;
+      int minY = self.getY() - 4;
+      Arrays.fill(view, false);
+      for (int i = 0; i < agents.size(); i++) {
+         VisibleAgent a = agents.get(i);
+         if (a != self)
+            view[(a.getX() - minX) * VIEW_SIZE + a.getY() - minY] = true;
+      }
+      List<VisiblePackage> packages = percept.getVisPackageList();
+      VisiblePackage held = percept.getHeldPackage();
+      for (int i = 0; i < packages.size(); i++) {
+         VisiblePackage p = packages.get(i);
+         addDestination(p.getDestX(), p.getDestY());
+         if (p != held)
+            view[(p.getX() - minX) * VIEW_SIZE + p.getY() - minY] = true;
+      }
+      for (int x = Math.max(minX, 0); x < Math.min(minX + VIEW_SIZE, size); x++)
+         for (int y = Math.max(minY, 0); y < Math.min(minY + VIEW_SIZE, size); y++)
+            setBlocked(x, y, view[(x - minX) * VIEW_SIZE + y - minY]);
+   }
+
+   /** Add a destination and compute its distance field, unless it is
+      already known. Returns the destination's index. */
+   public int addDestination(int x, int y) {
+      checkBounds(x, y);
+      int cell = cellOf(x, y);
+      for (int i = 0; i < numDests; i++)
+         if (destCells[i] == cell)
+            return i;
+      if (numDests == MAX_DESTINATIONS)
+         throw new IllegalStateException("More than " + MAX_DESTINATIONS + " destinations");
+
+      // start from the field without obstacles and put the known ones in
+      // its way one at a time. Until an obstacle is put in the way, it
+      // keeps its distance without obstacles and is never repaired, as if
+      // the field had another destination there that is that far away.
+      Field field = new Field(x, y);
+      for (int c = 0; c < blocked.length; c++) {
+         long[] bits = blocked[c];
+         if (bits == null)
+            continue;
+         for (int i = 0; i < CHUNK_CELLS; i++) {
+            int b = (c << CHUNK_SHIFT) | i;
+            if ((bits[i >> 6] & (1L << i)) != 0 && b != cell)
+               raise(field, b);
+         }
+      }
+      trimWorkSpace();
+      destCells[numDests] = cell;
+      fields[numDests] = field;
+      return numDests++;
+   }
+
+   /** Return the index of the destination at (x,y), or -1 if it isn't
+      known. */
+   public int getDestination(int x, int y) {
+      int cell = cellOf(x, y);
+      for (int i = 0; i < numDests; i++)
+         if (destCells[i] == cell)
+            return i;
+      return -1;
+   }
+
+   /** Return the number of known destinations. */
+   public int getNumDestinations() {
+      return numDests;
+   }
+
+   /** Return true if there is a known obstacle at (x,y). */
+   public boolean isBlocked(int x, int y) {
+      checkBounds(x, y);
+      return isBlocked(cellOf(x, y));
+   }
+
+   private boolean isBlocked(int cell) {
+      long[] bits = blocked[cell >>> CHUNK_SHIFT];
+      return bits != null && (bits[(cell & CELL_MASK) >> 6] & (1L << cell)) != 0;
+   }
+
+   /** Record that (x,y) has or no longer has an obstacle in it, and
+      repair the distance fields. A destination is never in the way of
+      its own field, since an agent only has to get next to it to drop a
+      package in it. */
+   public void setBlocked(int x, int y, boolean b) {
+      checkBounds(x, y);
+      int cell = cellOf(x, y);
+      if (isBlocked(cell) == b)
+         return;
+      long[] bits = blocked[cell >>> CHUNK_SHIFT];
+      if (bits == null) {
+         bits = new long[CHUNK_CELLS / 64];
+         blocked[cell >>> CHUNK_SHIFT] = bits;
+         numBlockedChunks++;
+      }
+      bits[(cell & CELL_MASK) >> 6] ^= 1L << cell;
+      for (int i = 0; i < numDests; i++) {
+         if (destCells[i] == cell)
+            continue;
+         if (b)
+            raise(fields[i], cell);
+         else
+            lower(fields[i], cell);
+      }
+      trimWorkSpace();
+   }
+
+   /** Repair a field after cell has become blocked. The cells whose
+      shortest paths all went through it lose their distances, one level
+      of the field at a time, and then get new ones from the cells around
+      them that kept theirs. */
+   private void raise(Field field, int cell) {
+
+      int old = field.get(cell);
+      field.set(cell, UNREACHABLE);
+      if (old == UNREACHABLE)
+         return;
+      invalid[0] = cell;
+      int numInvalid = 1;
+
+      // every cell in the queue is one further from the destination than
+      // the cells before it in the queue, or as far
+      int s = nextStamp();
+      int head = 0;
+      int tail = pushChildren(field, cell, old, s, 0);
+      while (head < tail) {
+         int u = queue[head++];
+         work++;
+         int du = field.get(u);
+         if (hasParent(field, u, du))
+            continue;
+         field.set(u, UNREACHABLE);
+         if (numInvalid == invalid.length)
+            invalid = Arrays.copyOf(invalid, numInvalid * 2);
+         invalid[numInvalid++] = u;
+         tail = pushChildren(field, u, du, s, tail);
+      }
+
+      // give the cells that lost their distances the best their
+      // neighbors can offer, then spread the new distances
+      s = nextStamp();
+      tail = 0;
+      if (queue.length < numInvalid)
+         queue = new int[Math.max(numInvalid, queue.length * 2)];
+      for (int i = 1; i < numInvalid; i++) {
+         int u = invalid[i];
+         int best = bestNeighbor(field, u);
+         if (best != UNREACHABLE) {
+            field.set(u, best + 1);
+            marks.set(u, s);
+            queue[tail++] = u;
+         }
+      }
+      relax(field, tail, s);
+   }
+
+   /** Repair a field after cell has stopped being blocked. */
+   private void lower(Field field, int cell) {
+      int best = bestNeighbor(field, cell);
+      if (best == UNREACHABLE)
+         return;
+      field.set(cell, best + 1);
+      int s = nextStamp();
+      marks.set(cell, s);
+      queue[0] = cell;
+      relax(field, 1, s);
+   }
+
+   /** Spread shorter distances from the cells in the first n places of
+      the queue until nothing gets shorter. A cell is in the queue at most
+      once at a time, since its mark is cleared when it is taken out. The
+      queue is used as a ring, which grows when it is full. */
+   private void relax(Field field, int n, int s) {
+      int head = 0;
+      while (n > 0) {
+         int u = queue[head];
+         head = head + 1 == queue.length ? 0 : head + 1;
+         n--;
+         marks.set(u, 0);
+         work++;
+         int ux = xOf(u);
+         int uy = yOf(u);
+         int du = field.get(u) + 1;
+         for (int d = 0; d < 4; d++) {
+            int vx = ux + Direction.DELTA_X[d];
+            int vy = uy + Direction.DELTA_Y[d];
+            if (vx < 0 || vx >= size || vy < 0 || vy >= size)
+               continue;
+            int v = cellOf(vx, vy);
+            if (!isBlocked(v) && du < field.get(v)) {
+               field.set(v, du);
+               if (marks.get(v) != s) {
+                  marks.set(v, s);
+                  if (n == queue.length) {
+                     // unroll the ring into a bigger queue
+                     int[] bigger = new int[n * 2];
+                     for (int i = 0; i < n; i++)
+                        bigger[i] = queue[(head + i) % n];
+                     queue = bigger;
+                     head = 0;
+                  }
+                  int t = head + n;
+                  queue[t >= queue.length ? t - queue.length : t] = v;
+                  n++;
+               }
+            }
+         }
+      }
+   }
+
+   /** Add to the queue, from place tail on, the free neighbors of u that
+      are one further than it from the destination. Returns the new
+      tail. */
+   private int pushChildren(Field field, int u, int du, int s, int tail) {
+      if (tail + 4 > queue.length)
+         queue = Arrays.copyOf(queue, queue.length * 2);
+      int ux = xOf(u);
+      int uy = yOf(u);
+      for (int d = 0; d < 4; d++) {
+         int vx = ux + Direction.DELTA_X[d];
+         int vy = uy + Direction.DELTA_Y[d];
+         if (vx < 0 || vx >= size || vy < 0 || vy >= size)
+            continue;
+         int v = cellOf(vx, vy);
+         if (!isBlocked(v) && field.get(v) == du + 1 && marks.get(v) != s) {
+            marks.set(v, s);
+            queue[tail++] = v;
+         }
+      }
+      return tail;
+   }
+
+   /** Return true if a neighbor of u is one closer to the destination. */
+   private boolean hasParent(Field field, int u, int du) {
+      int ux = xOf(u);
+      int uy = yOf(u);
+      for (int d = 0; d < 4; d++) {
+         int vx = ux + Direction.DELTA_X[d];
+         int vy = uy + Direction.DELTA_Y[d];
+         if (vx >= 0 && vx < size && vy >= 0 && vy < size &&
+               field.get(cellOf(vx, vy)) == du - 1)
+            return true;
+      }
+      return false;
+   }
+
+   /** Return the smallest distance of u's neighbors. Blocked cells are
+      unreachable, except for the destination. */
+   private int bestNeighbor(Field field, int u) {
+      int ux = xOf(u);
+      int uy = yOf(u);
+      int best = UNREACHABLE;
+      for (int d = 0; d < 4; d++) {
+         int vx = ux + Direction.DELTA_X[d];
+         int vy = uy + Direction.DELTA_Y[d];
+         if (vx >= 0 && vx < size && vy >= 0 && vy < size) {
+            int dist = field.get(cellOf(vx, vy));
+            if (dist < best)
+               best = dist;
+         }
+      }
+      return best;
+   }
+
+   /** Return the number of moves from (x,y) to the destination with the
+      given index, or UNREACHABLE. The distance from a blocked cell is
+      UNREACHABLE, unless it is the destination. */
+   public int getDistance(int dest, int x, int y) {
+      checkBounds(x, y);
+      return fields[dest].get(cellOf(x, y));
+   }
+
+   /** Return the direction an agent at (x,y) should move in to get closer
+      to the destination at (destX,destY), or -1 if none of its moves do.
+      If the agent holds a package at (packX,packY), the package has to
+      fit too; otherwise packX should be -1. The destination must be
+      known (see addDestination()). */
+   public int nextDirection(int destX, int destY, int x, int y,
+         int packX, int packY) {
+      int dest = getDestination(destX, destY);
+      if (dest < 0)
+         throw new IllegalArgumentException("Unknown destination (" + destX + "," + destY + ")");
+      Field field = fields[dest];
+      int best = -1;
+      int bestDist = field.get(cellOf(x, y));
+      for (int d = 0; d < 4; d++) {
+         int nx = x + Direction.DELTA_X[d];
+         int ny = y + Direction.DELTA_Y[d];
+         if (!canMove(x, y, packX, packY, d))
+            continue;
+         int dist = field.get(cellOf(nx, ny));
+         if (dist < bestDist) {
+            best = d;
+            bestDist = dist;
+         }
+      }
+      return best;
+   }
+
+   /** Return true if Move(dir) would move an agent at (x,y) holding a
+      package at (packX,packY), if any, into cells without known
+      obstacles. */
+   private boolean canMove(int x, int y, int packX, int packY, int dir) {
+      int nx = x + Direction.DELTA_X[dir];
+      int ny = y + Direction.DELTA_Y[dir];
+      if (nx < 0 || nx >= size || ny < 0 || ny >= size || isBlocked(cellOf(nx, ny)))
+         return false;
+      if (packX < 0)
+         return true;
+      int px = packX + Direction.DELTA_X[dir];
+      int py = packY + Direction.DELTA_Y[dir];
+      return px >= 0 && px < size && py >= 0 && py < size &&
+         !isBlocked(cellOf(px, py));
+   }
+
+   /** Return the first direction of a shortest path, around the known
+      obstacles, from (x,y) to a cell next to (tx,ty), or -1 if there
+      isn't one or (x,y) is already next to it. This is an A* search, for
+      an agent that isn't holding a package. */
+   public int directionTo(int x, int y, int tx, int ty) {
+
+      checkBounds(x, y);
+      checkBounds(tx, ty);
+      if (Math.abs(x - tx) + Math.abs(y - ty) <= 1)
+         return -1;
+      int dir = search(x, y, tx, ty);
+      trimWorkSpace();
+      return dir;
+   }
+
+   private int search(int x, int y, int tx, int ty) {
+
+      // a cell has been reached in this search if its mark is s, and
+      // is closed if its mark is s + 1
+      int s = nextStamp();
+      stamp++;
+      int start = cellOf(x, y);
+      marks.set(start, s);
+      paths.set(start, 0);
+      heapSize = 0;
+      push(x, y, 0, tx, ty);
+      while (heapSize > 0) {
+         int pos = pop();
+         int ux = pos / size;
+         int uy = pos % size;
+         int u = cellOf(ux, uy);
+         if (marks.get(u) == s + 1)
+            continue;
+         marks.set(u, s + 1);
+         work++;
+         int path = paths.get(u);
+         if (Math.abs(ux - tx) + Math.abs(uy - ty) == 1)
+            return path & 3;
+         int cost = (path >> 2) + 1;
+         for (int d = 0; d < 4; d++) {
+            int vx = ux + Direction.DELTA_X[d];
+            int vy = uy + Direction.DELTA_Y[d];
+            if (vx < 0 || vx >= size || vy < 0 || vy >= size)
+               continue;
+            int v = cellOf(vx, vy);
+            int mark = marks.get(v);
+            if (mark == s + 1 || isBlocked(v))
+               continue;
+            if (mark != s || cost < paths.get(v) >> 2) {
+               marks.set(v, s);
+               paths.set(v, (cost << 2) | (u == start ? d : path & 3));
+               push(vx, vy, cost, tx, ty);
+            }
+         }
+      }
+      return -1;
+   }
+
+   /** Add a cell to the search's binary heap, ordered by the estimated
+      length of a path through it: its cost so far and its distance to a
+      cell next to the target. A cell may be in the heap more than once,
+      and the copies with old costs are skipped when they come out. The
+      heap holds x * size + y rather than the cell, so that equally good
+      cells come out in the same order whatever the chunks are. */
+   private void push(int x, int y, int cost, int tx, int ty) {
+      if (heapSize == heap.length) {
+         long[] bigger = new long[heap.length * 2];
+         System.arraycopy(heap, 0, bigger, 0, heapSize);
+         heap = bigger;
+      }
+      long f = cost + Math.abs(x - tx) + Math.abs(y - ty) - 1;
+      long entry = (f << 32) | (x * size + y);
+      int i = heapSize++;
+      while (i > 0) {
+         int parent = (i - 1) / 2;
+         if (heap[parent] <= entry)
+            break;
+         heap[i] = heap[parent];
+         i = parent;
+      }
+      heap[i] = entry;
+   }
+
+   /** Remove the cell with the smallest estimate from the heap and
+      return x * size + y. */
+   private int pop() {
+      long top = heap[0];
+      long last = heap[--heapSize];
+      int i = 0;
+      while (2 * i + 1 < heapSize) {
+         int child = 2 * i + 1;
+         if (child + 1 < heapSize && heap[child + 1] < heap[child])
+            child++;
+         if (last <= heap[child])
+            break;
+         heap[i] = heap[child];
+         i = child;
+      }
+      heap[i] = last;
+      return (int)top;
+   }
+
+   /** Return the number of cells visited by the planner's searches and
+      repairs so far. */
+   public long getWork() {
+      return work;
+   }
+
+   /** Return roughly how many bytes the planner uses. */
+   public long getMemoryBytes() {
+      long bytes = 16 + blocked.length * 4L +
+         numBlockedChunks * (16 + CHUNK_CELLS / 8) +
+         marks.getMemoryBytes() + paths.getMemoryBytes() +
+         (queue.length + invalid.length) * 4L + heap.length * 8L;
+      for (int i = 0; i < numDests; i++)
+         bytes += fields[i].getMemoryBytes();
+      return bytes;
+   }
+
+   private void trimWorkSpace() {
+      if (marks.numChunks > MAX_WORK_CHUNKS)
+         marks.clear();
+      if (paths.numChunks > MAX_WORK_CHUNKS)
+         paths.clear();
+      int maxLength = MAX_WORK_CHUNKS * CHUNK_CELLS;
+      if (queue.length > maxLength)
+         queue = new int[256];
+      if (invalid.length > maxLength)
+         invalid = new int[256];
+      if (heap.length > maxLength)
+         heap = new long[256];
+   }
+
+   private int nextStamp() {
+      if (stamp >= Integer.MAX_VALUE - 2) {
+         marks.clear();
+         stamp = 0;
+      }
+      return ++stamp;
+   }
+
+   private int cellOf(int x, int y) {
+      return ((x >> CHUNK_BITS) << (chunkYBits + CHUNK_SHIFT)) |
+         ((y >> CHUNK_BITS) << CHUNK_SHIFT) |
+         ((x & CHUNK_MASK) << CHUNK_BITS) | (y & CHUNK_MASK);
+   }
+
+   private int xOf(int cell) {
+      return ((cell >>> (chunkYBits + CHUNK_SHIFT)) << CHUNK_BITS) |
+         ((cell >> CHUNK_BITS) & CHUNK_MASK);
+   }
+
+   private int yOf(int cell) {
+      return (((cell >>> CHUNK_SHIFT) & ((1 << chunkYBits) - 1)) << CHUNK_BITS) |
+         (cell & CHUNK_MASK);
+   }
+
+   private void checkBounds(int x, int y) {
+      if (x < 0 || x >= size || y < 0 || y >= size)
+         throw new IllegalArgumentException("(" + x + "," + y + ") is outside the world");
+   }
+}
@@ -78,6 +78,11 @@ public class Pickup extends Action {
       return state;
    }
 
+   /** Return the direction of the package to pick up. */
+   int getDirection() {
+      return direction;
+   }
+
    public String toString() {
       return "PICKUP " + Direction.toString(direction);
    }
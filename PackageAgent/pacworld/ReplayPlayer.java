@@ -0,0 +1,220 @@
+package pacworld;
+
+import agent.*;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Plays back a simulation recorded by ReplayWriter. The state at any
+    turn is rebuilt by loading the nearest keyframe at or before the turn
+    and executing the recorded actions after it, so it never costs more
+    than one keyframe interval of actions. The usage is:
+    <pre>
+    java pacworld.ReplayPlayer replayFile [turn]
+    </pre>
+    which prints the state after the given turn (by default the last). */
+public class ReplayPlayer {
+
+   /** Stands in for the recorded agents, which only need to be told
+      apart by the state. */
+   static class ReplayAgent extends Agent {
+
+      ReplayAgent(int id) {
+         super(id);
+      }
+
+      public void see(Percept p) {
+      }
+
+      public Action selectAction() {
+         return null;
+      }
+   }
+
+   private RandomAccessFile file;
+   private long seed;
+   private int numPackages;
+   private int numDests;
+   private int worldSize;
+   private int keyframeInterval;
+   private List<Agent> agents = new ArrayList<Agent>();
+
+   /** The number of complete turns in the file. */
+   private int numTurns = 0;
+
+   /** The position of the state in each keyframe. Keyframe k holds the
+      state after turn (k + 1) * keyframeInterval. */
+   private ArrayList<Long> keyframes = new ArrayList<Long>();
+
+   /** Open a replay file and index its keyframes. If the simulation was
+      cut short the file may end in the middle of a record, in which case
+      the replay ends with the last complete turn. */
+   public ReplayPlayer(File f) throws IOException {
+
+      file = new RandomAccessFile(f, "r");
+      DataInputStream in = openAt(0);
+      if (in.readInt() != ReplayWriter.MAGIC)
+         throw new IOException(f + " is not a replay file");
+      int version = in.readInt();
+      if (version != ReplayWriter.VERSION)
+         throw new IOException("Unsupported replay version " + version);
+      seed = in.readLong();
+      int numAgents = in.readInt();
+      numPackages = in.readInt();
+      numDests = in.readInt();
+      worldSize = in.readInt();
+      keyframeInterval = in.readInt();
+      for (int i = 0; i < numAgents; i++)
+         agents.add(new ReplayAgent(i));
+
+      long pos = ReplayWriter.HEADER_SIZE;
+      long length = file.length();
+      while (pos + ReplayWriter.RECORD_SIZE <= length) {
+         in.readShort();
+         int opcode = in.readUnsignedByte();
+         in.readByte();
+         int aux = in.readInt();
+         pos += ReplayWriter.RECORD_SIZE;
+         int extra = 0;
+         if (opcode == ReplayWriter.SAY || opcode == ReplayWriter.KEYFRAME)
+            extra = Math.max(aux, 0);
+         if (pos + extra > length)
+            break;
+         if (opcode == ReplayWriter.KEYFRAME)
+            keyframes.add(pos);
+         else
+            numTurns++;
+         in.skipBytes(extra);
+         pos += extra;
+      }
+   }
+
+   /** Return the number of turns that can be played back. */
+   public int getNumTurns() {
+      return numTurns;
+   }
+
+   /** Return the seed of the initial state. */
+   public long getSeed() {
+      return seed;
+   }
+
+   /** Return the number of turns between keyframes, or 0 if there are
+      none. */
+   public int getKeyframeInterval() {
+      return keyframeInterval;
+   }
+
+   /** Return the agents of the states made by getState(). Agent i stands
+      for the i'th agent of the recorded simulation. */
+   public List<Agent> getAgents() {
+      return agents;
+   }
+
+   /** Return the state after the given number of turns. Turn 0 is the
+      initial state. */
+   public PackageState getState(int turn) throws IOException {
+
+      if (turn < 0 || turn > numTurns)
+         throw new IllegalArgumentException("No turn " + turn + " in replay");
+
+      PackageState state = PackageState.getInitState(seed, agents,
+            numPackages, numDests, worldSize);
+      int k = keyframeInterval == 0 ? 0 :
+         Math.min(turn / keyframeInterval, keyframes.size());
+      DataInputStream in;
+      int done;
+      if (k == 0) {
+         in = openAt(ReplayWriter.HEADER_SIZE);
+         done = 0;
+      }
+      else {
+         in = openAt(keyframes.get(k - 1));
+         state.readKeyframe(in);
+         done = k * keyframeInterval;
+      }
+
+      while (done < turn) {
+         int agentIndex = in.readUnsignedShort();
+         int opcode = in.readUnsignedByte();
+         int dir = in.readByte();
+         int aux = in.readInt();
+         if (opcode == ReplayWriter.KEYFRAME) {
+            // only reached when replaying without the keyframes
+            in.skipBytes(aux);
+            continue;
+         }
+         Action action = decode(opcode, dir, aux, in);
+         if (action != null)
+            action.execute(agents.get(agentIndex), state);
+         done++;
+      }
+      return state;
+   }
+
+   /** Return the action of a record, or null if the recorded action
+      can't be repeated. */
+   private static Action decode(int opcode, int dir, int aux,
+         DataInputStream in) throws IOException {
+
+      switch (opcode) {
+         case ReplayWriter.IDLE:
+            return new Idle();
+         case ReplayWriter.MOVE:
+            return new Move(dir);
+         case ReplayWriter.COLLIDE:
+            return new Move.Collision(dir);
+         case ReplayWriter.PICKUP:
+            return new Pickup(dir);
+         case ReplayWriter.DROPOFF:
+            return new Dropoff(dir);
+         case ReplayWriter.SAY:
+            if (aux < 0)
+               return new Say(null);
+            byte[] bytes = new byte[aux];
+            in.readFully(bytes);
+            return new Say(new String(bytes, "UTF-8"));
+         default:
+            return null;
+      }
+   }
+
+   private DataInputStream openAt(long pos) throws IOException {
+      file.seek(pos);
+      // not closed, since that would close the file
+      return new DataInputStream(new BufferedInputStream(
+               Channels.newInputStream(file.getChannel())));
+   }
+
+   /** Close the replay file. */
+   public void close() throws IOException {
+      file.close();
+   }
+
+   public static void main(String[] args) {
+
+      if (args.length < 1 || args.length > 2) {
+         System.err.println("Usage: java pacworld.ReplayPlayer replayFile [turn]");
+         System.exit(1);
+      }
+      try {
+         ReplayPlayer player = new ReplayPlayer(new File(args[0]));
+         int turn = player.getNumTurns();
+         if (args.length > 1)
+            turn = Integer.parseInt(args[1]);
+         PackageState state = player.getState(turn);
+         System.out.println("Seed: " + player.getSeed());
+         System.out.println("Turns: " + player.getNumTurns());
+         System.out.println("State after turn " + turn + ":");
+         state.printState();
+         System.out.println("Packages delivered: " +
+               (state.getOrigNumPackages() - state.getNumPackages()) + " / " +
+               state.getOrigNumPackages());
+         player.close();
+      } catch (IOException e) {
+         System.err.println("ERROR reading replay: " + e.getMessage());
+         System.exit(1);
+      }
+   }
+}
@@ -0,0 +1,169 @@
+package pacworld;
+
+import agent.Action;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Records a simulation in a compact binary file, so that it can be
+    played back and examined one turn at a time with ReplayPlayer. Instead
+    of the text of the action log, each turn is a fixed-size record of the
+    agent and the action it took, and every few turns the whole state is
+    written as a keyframe, so that a player can jump to any turn without
+    replaying the simulation from the start.
+    <p>
+    The file starts with a header: the MAGIC number, the VERSION, the seed
+    of the initial state, the number of agents, packages and destinations,
+    the world size and the keyframe interval. Each record after that is
+    RECORD_SIZE bytes: the agent's index (an unsigned short), an opcode
+    byte, a direction byte and an int. For SAY the int is the length of
+    the UTF-8 bytes of the message that follow the record, or -1 for a
+    null message; for KEYFRAME it is the length of the state that follows
+    (see PackageState.writeKeyframe()). The keyframe for turn t is written
+    after the record for turn t. All numbers are big-endian. */
+public class ReplayWriter {
+
+   /** "PWRP" */
+   public static final int MAGIC = 0x50575250;
+   public static final int VERSION = 1;
+   public static final int HEADER_SIZE = 36;
+   public static final int RECORD_SIZE = 8;
+
+   /** The default number of turns between keyframes. */
+   public static final int DEFAULT_KEYFRAME_INTERVAL = 1000;
+
+   /** Record opcodes. */
+   static final int IDLE = 0;
+   static final int MOVE = 1;
+   static final int PICKUP = 2;
+   static final int DROPOFF = 3;
+   static final int SAY = 4;
+   static final int COLLIDE = 5;
+   static final int KEYFRAME = 6;
+
+   /** An action that isn't one of the package world's own. The player
+      can't repeat it, so it skips it until the next keyframe. */
+   static final int UNKNOWN = 7;
+
+   private static final int BUFFER_SIZE = 1 << 16;
+
+   private FileChannel channel;
+   private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+   private int keyframeInterval;
+   private int numAgents;
+   private int turns = 0;
+
+   /** Reused for the keyframes. */
+   private ByteArrayOutputStream keyframeBytes = new ByteArrayOutputStream();
+   private DataOutputStream keyframeOut = new DataOutputStream(keyframeBytes);
+
+   /** Create a replay file for a simulation whose initial state is
+      PackageState.getInitState(seed, agents, numPackages, numDests,
+      worldSize). A keyframe is written every keyframeInterval turns, or
+      never if it is 0. */
+   public ReplayWriter(File file, long seed, int numAgents, int numPackages,
+         int numDests, int worldSize, int keyframeInterval) throws IOException {
+
+      if (numAgents > 0xFFFF)
+         throw new IllegalArgumentException("Too many agents to record: " +
+               numAgents);
+      this.numAgents = numAgents;
+      this.keyframeInterval = keyframeInterval;
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putLong(seed);
+      buffer.putInt(numAgents);
+      buffer.putInt(numPackages);
+      buffer.putInt(numDests);
+      buffer.putInt(worldSize);
+      buffer.putInt(keyframeInterval);
+   }
+
+   /** Record the action an agent took and, if a keyframe is due, the
+      state that resulted from it. */
+   public void record(int agentIndex, Action action, PackageState state)
+         throws IOException {
+
+      if (agentIndex < 0 || agentIndex >= numAgents)
+         throw new IllegalArgumentException("No such agent: " + agentIndex);
+
+      if (action instanceof Move)
+         putRecord(agentIndex, MOVE, ((Move)action).getDirection(), 0);
+      else if (action instanceof Move.Collision)
+         putRecord(agentIndex, COLLIDE, ((Move.Collision)action).getDirection(), 0);
+      else if (action instanceof Pickup)
+         putRecord(agentIndex, PICKUP, ((Pickup)action).getDirection(), 0);
+      else if (action instanceof Dropoff)
+         putRecord(agentIndex, DROPOFF, ((Dropoff)action).getDirection(), 0);
+      else if (action instanceof Idle)
+         putRecord(agentIndex, IDLE, 0, 0);
+      else if (action instanceof Say) {
+         String msg = ((Say)action).getMessage();
+         if (msg == null)
+            putRecord(agentIndex, SAY, 0, -1);
+         else {
+            byte[] bytes = msg.getBytes("UTF-8");
+            putRecord(agentIndex, SAY, 0, bytes.length);
+            put(bytes, bytes.length);
+         }
+      }
+      else
+         putRecord(agentIndex, UNKNOWN, 0, 0);
+
+      turns++;
+      if (keyframeInterval > 0 && turns % keyframeInterval == 0) {
+         keyframeBytes.reset();
+         state.writeKeyframe(keyframeOut);
+         keyframeOut.flush();
+         putRecord(0, KEYFRAME, 0, keyframeBytes.size());
+         put(keyframeBytes.toByteArray(), keyframeBytes.size());
+      }
+   }
+
+   /** Return the number of turns recorded so far. */
+   public int getNumTurns() {
+      return turns;
+   }
+
+   /** Write out everything recorded so far. */
+   public void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining())
+         channel.write(buffer);
+      buffer.clear();
+   }
+
+   /** Write out everything recorded so far and close the file. */
+   public void close() throws IOException {
+      if (!channel.isOpen())
+         return;
+      flush();
+      channel.close();
+   }
+
+   private void putRecord(int agentIndex, int opcode, int dir, int aux)
+         throws IOException {
+      if (buffer.remaining() < RECORD_SIZE)
+         flush();
+      buffer.putShort((short)agentIndex);
+      buffer.put((byte)opcode);
+      buffer.put((byte)dir);
+      buffer.putInt(aux);
+   }
+
+   private void put(byte[] bytes, int len) throws IOException {
+      if (len > buffer.remaining()) {
+         flush();
+         if (len > buffer.capacity()) {
+            ByteBuffer big = ByteBuffer.wrap(bytes, 0, len);
+            while (big.hasRemaining())
+               channel.write(big);
+            return;
+         }
+      }
+      buffer.put(bytes, 0, len);
+   }
+}
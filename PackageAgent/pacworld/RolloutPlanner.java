@@ -0,0 +1,427 @@
+package pacworld;
+
+import agent.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** Chooses actions for a package world agent by Monte Carlo rollouts. The
+    agent's percept is turned into a belief state (see
+    PackageState.getBeliefState()) that holds the agents and packages it
+    can see. Each candidate action is tried in that state and followed by
+    a short randomized rollout, and the value of the action is the average
+    outcome of its rollouts. The rollout policy heads for the package it
+    can deliver soonest and then for its destination, with a random move now and then,
+    while the other agents stand still.
+    <p>
+    The rollouts run on several threads. Each thread has its own Random
+    and its own copy of the belief state, and undoes every rollout with
+    Action.undo(), so the state is built once per decision rather than
+    once per rollout. The copies are kept from one decision to the next
+    and refilled through their undo logs, so a decision doesn't allocate
+    a map for each thread. A decision can be limited by time, by the
+    number of rollouts, or both. An agent might use a planner like this:
+    <pre>
+    public Action selectAction() {
+       return planner.selectAction(percept, this, 2);
+    }
+    </pre> */
+public class RolloutPlanner {
+
+   /** The default number of actions in a rollout after the candidate. */
+   public static final int DEFAULT_DEPTH = 30;
+
+   /** The value of delivering a package, in turns. */
+   public static final double DELIVERY_VALUE = 100;
+
+   /** The chance that the rollout policy moves in a random direction. */
+   public static final double RANDOM_MOVE_CHANCE = 0.2;
+
+   /* The actions don't hold any state, so one of each is enough for all
+      of the threads. */
+   private static final Action[] MOVES = new Action[4];
+   private static final Action[] PICKUPS = new Action[4];
+   private static final Action[] DROPOFFS = new Action[4];
+   static {
+      for (int d = 0; d < 4; d++) {
+         MOVES[d] = new Move(d);
+         PICKUPS[d] = new Pickup(d);
+         DROPOFFS[d] = new Dropoff(d);
+      }
+   }
+
+   /** Stands in for the other agents in a belief state. */
+   static class OtherAgent extends Agent {
+
+      OtherAgent(int id) {
+         super(id);
+      }
+
+      public void see(Percept p) {
+      }
+
+      public Action selectAction() {
+         return null;
+      }
+   }
+
+   /** The rollouts done by one thread. */
+   class Worker implements Callable<Void> {
+
+      Random rand;
+      PackageState state;
+      Agent self;
+      List<Agent> others = new ArrayList<Agent>();
+      double[] sums;
+      int[] counts;
+      int first;
+
+      Worker(long seed) {
+         rand = new Random(seed);
+      }
+
+      public Void call() {
+         int n = candidates.size();
+         int limit = Math.max(maxRollouts, n);
+         int rollouts = 0;
+         for (int i = first; rollouts < limit && n > 0; i++) {
+            if (deadline != 0 && (rollouts & 7) == 0 &&
+                  System.nanoTime() >= deadline && rollouts >= n)
+               break;
+            int c = i % n;
+            sums[c] += rollout(candidates.get(c));
+            counts[c]++;
+            rollouts++;
+         }
+         return null;
+      }
+
+      /** Try an action and continue with the rollout policy, then undo it
+         all and return the value of what happened. */
+      double rollout(Action action) {
+
+         int startPackages = state.getNumPackages();
+         state.markChanges();
+         action.execute(self, state);
+         int steps = 1;
+         while (steps < depth && state.getNumPackages() > 0) {
+            policy(state, self, rand).execute(self, state);
+            steps++;
+         }
+         double value = (startPackages - state.getNumPackages()) * DELIVERY_VALUE -
+            steps - distanceToGoal(state, self);
+         state.undoChanges();
+         return value;
+      }
+   }
+
+   private int numThreads;
+   private ExecutorService pool = null;
+   private Worker[] workers;
+   private int depth = DEFAULT_DEPTH;
+   private int maxRollouts = Integer.MAX_VALUE;
+
+   /* The decision being made. */
+   private List<Action> candidates = new ArrayList<Action>();
+   private double[] values = new double[0];
+   private long deadline;
+   private long rollouts;
+   private Random tieBreaker;
+
+   /** Create a planner that runs rollouts on the given number of
+      threads. */
+   public RolloutPlanner(int numThreads) {
+      this(numThreads, new Random().nextLong());
+   }
+
+   /** Create a planner whose random choices are made from the given
+      seed. If the number of rollouts is limited and the time isn't, the
+      planner makes the same choices for the same percepts every time. */
+   public RolloutPlanner(int numThreads, long seed) {
+      if (numThreads < 1)
+         throw new IllegalArgumentException("A planner needs a thread");
+      this.numThreads = numThreads;
+      workers = new Worker[numThreads];
+      for (int i = 0; i < numThreads; i++)
+         workers[i] = new Worker(seed * 31 + i);
+      tieBreaker = new Random(seed);
+   }
+
+   /** Set the number of actions in each rollout, counting the candidate
+      action. */
+   public void setDepth(int depth) {
+      this.depth = depth;
+   }
+
+   /** Limit the number of rollouts each thread does for a decision. Each
+      thread still tries every candidate at least once. */
+   public void setMaxRollouts(int max) {
+      maxRollouts = max;
+   }
+
+   /** Evaluate the actions the agent could take, and return the average
+      value of each, in the order of getCandidates(). The rollouts stop
+      after budgetMillis milliseconds, or when every thread has done its
+      maximum number of rollouts if budgetMillis is 0. */
+   public double[] evaluate(PacPercept percept, Agent self, long budgetMillis) {
+
+      deadline = budgetMillis > 0 ? System.nanoTime() + budgetMillis * 1000000 : 0;
+      if (deadline == 0 && maxRollouts == Integer.MAX_VALUE)
+         throw new IllegalStateException("A decision needs a time budget or a rollout limit");
+
+      for (int t = 0; t < numThreads; t++) {
+         Worker w = workers[t];
+         while (w.others.size() < percept.getVisAgents().length)
+            w.others.add(new OtherAgent(w.others.size()));
+         w.state = PackageState.getBeliefState(percept, self, w.others, w.state);
+         w.self = self;
+      }
+      findCandidates(workers[0].state, self);
+
+      int n = candidates.size();
+      for (int t = 0; t < numThreads; t++) {
+         workers[t].sums = new double[n];
+         workers[t].counts = new int[n];
+         // spread the threads' first rollouts over the candidates
+         workers[t].first = t * n / numThreads;
+      }
+
+      // the calling thread does one share of the work itself
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (int t = 1; t < numThreads; t++)
+         futures.add(getPool().submit(workers[t]));
+      workers[0].call();
+      try {
+         for (int i = 0; i < futures.size(); i++)
+            futures.get(i).get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException)e.getCause();
+         throw new RuntimeException(e.getCause());
+      }
+
+      values = new double[n];
+      rollouts = 0;
+      for (int c = 0; c < n; c++) {
+         double sum = 0;
+         int count = 0;
+         for (int t = 0; t < numThreads; t++) {
+            sum += workers[t].sums[c];
+            count += workers[t].counts[c];
+         }
+         values[c] = count == 0 ? Double.NEGATIVE_INFINITY : sum / count;
+         rollouts += count;
+      }
+      return values;
+   }
+
+   /** Return the candidate with the highest value, choosing at random
+      between equally good ones. If the agent can't do anything useful,
+      this is Idle. */
+   public Action selectAction(PacPercept percept, Agent self, long budgetMillis) {
+
+      evaluate(percept, self, budgetMillis);
+      int best = -1;
+      int ties = 0;
+      for (int c = 0; c < values.length; c++) {
+         if (best < 0 || values[c] > values[best]) {
+            best = c;
+            ties = 1;
+         }
+         else if (values[c] == values[best] && tieBreaker.nextInt(++ties) == 0)
+            best = c;
+      }
+      return best < 0 ? new Idle() : candidates.get(best);
+   }
+
+   /** Return the actions evaluated for the most recent decision. */
+   public List<Action> getCandidates() {
+      return candidates;
+   }
+
+   /** Return the total number of rollouts done for the most recent
+      decision. */
+   public long getRollouts() {
+      return rollouts;
+   }
+
+   /** Stop the planner's threads. */
+   public synchronized void shutdown() {
+      if (pool != null)
+         pool.shutdown();
+      pool = null;
+   }
+
+   private synchronized ExecutorService getPool() {
+      if (pool == null) {
+         pool = Executors.newFixedThreadPool(numThreads - 1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "RolloutPlanner");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return pool;
+   }
+
+   /** Fill candidates with the actions worth trying: moves that don't
+      bump into anything, and picking up or dropping off where that can
+      succeed. */
+   private void findCandidates(PackageState state, Agent self) {
+
+      candidates.clear();
+      boolean holding = state.getPackageHeldByAgent(self) != null;
+      for (int d = 0; d < 4; d++) {
+         if (canMove(state, self, d))
+            candidates.add(MOVES[d]);
+         if (!holding && canPickup(state, self, d))
+            candidates.add(PICKUPS[d]);
+         if (holding && canDropoff(state, self, d))
+            candidates.add(DROPOFFS[d]);
+      }
+   }
+
+   /** Choose the rollout policy's action: deliver or pick up a package if
+      possible, otherwise usually move towards the goal (see
+      distanceToGoal()). */
+   static Action policy(PackageState state, Agent self, Random rand) {
+
+      Package held = state.getPackageHeldByAgent(self);
+      int x = state.getAgentX(self);
+      int y = state.getAgentY(self);
+      int goalX = -1;
+      int goalY = -1;
+      if (held != null) {
+         // a package is dropped next to the agent
+         for (int d = 0; d < 4; d++) {
+            if (x + Direction.DELTA_X[d] == held.getDestX() &&
+                  y + Direction.DELTA_Y[d] == held.getDestY() &&
+                  canDropoff(state, self, d))
+               return DROPOFFS[d];
+         }
+         goalX = held.getDestX();
+         goalY = held.getDestY();
+      }
+      else {
+         for (int d = 0; d < 4; d++)
+            if (canPickup(state, self, d))
+               return PICKUPS[d];
+         Package p = nearestPackage(state, x, y);
+         if (p != null) {
+            goalX = p.getX();
+            goalY = p.getY();
+         }
+      }
+
+      if (goalX >= 0 && rand.nextDouble() >= RANDOM_MOVE_CHANCE) {
+         // pick one of the directions that get closer, at random
+         int choices = 0;
+         int dir = -1;
+         for (int d = 0; d < 4; d++) {
+            int dist = Math.abs(x + Direction.DELTA_X[d] - goalX) +
+               Math.abs(y + Direction.DELTA_Y[d] - goalY);
+            if (dist < Math.abs(x - goalX) + Math.abs(y - goalY) &&
+                  canMove(state, self, d) && rand.nextInt(++choices) == 0)
+               dir = d;
+         }
+         if (dir >= 0)
+            return MOVES[dir];
+      }
+      return MOVES[rand.nextInt(4)];
+   }
+
+   /** Return the number of actions it would take, ignoring obstacles, to
+      deliver the package the agent holds, or to fetch and deliver the
+      closest package (see nearestPackage()) if it isn't holding one.
+      Returns 0 if it doesn't know of any packages. Picking up a package
+      never makes this worse, so the rollouts don't shy away from it. */
+   static int distanceToGoal(PackageState state, Agent self) {
+      int x = state.getAgentX(self);
+      int y = state.getAgentY(self);
+      Package held = state.getPackageHeldByAgent(self);
+      if (held != null)
+         return Math.abs(held.getDestX() - x) + Math.abs(held.getDestY() - y);
+      Package p = nearestPackage(state, x, y);
+      if (p == null)
+         return 0;
+      return deliveryDistance(p, x, y);
+   }
+
+   /** Return the package that nobody is holding which an agent at (x,y)
+      could deliver in the fewest moves, or null if there isn't one. */
+   static Package nearestPackage(PackageState state, int x, int y) {
+      List<Package> packages = state.getPackages();
+      Package best = null;
+      int bestDist = Integer.MAX_VALUE;
+      for (int i = 0; i < packages.size(); i++) {
+         Package p = packages.get(i);
+         if (p == null || p.getAgent() != null)
+            continue;
+         int dist = deliveryDistance(p, x, y);
+         if (dist < bestDist) {
+            best = p;
+            bestDist = dist;
+         }
+      }
+      return best;
+   }
+
+   /** Moving next to the package, picking it up, carrying it next to its
+      destination and dropping it takes about this many actions. */
+   private static int deliveryDistance(Package p, int x, int y) {
+      return Math.abs(p.getX() - x) + Math.abs(p.getY() - y) +
+         Math.abs(p.getDestX() - p.getX()) + Math.abs(p.getDestY() - p.getY());
+   }
+
+   /** Return true if Move(dir) would move the agent (and the package it
+      holds) rather than bump into something. */
+   static boolean canMove(PackageState state, Agent self, int dir) {
+      int x = state.getAgentX(self);
+      int y = state.getAgentY(self);
+      int newX = x + Direction.DELTA_X[dir];
+      int newY = y + Direction.DELTA_Y[dir];
+      if (!state.inBounds(newX, newY))
+         return false;
+      Package p = state.getPackageHeldByAgent(self);
+      if (p == null)
+         return !state.hasObstacle(newX, newY);
+
+      // the agent and its package may move into each other's places
+      int newPX = p.getX() + Direction.DELTA_X[dir];
+      int newPY = p.getY() + Direction.DELTA_Y[dir];
+      if (!state.inBounds(newPX, newPY))
+         return false;
+      boolean agentFree = (newX == p.getX() && newY == p.getY()) ||
+         !state.hasObstacle(newX, newY);
+      boolean packageFree = (newPX == x && newPY == y) ||
+         !state.hasObstacle(newPX, newPY);
+      return agentFree && packageFree;
+   }
+
+   static boolean canPickup(PackageState state, Agent self, int dir) {
+      int px = state.getAgentX(self) + Direction.DELTA_X[dir];
+      int py = state.getAgentY(self) + Direction.DELTA_Y[dir];
+      if (!state.inBounds(px, py) || state.getCellType(px, py) != PackageState.PACKAGE)
+         return false;
+      return ((Package)state.getObjectAt(px, py)).getAgent() == null;
+   }
+
+   static boolean canDropoff(PackageState state, Agent self, int dir) {
+      int px = state.getAgentX(self) + Direction.DELTA_X[dir];
+      int py = state.getAgentY(self) + Direction.DELTA_Y[dir];
+      if (!state.inBounds(px, py))
+         return false;
+      Package held = state.getPackageHeldByAgent(self);
+      return state.getCellType(px, py) == PackageState.EMPTY ||
+         (held != null && held.getX() == px && held.getY() == py);
+   }
+}
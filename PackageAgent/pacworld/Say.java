@@ -38,6 +38,11 @@ public class Say extends Action {
     return state;
   }
 
+  /** Return the message. */
+  String getMessage() {
+    return str;
+  }
+
   public String toString() {
     return "SAY " + str;
   }
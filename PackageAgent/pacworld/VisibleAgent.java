@@ -9,6 +9,12 @@ public class VisibleAgent {
    private int y = 0;
 
    public VisibleAgent(String id, int x, int y) {
+      set(id, x, y);
+   }
+
+   /** Reuse this object for another agent. Only the simulator may do this,
+      when percepts are pooled. */
+   void set(String id, int x, int y) {
       this.id = id;
       this.x = x;
       this.y = y;
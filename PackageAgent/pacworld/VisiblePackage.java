@@ -14,6 +14,12 @@ public class VisiblePackage {
 
    /** Create a new percept of a package using the package itself. */
    public VisiblePackage(Package pack) {
+      set(pack);
+   }
+
+   /** Reuse this object for another package. Only the simulator may do
+      this, when percepts are pooled. */
+   void set(Package pack) {
 
       id = pack.getId();
       x = pack.getX();
@@ -23,4 +23,26 @@ public abstract class Action {
     */
    public abstract State execute(Agent a, State s);
 
+   /** Execute the action like execute(), but so that undo() can reverse
+      its effects exactly, without copying the state. The state must
+      implement Reversible. Actions applied one after another are undone
+      in the opposite order. */
+   public State apply(Agent a, State s) {
+      if (!(s instanceof Reversible))
+         throw new UnsupportedOperationException(
+               s.getClass().getName() + " can't undo actions");
+      ((Reversible)s).markChanges();
+      return execute(a, s);
+   }
+
+   /** Reverse the most recent apply() on the state that hasn't been
+      undone yet. It is up to the caller to pass the same agent and state
+      as that apply(). */
+   public void undo(Agent a, State s) {
+      if (!(s instanceof Reversible))
+         throw new UnsupportedOperationException(
+               s.getClass().getName() + " can't undo actions");
+      ((Reversible)s).undoChanges();
+   }
+
 }
@@ -0,0 +1,19 @@
+package agent;
+
+/** A state whose changes can be undone, so that an agent that looks ahead
+    (by Monte Carlo rollouts or minimax search, for example) can try out
+    actions on a single state instead of copying it for every step. See
+    Action.apply() and Action.undo(). */
+public interface Reversible {
+
+   /** Start recording the changes made to the state, so that the next
+      call of undoChanges() can reverse them. Marks nest: each call of
+      undoChanges() reverses the changes since the most recent mark that
+      has not been undone yet. */
+   public void markChanges();
+
+   /** Reverse every change made to the state since the most recent mark,
+      and remove the mark. */
+   public void undoChanges();
+
+}
@@ -0,0 +1,124 @@
+package vacworld;
+
+import agent.Action;
+import java.util.List;
+
+/** Runs the searches in VacuumSearch on random rooms and reports how long
+    each takes, how many states it expands and the cost of its plan. Each
+    plan is checked by executing it on a copy of the room, and the plans
+    of aStar() and idaStar() must have the same cost. The rooms have few
+    dirty squares, since the number of states grows exponentially with
+    the amount of dirt. The usage is:
+    <pre>
+    java -cp .:bench vacworld.SearchBenchmark [-sizes 10,20] [-seeds first count] [-dirt chance] [-table entries] [-limit expansions]
+    </pre>
+    A search that expands more than the limit of states fails. */
+public class SearchBenchmark {
+
+   /** The fraction of the squares inside a room that start out dirty,
+      before unreachable squares are filled in. */
+   private static double dirtChance = 0.02;
+
+   private static int tableSize = VacuumSearch.DEFAULT_TABLE_SIZE;
+
+   private static long maxExpansions = 20000000;
+
+   /** Execute a plan on a copy of a state and return its cost, or -1 if
+      it bumps into something or doesn't clean the room. */
+   static int checkPlan(VacuumState start, List<Action> plan) {
+      VacuumState s = new VacuumState(start);
+      int cost = 0;
+      for (int i = 0; i < plan.size(); i++) {
+         Action a = plan.get(i);
+         a.execute(null, s);
+         if (s.bumped())
+            return -1;
+         cost += VacuumSearch.getCost(a);
+      }
+      if (s.getNumDirtyLocs() != 0 || !s.isRobotOff())
+         return -1;
+      return cost;
+   }
+
+   /** Run one search and print a line about it. Returns the cost of the
+      plan, or -1 if the search failed or the plan is wrong. */
+   static int run(String name, VacuumSearch search, VacuumState room,
+         int size, int seed) {
+
+      long start = System.nanoTime();
+      List<Action> plan;
+      if (name.equals("bfs"))
+         plan = search.breadthFirst(room);
+      else if (name.equals("astar"))
+         plan = search.aStar(room);
+      else
+         plan = search.idaStar(room);
+      long nanos = System.nanoTime() - start;
+
+      int cost = plan == null ? -1 : checkPlan(room, plan);
+      System.out.println(String.format("%-6s %5d %6d %6d %10.2f %10d %8d %8d %10d",
+            name, size, seed, room.getNumDirtyLocs(), nanos / 1e6,
+            search.getExpansions(), plan == null ? -1 : plan.size(), cost,
+            search.getTable().getEvictions()));
+      return cost;
+   }
+
+   static int[] parseList(String str) {
+      String[] parts = str.split(",");
+      int[] vals = new int[parts.length];
+      for (int i = 0; i < parts.length; i++)
+         vals[i] = Integer.parseInt(parts[i].trim());
+      return vals;
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {10, 20};
+      int firstSeed = 0;
+      int numSeeds = 5;
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = parseList(args[++i]);
+         else if (args[i].equals("-seeds")) {
+            firstSeed = Integer.parseInt(args[++i]);
+            numSeeds = Integer.parseInt(args[++i]);
+         }
+         else if (args[i].equals("-dirt"))
+            dirtChance = Double.parseDouble(args[++i]);
+         else if (args[i].equals("-table"))
+            tableSize = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-limit"))
+            maxExpansions = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java vacworld.SearchBenchmark " +
+                  "[-sizes 10,20] [-seeds first count] [-dirt chance] " +
+                  "[-table entries] [-limit expansions]");
+            System.exit(1);
+         }
+      }
+
+      VacuumSearch search = new VacuumSearch(tableSize);
+      search.setMaxExpansions(maxExpansions);
+      boolean ok = true;
+      System.out.println(String.format("%-6s %5s %6s %6s %10s %10s %8s %8s %10s",
+            "search", "size", "seed", "dirt", "ms", "expanded", "actions",
+            "cost", "evictions"));
+      for (int s = 0; s < sizes.length; s++) {
+         for (int seed = firstSeed; seed < firstSeed + numSeeds; seed++) {
+            VacuumState room = VacuumState.getRandomState(sizes[s], sizes[s],
+                  VacuumState.WALL_CHANCE + dirtChance,
+                  VacuumState.WALL_CHANCE, seed);
+            int bfs = run("bfs", search, room, sizes[s], seed);
+            int astar = run("astar", search, room, sizes[s], seed);
+            int ida = run("idastar", search, room, sizes[s], seed);
+            if (bfs < 0 || astar < 0 || ida < 0 || astar != ida || astar > bfs) {
+               System.err.println("Search failed or costs differ: size=" +
+                     sizes[s] + " seed=" + seed);
+               ok = false;
+            }
+         }
+      }
+      if (!ok)
+         System.exit(1);
+   }
+}
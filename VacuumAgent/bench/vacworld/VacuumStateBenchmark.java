@@ -0,0 +1,362 @@
+package vacworld;
+
+import agent.Action;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Micro-benchmarks for creating vacuum world states: generating a random
+    initial state, generating rooms of varying sizes, filling in the
+    squares the agent can't reach, copying states, and random rollouts
+    done with copies or with Action.apply() and undo(). Each benchmark is
+    run after a warm-up period and reports the average time per
+    operation. Before timing anything, the flood fill is checked against
+    the original list-based algorithm for a fixed set of seeds, which is
+    also timed on the smaller rooms for comparison, and undo() is checked
+    against copies of the states it should bring back. The usage is:
+    <pre>
+    java -cp .:bench vacworld.VacuumStateBenchmark [-sizes 7,20,50,200,2000] [-millis 500]
+    </pre> */
+public class VacuumStateBenchmark {
+
+   /** An operation to be timed. */
+   interface Op {
+      /** Perform the operation once and return something that depends on
+         its result, so the JIT can't optimize the work away. */
+      long run();
+   }
+
+   /** Rooms larger than this are too slow for the original algorithm. */
+   static final int MAX_LEGACY_SIZE = 100;
+
+   /** The number of seeds compared for each room size. */
+   static final int CHECK_SEEDS = 20;
+
+   private static long measureMillis = 500;
+   private static volatile long sink;
+
+   /** Time an operation and print the average number of nanoseconds it
+      takes. The operation is first run for a warm-up period, then in
+      batches until measureMillis have passed. */
+   static double measure(String name, int size, Op op) {
+
+      long batch = 1;
+      long result = 0;
+      long warmupEnd = System.nanoTime() + measureMillis * 1000000 / 2;
+      while (System.nanoTime() < warmupEnd) {
+         for (long i = 0; i < batch; i++)
+            result += op.run();
+         if (batch < (1 << 20))
+            batch *= 2;
+      }
+
+      long ops = 0;
+      long start = System.nanoTime();
+      long end = start + measureMillis * 1000000;
+      long now;
+      do {
+         for (long i = 0; i < batch; i++)
+            result += op.run();
+         ops += batch;
+         now = System.nanoTime();
+      } while (now < end);
+      sink += result;
+
+      double nanos = (double)(now - start) / ops;
+      System.out.println(String.format("%-26s %6d %14.1f", name, size,
+            nanos));
+      return nanos;
+   }
+
+   /** A position in the map, as used by the original algorithm. */
+   static class Square {
+      int x;
+      int y;
+
+      Square(int x, int y) {
+         this.x = x;
+         this.y = y;
+      }
+
+      public boolean equals(Object o) {
+         if (!(o instanceof Square))
+            return false;
+         Square s = (Square)o;
+         return s.x == x && s.y == y;
+      }
+   }
+
+   /** The original version of VacuumState.fillUnreachableSquares(), which
+      keeps the frontier and the reachable squares in lists, working on an
+      array of columns. */
+   static void legacyFillUnreachableSquares(int[][] map, int agentX,
+         int agentY) {
+      ArrayList<Square> reachable = new ArrayList<Square>();
+      ArrayList<Square> frontier = new ArrayList<Square>();
+      Square start = new Square(agentX, agentY);
+      reachable.add(start);
+      frontier.add(start);
+      while (!frontier.isEmpty()) {
+         Square next = frontier.remove(0);
+         for (int i = 0; i < 4; i++) {
+            Square gen = new Square(next.x + Direction.DELTA_X[i],
+                  next.y + Direction.DELTA_Y[i]);
+            if (map[gen.x][gen.y] != VacuumState.WALL &&
+                  !reachable.contains(gen)) {
+               frontier.add(gen);
+               reachable.add(gen);
+            }
+         }
+      }
+      for (int i = 0; i < map.length; i++) {
+         for (int j = 0; j < map[i].length; j++) {
+            if (!reachable.contains(new Square(i, j)))
+               map[i][j] = VacuumState.WALL;
+         }
+      }
+   }
+
+   /** Return true if the flood fill produces the same map as the original
+      algorithm for the first CHECK_SEEDS seeds on a room of the given
+      size. */
+   static boolean checkFill(int size) {
+      for (int seed = 0; seed < CHECK_SEEDS; seed++) {
+         int[][] expected = randomMap(size, new Random(seed));
+         VacuumMap actual = new VacuumMap(expected);
+         legacyFillUnreachableSquares(expected, VacuumState.INIT_X,
+               VacuumState.INIT_Y);
+         actual.fillUnreachable(VacuumState.INIT_X, VacuumState.INIT_Y);
+         if (!Arrays.deepEquals(expected, actual.toArray())) {
+            System.err.println("fillUnreachableSquares differs from the " +
+                  "original algorithm: size=" + size + " seed=" + seed);
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** Make a square room of the given size, surrounded by walls, whose
+      interior is filled the same way as getRandomState() does. The
+      agent's default location is always left clear. */
+   static int[][] randomMap(int size, Random rgen) {
+      int[][] map = new int[size][size];
+      for (int i = 0; i < size; i++) {
+         for (int j = 0; j < size; j++) {
+            if (i == 0 || j == 0 || i == size - 1 || j == size - 1)
+               map[i][j] = VacuumState.WALL;
+            else {
+               float roll = rgen.nextFloat();
+               if (roll <= VacuumState.WALL_CHANCE)
+                  map[i][j] = VacuumState.WALL;
+               else if (roll <= VacuumState.DIRT_CHANCE)
+                  map[i][j] = VacuumState.DIRT;
+               else
+                  map[i][j] = VacuumState.CLEAR;
+            }
+         }
+      }
+      map[VacuumState.INIT_X][VacuumState.INIT_Y] = VacuumState.CLEAR;
+      return map;
+   }
+
+   static void benchRandomState() {
+      measure("getRandomState", VacuumState.DEFAULT_WIDTH, new Op() {
+         int seed = 0;
+         public long run() {
+            return VacuumState.getRandomState(seed++).getNumDirtyLocs();
+         }
+      });
+   }
+
+   static void benchRandomState(final int size) {
+      measure("getRandomState (sized)", size, new Op() {
+         int seed = 0;
+         public long run() {
+            return VacuumState.getRandomState(size, size,
+                  VacuumState.DIRT_CHANCE, VacuumState.WALL_CHANCE,
+                  seed++).getNumDirtyLocs();
+         }
+      });
+   }
+
+   static void benchFillUnreachable(int size) {
+      // filling changes the map, so each operation works on a fresh copy
+      final int[][] template = randomMap(size, new Random(size));
+      final VacuumMap packed = new VacuumMap(template);
+      double nanos = measure("fillUnreachable", size, new Op() {
+         public long run() {
+            VacuumMap map = new VacuumMap(packed);
+            map.fillUnreachable(VacuumState.INIT_X, VacuumState.INIT_Y);
+            return map.countDirt();
+         }
+      });
+      if (size > MAX_LEGACY_SIZE)
+         return;
+      final int[][] map = new int[size][size];
+      double legacyNanos = measure("  original algorithm", size, new Op() {
+         public long run() {
+            for (int i = 0; i < template.length; i++)
+               System.arraycopy(template[i], 0, map[i], 0, template[i].length);
+            legacyFillUnreachableSquares(map, VacuumState.INIT_X,
+                  VacuumState.INIT_Y);
+            return map[1][1];
+         }
+      });
+      System.out.println(String.format("  speedup %.1fx", legacyNanos / nanos));
+   }
+
+   /** Time copying a state, with and without a change to the copy's
+      dirt, against copying its map as an array of columns. */
+   static void benchCopy(int size) {
+      final VacuumState state = VacuumState.getRandomState(size, size,
+            VacuumState.DIRT_CHANCE, VacuumState.WALL_CHANCE, size);
+      final int[][] squares = state.map.toArray();
+
+      int x = 1;
+      int y = 1;
+      search:
+      for (int i = 0; i < size; i++) {
+         for (int j = 0; j < size; j++) {
+            if (state.hasDirt(i, j)) {
+               x = i;
+               y = j;
+               break search;
+            }
+         }
+      }
+      final int dirtX = x;
+      final int dirtY = y;
+
+      measure("copy state", size, new Op() {
+         public long run() {
+            return new VacuumState(state).hashCode();
+         }
+      });
+      measure("copy state + removeDirt", size, new Op() {
+         public long run() {
+            VacuumState copy = new VacuumState(state);
+            copy.removeDirt(dirtX, dirtY);
+            return copy.hashCode();
+         }
+      });
+      measure("  copy int[][] map", size, new Op() {
+         public long run() {
+            int[][] copy = new int[squares.length][];
+            for (int i = 0; i < squares.length; i++)
+               copy[i] = squares[i].clone();
+            return copy[dirtX][dirtY];
+         }
+      });
+   }
+
+   /** The length of the rollouts. */
+   static final int ROLLOUT_DEPTH = 50;
+
+   private static final Action[] MOVES = {
+      new GoForward(), new TurnLeft(), new TurnRight(), new SuckDirt()
+   };
+
+   /** Apply random actions to a state, keeping a copy of the state before
+      each one, then undo them and check that each copy comes back.
+      Returns false if any doesn't. */
+   static boolean checkUndo(int size) {
+      Random rand = new Random(size);
+      VacuumState state = VacuumState.getRandomState(size, size,
+            VacuumState.DIRT_CHANCE, VacuumState.WALL_CHANCE, size);
+      int bad = 0;
+      for (int trial = 0; trial < CHECK_SEEDS; trial++) {
+         ArrayList<VacuumState> copies = new ArrayList<VacuumState>();
+         ArrayList<Action> applied = new ArrayList<Action>();
+         for (int i = 0; i < ROLLOUT_DEPTH * 4; i++) {
+            copies.add(new VacuumState(state));
+            Action a = MOVES[rand.nextInt(MOVES.length)];
+            a.apply(null, state);
+            applied.add(a);
+         }
+         for (int i = applied.size() - 1; i >= 0; i--) {
+            applied.get(i).undo(null, state);
+            VacuumState copy = copies.get(i);
+            if (!state.equals(copy) || state.getNumDirtyLocs() != copy.getNumDirtyLocs())
+               bad++;
+         }
+         // start the next trial somewhere else
+         for (int i = 0; i < ROLLOUT_DEPTH; i++)
+            MOVES[rand.nextInt(MOVES.length)].execute(null, state);
+      }
+      if (bad > 0)
+         System.err.println("undo() differs from the copies " + bad +
+               " times for size " + size);
+      return bad == 0;
+   }
+
+   static void benchRollout(int size) {
+      final VacuumState state = VacuumState.getRandomState(size, size,
+            VacuumState.DIRT_CHANCE, VacuumState.WALL_CHANCE, size);
+      final Random rand = new Random(0);
+      final Action[] applied = new Action[ROLLOUT_DEPTH];
+
+      measure("rollout with copies", size, new Op() {
+         public long run() {
+            VacuumState s = state;
+            for (int i = 0; i < ROLLOUT_DEPTH; i++) {
+               s = new VacuumState(s);
+               MOVES[rand.nextInt(MOVES.length)].execute(null, s);
+            }
+            return s.getNumDirtyLocs();
+         }
+      });
+      measure("rollout with apply/undo", size, new Op() {
+         public long run() {
+            for (int i = 0; i < ROLLOUT_DEPTH; i++) {
+               applied[i] = MOVES[rand.nextInt(MOVES.length)];
+               applied[i].apply(null, state);
+            }
+            long result = state.getNumDirtyLocs();
+            for (int i = ROLLOUT_DEPTH - 1; i >= 0; i--)
+               applied[i].undo(null, state);
+            return result;
+         }
+      });
+   }
+
+   static int[] parseList(String str) {
+      String[] parts = str.split(",");
+      int[] vals = new int[parts.length];
+      for (int i = 0; i < parts.length; i++)
+         vals[i] = Integer.parseInt(parts[i].trim());
+      return vals;
+   }
+
+   public static void main(String[] args) {
+
+      int[] sizes = {7, 20, 50, 200, 2000};
+      for (int i = 0; i < args.length; i++) {
+         if (args[i].equals("-sizes"))
+            sizes = parseList(args[++i]);
+         else if (args[i].equals("-millis"))
+            measureMillis = Long.parseLong(args[++i]);
+         else {
+            System.err.println("Usage: java vacworld.VacuumStateBenchmark " +
+                  "[-sizes 7,20,50,200,2000] [-millis 500]");
+            System.exit(1);
+         }
+      }
+
+      for (int s = 0; s < sizes.length; s++) {
+         if (sizes[s] <= MAX_LEGACY_SIZE && !checkFill(sizes[s]))
+            System.exit(1);
+         if (!checkUndo(sizes[s]))
+            System.exit(1);
+      }
+
+      System.out.println(String.format("%-26s %6s %14s", "benchmark",
+            "size", "ns/op"));
+      benchRandomState();
+      for (int s = 0; s < sizes.length; s++) {
+         benchFillUnreachable(sizes[s]);
+         benchRandomState(sizes[s]);
+         benchCopy(sizes[s]);
+         benchRollout(sizes[s]);
+      }
+   }
+}
@@ -0,0 +1,139 @@
+package vacworld;
+
+/** A fixed-size table that records the cheapest known cost of reaching
+    each state seen by a search, keyed by the state's 64-bit Zobrist hash
+    (see VacuumState.getZobristHash()). It is used to detect duplicate
+    states without keeping the states themselves. Two different states
+    with the same hash are treated as the same state; with 64-bit keys
+    this is unlikely enough to ignore.
+    <p>
+    The table is divided into buckets of WAYS entries, and a key can only
+    be stored in the bucket its hash selects. When that bucket is full, an
+    entry is evicted: first any entry left from an earlier generation (see
+    nextGeneration()), and otherwise the entry with the highest cost, since
+    states far from the start are the least likely to be reached again.
+    Evicting an entry never makes a search wrong, it only means that the
+    state may be expanded again. */
+public class TranspositionTable {
+
+   /** The number of entries in each bucket. */
+   public static final int WAYS = 4;
+
+   /** The value returned by get() for a key that isn't in the table. */
+   public static final int NOT_FOUND = -1;
+
+   private long[] keys;
+   private int[] costs;
+
+   /** The generation in which each entry was stored, or 0 if the entry
+      is empty. */
+   private int[] generations;
+
+   private int bucketMask;
+   private int generation = 1;
+   private int size = 0;
+   private long evictions = 0;
+
+   /** Create a table that holds at least the given number of entries.
+      The capacity is rounded up to a power of two. */
+   public TranspositionTable(int capacity) {
+      int buckets = 1;
+      while (buckets * WAYS < capacity)
+         buckets *= 2;
+      bucketMask = buckets - 1;
+      keys = new long[buckets * WAYS];
+      costs = new int[buckets * WAYS];
+      generations = new int[buckets * WAYS];
+   }
+
+   /** Return the cost stored for a key in the current generation, or
+      NOT_FOUND if there isn't one. */
+   public int get(long key) {
+      int start = bucketOf(key);
+      for (int i = start; i < start + WAYS; i++) {
+         if (generations[i] == generation && keys[i] == key)
+            return costs[i];
+      }
+      return NOT_FOUND;
+   }
+
+   /** Store the cost of reaching the state with the given key, replacing
+      any cost already stored for it. */
+   public void put(long key, int cost) {
+      int start = bucketOf(key);
+      int victim = start;
+      for (int i = start; i < start + WAYS; i++) {
+         if (generations[i] == 0) {
+            // an empty entry; keep looking in case the key is here too
+            if (generations[victim] != 0)
+               victim = i;
+            continue;
+         }
+         if (keys[i] == key) {
+            if (generations[i] != generation)
+               size++;
+            costs[i] = cost;
+            generations[i] = generation;
+            return;
+         }
+         if (generations[victim] != 0 && isWorse(i, victim))
+            victim = i;
+      }
+
+      if (generations[victim] == generation) {
+         evictions++;
+         size--;
+      }
+      keys[victim] = key;
+      costs[victim] = cost;
+      generations[victim] = generation;
+      size++;
+   }
+
+   /** Start a new generation. Entries stored before this are ignored by
+      get(), and are the first to be evicted. This is cheaper than clearing
+      the table. */
+   public void nextGeneration() {
+      generation++;
+      size = 0;
+      if (generation == Integer.MAX_VALUE)
+         clear();
+   }
+
+   /** Remove all entries from the table. */
+   public void clear() {
+      for (int i = 0; i < generations.length; i++)
+         generations[i] = 0;
+      generation = 1;
+      size = 0;
+      evictions = 0;
+   }
+
+   /** Return the number of entries stored in the current generation. */
+   public int size() {
+      return size;
+   }
+
+   /** Return the maximum number of entries. */
+   public int getCapacity() {
+      return keys.length;
+   }
+
+   /** Return the number of entries that have been evicted to make room
+      for others of the same generation since the table was cleared. */
+   public long getEvictions() {
+      return evictions;
+   }
+
+   /** Return true if entry i should be evicted before entry j. */
+   private boolean isWorse(int i, int j) {
+      if (generations[i] != generations[j])
+         return generations[i] < generations[j];
+      return costs[i] > costs[j];
+   }
+
+   private int bucketOf(long key) {
+      // Zobrist keys are already well mixed, so any bits will do
+      return ((int)(key ^ (key >>> 32)) & bucketMask) * WAYS;
+   }
+}
@@ -0,0 +1,386 @@
+package vacworld;
+
+import java.util.Arrays;
+
+/** The contents of the squares of a vacuum world room, packed into two
+    bits per square: one bit plane for walls and one for dirt. A square
+    never has both bits set. Each column of the map (a fixed x coordinate,
+    as in the inner arrays of the original int[][] maps) starts on a new
+    word, so a whole column can be read or written without touching its
+    neighbors. Squares outside the map count as walls.
+    <p>
+    Copying a map is cheap: the copy shares its bit planes with the
+    original, and whichever map is changed first makes its own copy of
+    the plane being changed. Since walls rarely change once a room is
+    generated, states explored by a search usually share one wall plane.
+    The map also keeps a Zobrist hash of its dirty squares, the exclusive
+    or of zobristKey(x,y) for every dirty (x,y), which is updated as dirt
+    is added and removed. A map is not safe for use by several threads
+    at once, but different copies may be used by different threads. */
+public class VacuumMap {
+
+   private int width;
+   private int height;
+
+   /** The number of longs used for each column. */
+   private int wordsPerColumn;
+
+   private long[] walls;
+   private long[] dirt;
+
+   /* True if a bit plane may be shared with another map, and so must be
+      copied before it is changed. */
+   private boolean wallsShared;
+   private boolean dirtShared;
+
+   private long dirtHash;
+
+   /** Create a map of the given size whose squares are all clear. */
+   public VacuumMap(int width, int height) {
+      if (width <= 0 || height <= 0)
+         throw new IllegalArgumentException("Invalid map size: " + width +
+               "x" + height);
+      this.width = width;
+      this.height = height;
+      wordsPerColumn = (height + 63) >>> 6;
+      long words = (long)width * wordsPerColumn;
+      if (words > Integer.MAX_VALUE)
+         throw new IllegalArgumentException("Map is too large: " + width +
+               "x" + height);
+      walls = new long[(int)words];
+      dirt = new long[(int)words];
+   }
+
+   /** Create a map from an array of columns, each of which holds
+      VacuumState.CLEAR, VacuumState.DIRT or VacuumState.WALL. */
+   public VacuumMap(int[][] squares) {
+      this(squares.length, squares[0].length);
+      for (int x = 0; x < width; x++) {
+         for (int y = 0; y < height; y++)
+            set(x, y, squares[x][y]);
+      }
+   }
+
+   /** Create a copy of another map. This takes constant time, since the
+      bit planes are only copied when one of the maps changes them. */
+   public VacuumMap(VacuumMap other) {
+      width = other.width;
+      height = other.height;
+      wordsPerColumn = other.wordsPerColumn;
+      walls = other.walls;
+      dirt = other.dirt;
+      dirtHash = other.dirtHash;
+      wallsShared = true;
+      dirtShared = true;
+      other.wallsShared = true;
+      other.dirtShared = true;
+   }
+
+   public int getWidth() {
+      return width;
+   }
+
+   public int getHeight() {
+      return height;
+   }
+
+   /** Return true if (x,y) is a square of the map. */
+   public boolean inBounds(int x, int y) {
+      return x >= 0 && x < width && y >= 0 && y < height;
+   }
+
+   /** Return VacuumState.CLEAR, VacuumState.DIRT or VacuumState.WALL,
+      depending on what is in the square at (x,y). */
+   public int get(int x, int y) {
+      if (hasWall(x, y))
+         return VacuumState.WALL;
+      if (hasDirt(x, y))
+         return VacuumState.DIRT;
+      return VacuumState.CLEAR;
+   }
+
+   /** Change the contents of a square to VacuumState.CLEAR,
+      VacuumState.DIRT or VacuumState.WALL. */
+   public void set(int x, int y, int contents) {
+      if (!inBounds(x, y))
+         throw new ArrayIndexOutOfBoundsException("(" + x + "," + y +
+               ") is not in the map");
+      if (get(x, y) == contents)
+         return;
+      int w = wordOf(x, y);
+      long bit = 1L << y;
+      long wallBit = contents == VacuumState.WALL ? bit : 0;
+      long dirtBit = contents == VacuumState.DIRT ? bit : 0;
+      if ((walls[w] & bit) != wallBit) {
+         ownWalls();
+         walls[w] ^= bit;
+      }
+      if ((dirt[w] & bit) != dirtBit) {
+         ownDirt();
+         dirt[w] ^= bit;
+         dirtHash ^= zobristKey(x, y);
+      }
+   }
+
+   public boolean hasWall(int x, int y) {
+      if (!inBounds(x, y))
+         return true;
+      return (walls[wordOf(x, y)] & (1L << y)) != 0;
+   }
+
+   public boolean hasDirt(int x, int y) {
+      if (!inBounds(x, y))
+         return false;
+      return (dirt[wordOf(x, y)] & (1L << y)) != 0;
+   }
+
+   /** Remove the dirt (if any) from a square. */
+   public void removeDirt(int x, int y) {
+      if (hasDirt(x, y)) {
+         ownDirt();
+         dirt[wordOf(x, y)] &= ~(1L << y);
+         dirtHash ^= zobristKey(x, y);
+      }
+   }
+
+   /** Return the number of dirty squares. */
+   public int countDirt() {
+      int count = 0;
+      for (int i = 0; i < dirt.length; i++)
+         count += Long.bitCount(dirt[i]);
+      return count;
+   }
+
+   /** Return the largest Manhattan distance from (x,y) to a dirty square,
+      or -1 if there is no dirt. This only looks at the words of the dirt
+      plane and the dirty squares, so it is cheap when dirt is scarce. */
+   public int getFarthestDirtDistance(int x, int y) {
+      int farthest = -1;
+      for (int w = 0; w < dirt.length; w++) {
+         long bits = dirt[w];
+         while (bits != 0) {
+            int dx = w / wordsPerColumn;
+            int dy = ((w % wordsPerColumn) << 6) + Long.numberOfTrailingZeros(bits);
+            int d = Math.abs(dx - x) + Math.abs(dy - y);
+            if (d > farthest)
+               farthest = d;
+            bits &= bits - 1;
+         }
+      }
+      return farthest;
+   }
+
+   /** Set the contents of one column from the low bits of two arrays of
+      words, in which bit y%64 of word y/64 stands for the square (x,y).
+      Any bits beyond the height of the map are ignored, and a square
+      that has both bits set is a wall. This lets a generator build a map
+      a column at a time without storing anything per square. */
+   public void setColumn(int x, long[] wallBits, long[] dirtBits) {
+      if (x < 0 || x >= width)
+         throw new ArrayIndexOutOfBoundsException("Column " + x +
+               " is not in the map");
+      ownWalls();
+      ownDirt();
+      int base = x * wordsPerColumn;
+      for (int i = 0; i < wordsPerColumn; i++) {
+         long mask = i < wordsPerColumn - 1 ? -1L : lastWordMask();
+         dirtHash ^= hashBits(x, i, dirt[base + i]);
+         walls[base + i] = wallBits[i] & mask;
+         dirt[base + i] = dirtBits[i] & ~wallBits[i] & mask;
+         dirtHash ^= hashBits(x, i, dirt[base + i]);
+      }
+   }
+
+   /** Replace every square that can't be reached from (startX,startY)
+      with a wall. The starting square itself is always reachable. The
+      reachable squares are found with a scanline flood fill: each step
+      fills a whole run of open squares in one column, and then marks the
+      open squares beside it in the columns on either side as pending.
+      Reached and pending squares are kept in bitsets laid out like the
+      map, and the columns with pending squares in a queue of at most
+      width entries, so the cost is linear in the number of squares and
+      the memory needed is two more bits per square. */
+   public void fillUnreachable(int startX, int startY) {
+
+      long[] reached = new long[walls.length];
+      long[] pending = new long[walls.length];
+      int[] queue = new int[width];
+      boolean[] queued = new boolean[width];
+      int head = 0;
+      int size = 0;
+
+      reached[wordOf(startX, startY)] |= 1L << startY;
+      for (int i = 0; i < 4; i++) {
+         int x = startX + Direction.DELTA_X[i];
+         int y = startY + Direction.DELTA_Y[i];
+         if (!hasWall(x, y)) {
+            pending[wordOf(x, y)] |= 1L << y;
+            if (!queued[x]) {
+               queued[x] = true;
+               queue[(head + size++) % width] = x;
+            }
+         }
+      }
+
+      while (size > 0) {
+         int x = queue[head];
+         head = (head + 1) % width;
+         size--;
+         queued[x] = false;
+
+         int base = x * wordsPerColumn;
+         for (int w = 0; w < wordsPerColumn; w++) {
+            long todo;
+            while ((todo = pending[base + w] & ~reached[base + w]) != 0) {
+               int y = (w << 6) + Long.numberOfTrailingZeros(todo);
+
+               // extend the run as far as it goes in both directions
+               int lo = y;
+               while (lo > 0 && !isSet(walls, x, lo - 1) &&
+                     !isSet(reached, x, lo - 1))
+                  lo--;
+               int hi = y;
+               while (hi < height - 1 && !isSet(walls, x, hi + 1) &&
+                     !isSet(reached, x, hi + 1))
+                  hi++;
+
+               // mark the run, and the open squares beside it as pending
+               for (int i = lo >>> 6; i <= hi >>> 6; i++) {
+                  long mask = rangeMask(i, lo, hi);
+                  reached[base + i] |= mask;
+                  for (int nx = x - 1; nx <= x + 1; nx += 2) {
+                     if (nx < 0 || nx >= width)
+                        continue;
+                     int n = nx * wordsPerColumn + i;
+                     long open = mask & ~walls[n] & ~reached[n] & ~pending[n];
+                     if (open != 0) {
+                        pending[n] |= open;
+                        if (!queued[nx]) {
+                           queued[nx] = true;
+                           queue[(head + size++) % width] = nx;
+                        }
+                     }
+                  }
+               }
+            }
+            pending[base + w] = 0;
+         }
+      }
+
+      // every unreached square becomes a wall, a word at a time
+      ownWalls();
+      ownDirt();
+      long lastMask = lastWordMask();
+      for (int x = 0; x < width; x++) {
+         int base = x * wordsPerColumn;
+         for (int i = 0; i < wordsPerColumn; i++) {
+            long mask = i < wordsPerColumn - 1 ? -1L : lastMask;
+            walls[base + i] |= ~reached[base + i] & mask;
+            dirtHash ^= hashBits(x, i, dirt[base + i] & ~reached[base + i]);
+            dirt[base + i] &= reached[base + i];
+         }
+      }
+   }
+
+   /** Return the map as an array of columns of VacuumState.CLEAR,
+      VacuumState.DIRT and VacuumState.WALL. */
+   public int[][] toArray() {
+      int[][] squares = new int[width][height];
+      for (int x = 0; x < width; x++) {
+         for (int y = 0; y < height; y++)
+            squares[x][y] = get(x, y);
+      }
+      return squares;
+   }
+
+   /** Return the Zobrist hash of the dirty squares. */
+   public long getDirtHash() {
+      return dirtHash;
+   }
+
+   /** Return the random key for a dirty square at (x,y), used in the
+      Zobrist hash of a map. The keys are computed rather than looked up,
+      so even a huge map needs no table of keys, and a search can update
+      a hash itself as it removes dirt. */
+   public static long zobristKey(int x, int y) {
+      return mix(((long)x << 32) | (y & 0xffffffffL));
+   }
+
+   /** Scramble the bits of a long (the finalizer of the SplitMix64
+      generator), so that nearby inputs give unrelated outputs. */
+   static long mix(long z) {
+      z *= 0x9e3779b97f4a7c15L;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+   }
+
+   /** Two maps are equal if they have the same size, walls and dirt.
+      Maps that share a bit plane don't need to compare it, and maps with
+      different dirt hashes can't have the same dirt. */
+   public boolean equals(Object o) {
+      if (!(o instanceof VacuumMap))
+         return false;
+      VacuumMap m = (VacuumMap)o;
+      if (width != m.width || height != m.height || dirtHash != m.dirtHash)
+         return false;
+      return (dirt == m.dirt || Arrays.equals(dirt, m.dirt)) &&
+         (walls == m.walls || Arrays.equals(walls, m.walls));
+   }
+
+   public int hashCode() {
+      return (int)(dirtHash ^ (dirtHash >>> 32));
+   }
+
+   /** Make sure the wall plane isn't shared before it is changed. */
+   private void ownWalls() {
+      if (wallsShared) {
+         walls = walls.clone();
+         wallsShared = false;
+      }
+   }
+
+   /** Make sure the dirt plane isn't shared before it is changed. */
+   private void ownDirt() {
+      if (dirtShared) {
+         dirt = dirt.clone();
+         dirtShared = false;
+      }
+   }
+
+   /** The exclusive or of the keys of the squares whose bits are set in
+      word i of column x. */
+   private static long hashBits(int x, int i, long bits) {
+      long h = 0;
+      while (bits != 0) {
+         h ^= zobristKey(x, (i << 6) + Long.numberOfTrailingZeros(bits));
+         bits &= bits - 1;
+      }
+      return h;
+   }
+
+   /** The index of the word that holds square (x,y). The bit within the
+      word is y%64, which is what a shift by y gives. */
+   private int wordOf(int x, int y) {
+      return x * wordsPerColumn + (y >>> 6);
+   }
+
+   private boolean isSet(long[] bits, int x, int y) {
+      return (bits[wordOf(x, y)] & (1L << y)) != 0;
+   }
+
+   /** The bits of word i of a column that stand for squares lo to hi,
+      inclusive. */
+   private static long rangeMask(int i, int lo, int hi) {
+      int first = Math.max(lo - (i << 6), 0);
+      int last = Math.min(hi - (i << 6), 63);
+      long upTo = last == 63 ? -1L : (1L << (last + 1)) - 1;
+      return upTo & (-1L << first);
+   }
+
+   /** The bits of the last word of a column that are inside the map. */
+   private long lastWordMask() {
+      int used = height & 63;
+      return used == 0 ? -1L : (1L << used) - 1;
+   }
+}
@@ -0,0 +1,296 @@
+package vacworld;
+
+import agent.Action;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Plans a complete cleaning of a vacuum world room, for agents that know
+    the whole state. A plan is a list of actions that removes all of the
+    dirt and then shuts the robot off. Three searches are provided:
+    <ul>
+    <li>breadthFirst() finds a plan with the fewest actions.</li>
+    <li>aStar() finds a plan with the lowest cost, where the cost of each
+    action is the penalty VacuumWorld gives for it.</li>
+    <li>idaStar() finds a plan with the same cost as aStar(), using
+    iterative deepening so that memory doesn't grow with the search.</li>
+    </ul>
+    Successor states are made by copying a state (which is cheap, see
+    VacuumState(VacuumState)) and executing one of the world's actions on
+    the copy, which keeps the state's Zobrist hash up to date. Duplicate
+    states are detected with a TranspositionTable keyed by that hash.
+    <p>
+    Two kinds of action are never considered: moving forward into an
+    obstacle, which only causes a bump, and anything but sucking when the
+    agent is over dirt, since sucking first is never more expensive. */
+public class VacuumSearch {
+
+   /** The cost of each kind of action, matching the penalties in
+      VacuumWorld.getPerformanceMeasure(). */
+   public static final int MOVE_COST = 2;
+   public static final int TURN_COST = 1;
+   public static final int SUCK_COST = 2;
+
+   /** The default number of entries in the transposition table. */
+   public static final int DEFAULT_TABLE_SIZE = 1 << 20;
+
+   /* The actions don't hold any state, so one of each is enough. */
+   private static final Action FORWARD = new GoForward();
+   private static final Action LEFT = new TurnLeft();
+   private static final Action RIGHT = new TurnRight();
+   private static final Action SUCK = new SuckDirt();
+
+   /** A state reached by the search, and how it was reached. */
+   static class Node {
+
+      VacuumState state;
+      Node parent;
+      Action action;
+      int cost;
+      int estimate;
+
+      Node(VacuumState state, Node parent, Action action, int cost) {
+         this.state = state;
+         this.parent = parent;
+         this.action = action;
+         this.cost = cost;
+      }
+   }
+
+   /** Orders nodes by estimated total cost, preferring nodes that are
+      further along when estimates are equal. */
+   private static final Comparator<Node> BEST_FIRST = new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+         if (a.estimate != b.estimate)
+            return a.estimate < b.estimate ? -1 : 1;
+         return b.cost - a.cost;
+      }
+   };
+
+   private TranspositionTable table;
+   private long maxExpansions = Long.MAX_VALUE;
+   private long expansions = 0;
+
+   /** Create a search with a transposition table of the default size. */
+   public VacuumSearch() {
+      this(DEFAULT_TABLE_SIZE);
+   }
+
+   /** Create a search whose transposition table holds at least the given
+      number of states. */
+   public VacuumSearch(int tableSize) {
+      table = new TranspositionTable(tableSize);
+   }
+
+   /** Limit the number of states a search may expand before it gives up
+      and returns null. */
+   public void setMaxExpansions(long max) {
+      maxExpansions = max;
+   }
+
+   /** Return the number of states expanded by the most recent search. */
+   public long getExpansions() {
+      return expansions;
+   }
+
+   /** Return the transposition table, for statistics. */
+   public TranspositionTable getTable() {
+      return table;
+   }
+
+   /** Return the cost of an action. */
+   public static int getCost(Action action) {
+      if (action instanceof GoForward)
+         return MOVE_COST;
+      if (action instanceof TurnLeft || action instanceof TurnRight)
+         return TURN_COST;
+      if (action instanceof SuckDirt)
+         return SUCK_COST;
+      return 0;
+   }
+
+   /** Return a lower bound on the cost of cleaning up a state: every dirty
+      square must be sucked, and the agent must at least walk to the
+      farthest one. This never drops by more than the cost of an action,
+      so A* never has to expand a state twice. */
+   public static int estimateCost(VacuumState s) {
+      int dirt = s.getNumDirtyLocs();
+      if (dirt == 0)
+         return 0;
+      return dirt * SUCK_COST +
+         s.map.getFarthestDirtDistance(s.getAgentX(), s.getAgentY()) * MOVE_COST;
+   }
+
+   /** Find a plan with the fewest actions, or return null if there is no
+      plan or the search expands too many states. */
+   public List<Action> breadthFirst(VacuumState start) {
+
+      expansions = 0;
+      table.clear();
+      Node root = new Node(start, null, null, 0);
+      if (isGoal(start))
+         return getPlan(root);
+      table.put(start.getZobristHash(), 0);
+
+      ArrayDeque<Node> frontier = new ArrayDeque<Node>();
+      ArrayList<Node> children = new ArrayList<Node>(4);
+      frontier.add(root);
+      while (!frontier.isEmpty()) {
+         Node n = frontier.poll();
+         if (++expansions > maxExpansions)
+            return null;
+         expand(n, children);
+         for (int i = 0; i < children.size(); i++) {
+            Node child = children.get(i);
+            long key = child.state.getZobristHash();
+            if (table.get(key) != TranspositionTable.NOT_FOUND)
+               continue;
+            if (isGoal(child.state))
+               return getPlan(child);
+            table.put(key, child.cost);
+            frontier.add(child);
+         }
+      }
+      return null;
+   }
+
+   /** Find a plan with the lowest cost using A* search, or return null if
+      there is no plan or the search expands too many states. */
+   public List<Action> aStar(VacuumState start) {
+
+      expansions = 0;
+      table.clear();
+      Node root = new Node(start, null, null, 0);
+      root.estimate = estimateCost(start);
+      table.put(start.getZobristHash(), 0);
+
+      PriorityQueue<Node> frontier = new PriorityQueue<Node>(1024, BEST_FIRST);
+      ArrayList<Node> children = new ArrayList<Node>(4);
+      frontier.add(root);
+      while (!frontier.isEmpty()) {
+         Node n = frontier.poll();
+         if (isGoal(n.state))
+            return getPlan(n);
+
+         // skip nodes for which a cheaper path was found after they were
+         // queued (but whose entry may have been evicted since)
+         int best = table.get(n.state.getZobristHash());
+         if (best != TranspositionTable.NOT_FOUND && best < n.cost)
+            continue;
+         if (++expansions > maxExpansions)
+            return null;
+
+         expand(n, children);
+         for (int i = 0; i < children.size(); i++) {
+            Node child = children.get(i);
+            long key = child.state.getZobristHash();
+            int known = table.get(key);
+            if (known != TranspositionTable.NOT_FOUND && known <= child.cost)
+               continue;
+            table.put(key, child.cost);
+            child.estimate = child.cost + estimateCost(child.state);
+            frontier.add(child);
+         }
+      }
+      return null;
+   }
+
+   /** Find a plan with the lowest cost using iterative deepening A*, or
+      return null if there is no plan or the search expands too many
+      states. Each iteration is a depth-first search that ignores states
+      whose estimated total cost is above a bound, and the bound grows to
+      the smallest estimate that was ignored. The transposition table
+      starts a new generation for each iteration, so it only prunes states
+      that have already been reached as cheaply with the same bound. */
+   public List<Action> idaStar(VacuumState start) {
+
+      expansions = 0;
+      table.clear();
+      Node root = new Node(start, null, null, 0);
+      int bound = estimateCost(start);
+      while (true) {
+         table.nextGeneration();
+         table.put(start.getZobristHash(), 0);
+         int[] nextBound = {Integer.MAX_VALUE};
+         Node goal = boundedSearch(root, bound, nextBound);
+         if (goal != null)
+            return getPlan(goal);
+         if (nextBound[0] == Integer.MAX_VALUE || expansions > maxExpansions)
+            return null;
+         bound = nextBound[0];
+      }
+   }
+
+   /** One depth-first iteration of idaStar(). Returns a goal node, or null
+      if none was found within the bound, in which case nextBound[0] holds
+      the smallest estimate above the bound. */
+   private Node boundedSearch(Node n, int bound, int[] nextBound) {
+
+      int estimate = n.cost + estimateCost(n.state);
+      if (estimate > bound) {
+         if (estimate < nextBound[0])
+            nextBound[0] = estimate;
+         return null;
+      }
+      if (isGoal(n.state))
+         return n;
+      if (++expansions > maxExpansions)
+         return null;
+
+      ArrayList<Node> children = new ArrayList<Node>(4);
+      expand(n, children);
+      for (int i = 0; i < children.size(); i++) {
+         Node child = children.get(i);
+         long key = child.state.getZobristHash();
+         int known = table.get(key);
+         if (known != TranspositionTable.NOT_FOUND && known <= child.cost)
+            continue;
+         table.put(key, child.cost);
+         Node goal = boundedSearch(child, bound, nextBound);
+         if (goal != null)
+            return goal;
+      }
+      return null;
+   }
+
+   private static boolean isGoal(VacuumState s) {
+      return s.getNumDirtyLocs() == 0;
+   }
+
+   /** Replace the contents of children with the successors of a node. */
+   private static void expand(Node n, List<Node> children) {
+
+      children.clear();
+      VacuumState s = n.state;
+      int x = s.getAgentX();
+      int y = s.getAgentY();
+      if (s.hasDirt(x, y)) {
+         children.add(successor(n, SUCK));
+         return;
+      }
+      int dir = s.getAgentDir();
+      if (!s.hasObstacle(x + Direction.DELTA_X[dir], y + Direction.DELTA_Y[dir]))
+         children.add(successor(n, FORWARD));
+      children.add(successor(n, LEFT));
+      children.add(successor(n, RIGHT));
+   }
+
+   private static Node successor(Node n, Action action) {
+      VacuumState s = new VacuumState(n.state);
+      action.execute(null, s);
+      return new Node(s, n, action, n.cost + getCost(action));
+   }
+
+   /** Return the actions that lead to a goal node, followed by ShutOff. */
+   private static List<Action> getPlan(Node goal) {
+      ArrayList<Action> plan = new ArrayList<Action>();
+      plan.add(new ShutOff());
+      for (Node n = goal; n.parent != null; n = n.parent)
+         plan.add(n.action);
+      Collections.reverse(plan);
+      return plan;
+   }
+}
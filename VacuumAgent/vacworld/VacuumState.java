@@ -1,12 +1,13 @@
 package vacworld;
 
+import agent.Reversible;
 import agent.State;
 import java.io.*;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.ArrayList;
 
 /** Represents a state in the vacuum world. */
-public class VacuumState extends State {
+public class VacuumState extends State implements Reversible {
 
 	/* Constants for default initial state of the agent. */
 	protected static int INIT_X = 3;
@@ -33,6 +34,12 @@ public class VacuumState extends State {
 		{WALL, WALL, WALL, WALL, CLEAR, CLEAR, WALL},
 		{WALL, WALL, WALL, WALL, WALL, WALL, WALL}};
 
+	/* Salt and keys for the parts of a state's Zobrist hash that aren't
+     dirt. */
+	private static final long AGENT_SALT = 0x5a6f627269737421L;
+	private static final long ROBOT_OFF_KEY = VacuumMap.mix(AGENT_SALT + 1);
+	private static final long BUMP_KEY = VacuumMap.mix(AGENT_SALT + 2);
+
 	protected static double DIRT_CHANCE = 0.37;
 	protected static double WALL_CHANCE = 0.22;
 
@@ -45,8 +52,8 @@ public class VacuumState extends State {
 	/** True if the agent just bumped into something. */
 	protected boolean bump = false;
 
-	/** An array that contains the locations of objects in the world. */
-	protected int[][] map;
+	/** The locations of dirt and obstacles in the world. */
+	protected VacuumMap map;
 
 	protected int numDirtyLocs = 0;
 
@@ -56,6 +63,17 @@ public class VacuumState extends State {
 	/** Width of the map, including surrounding walls of the room. */
 	protected int width;
 
+	/** The marks made by markChanges() that haven't been undone, MARK_SIZE
+      ints each: the agent's x, y and direction, its flags, and the size
+      of dirtLog when the mark was made. */
+	private int[] marks = null;
+	private int numMarks = 0;
+	private static final int MARK_SIZE = 5;
+
+	/** The (x,y) of each square sucked clean since the oldest mark. */
+	private int[] dirtLog = null;
+	private int dirtLogSize = 0;
+
 	static final int DEFAULT_HEIGHT = 7;
 	static final int DEFAULT_WIDTH = 7;
 
@@ -68,8 +86,7 @@ public class VacuumState extends State {
 		state = new VacuumState();
 		state.width = defaultMap.length;
 		state.height = defaultMap[0].length;
-		state.map = new int[state.width][state.height];
-		state.map = defaultMap;
+		state.map = new VacuumMap(defaultMap);
 		state.numDirtyLocs = state.countDirtyLocs();
 		state.agentX = INIT_X;
 		state.agentY = INIT_Y;
@@ -102,71 +119,83 @@ public class VacuumState extends State {
 	 * impossible to reach with walls. */
 	protected static VacuumState getRandomState(Random rgen) {
 
+		return getRandomState(rgen, DEFAULT_WIDTH, DEFAULT_HEIGHT, DIRT_CHANCE,
+				WALL_CHANCE);
+	}
+
+	/** Return a random initial state for a room of any size, using a
+	 * specific seed. The room is surrounded by walls. Each square inside
+	 * it is rolled once: a roll of at most wallChance makes a wall, and
+	 * otherwise a roll of at most dirtChance makes dirt, just like
+	 * DIRT_CHANCE and WALL_CHANCE for the default room. The map is packed
+	 * into two bits per square and generated a column at a time, so even
+	 * very large rooms need little more memory than the map itself. Areas
+	 * that are impossible to reach are filled in with walls. */
+	public static VacuumState getRandomState(int width, int height,
+			double dirtChance, double wallChance, long seed) {
+
+		return getRandomState(new Random(seed), width, height, dirtChance,
+				wallChance);
+	}
+
+	/** Generate a random state for a room of any size. See
+	 * getRandomState(int,int,double,double,long). */
+	protected static VacuumState getRandomState(Random rgen, int width,
+			int height, double dirtChance, double wallChance) {
+
+		if (width < 3 || height < 3)
+			throw new IllegalArgumentException("A room must be at least 3x3: " +
+					width + "x" + height);
+
 		VacuumState state;
 		float roll;
 
 		state = new VacuumState();
-		state.agentX = rgen.nextInt(DEFAULT_WIDTH-2) + 1;
-		state.agentY = rgen.nextInt(DEFAULT_HEIGHT-2) + 1;
+		state.agentX = rgen.nextInt(width-2) + 1;
+		state.agentY = rgen.nextInt(height-2) + 1;
 		state.agentDir = INIT_DIR;
 		state.numDirtyLocs = 0;
-		state.height = DEFAULT_HEIGHT;
-		state.width = DEFAULT_WIDTH;
-		state.map = new int[state.width][state.height];
-		for (int i=0; i < state.width; i++) {
-			for (int j=0; j < state.height; j++) {
-				if (i == 0 || i == (state.width - 1))
-					state.map[i][j] = WALL;
-				else {
-					if (j == 0 || j == (state.height - 1))
-						state.map[i][j] = WALL;
-					else {
-						roll = rgen.nextFloat();
-						if ((i != state.agentX || j != state.agentY) && roll <= WALL_CHANCE) {
-							state.map[i][j] = WALL;
-						}
-						else if (roll <= DIRT_CHANCE) {
-							state.map[i][j] = DIRT;
-							// state.numDirtyLocs++;
-						}
-						else
-							state.map[i][j] = CLEAR;
-					}
+		state.height = height;
+		state.width = width;
+		state.map = new VacuumMap(width, height);
+
+		// bit j%64 of word j/64 stands for square j of the current column
+		long[] wallBits = new long[(height + 63) >>> 6];
+		long[] dirtBits = new long[wallBits.length];
+		for (int i=0; i < width; i++) {
+			if (i == 0 || i == (width - 1)) {
+				for (int w=0; w < wallBits.length; w++) {
+					wallBits[w] = -1L;
+					dirtBits[w] = 0;
 				}
 			}
-		}   
+			else {
+				for (int w=0; w < wallBits.length; w++) {
+					wallBits[w] = 0;
+					dirtBits[w] = 0;
+				}
+				wallBits[0] |= 1L;
+				wallBits[(height - 1) >>> 6] |= 1L << (height - 1);
+				for (int j=1; j < height - 1; j++) {
+					roll = rgen.nextFloat();
+					if ((i != state.agentX || j != state.agentY) && roll <= wallChance)
+						wallBits[j >>> 6] |= 1L << j;
+					else if (roll <= dirtChance)
+						dirtBits[j >>> 6] |= 1L << j;
+				}
+			}
+			state.map.setColumn(i, wallBits, dirtBits);
+		}
 		// state.display();
 		fillUnreachableSquares(state);
 		state.numDirtyLocs = state.countDirtyLocs();   // some dirty locs might have been filled by walls
 		return state;
 	}
 	
+	/** Replace every square that the agent can't reach from its current
+	 * location with a wall. See VacuumMap.fillUnreachable(). */
 	public static void fillUnreachableSquares(VacuumState state) {
-		// find reachable squares
-		ArrayList<Square> reachable = new ArrayList<Square>();
-		ArrayList<Square> frontier = new ArrayList<Square>();
-		Square start = new Square(state.agentX,state.agentY);
-		reachable.add(start);
-		frontier.add(start);
-		while (!frontier.isEmpty()) {
-			Square next = frontier.remove(0);
-			for (int i=0; i < 4; i++) {
-				Square gen = new Square(next.x +Direction.DELTA_X[i], next.y + Direction.DELTA_Y[i]);
-				if (state.map[gen.x][gen.y] != WALL && !reachable.contains(gen)) { 
-					frontier.add(gen);
-					reachable.add(gen);
-				}
-			}
-		}
-		
-		// replace unreachable squares with walls
-		for (int i=0; i < state.width; i++) {
-			for (int j=0; j < state.height; j++) {
-				Square temp = new Square(i,j);
-				if (!reachable.contains(temp))
-					state.map[i][j] = WALL;
-			}
-		}	
+		state.map.fillUnreachable(state.agentX, state.agentY);
 	}
 
 	/** Construct a new empty vacuum state. This should only be called
@@ -181,13 +210,30 @@ public class VacuumState extends State {
 
 		width = map.length;
 		height = map[0].length;
-		this.map = map;
+		this.map = new VacuumMap(map);
 		numDirtyLocs = countDirtyLocs();
 		agentX = INIT_X;
 		agentY = INIT_Y;
 		agentDir = INIT_DIR;
 	}
 
+	/** Construct a copy of another vacuum state. The copy shares the
+      other state's map until one of them changes it (see VacuumMap), so
+      copying takes constant time no matter how large the room is. This
+      lets a search-based agent copy states freely. */
+	public VacuumState(VacuumState other) {
+
+		width = other.width;
+		height = other.height;
+		map = new VacuumMap(other.map);
+		numDirtyLocs = other.numDirtyLocs;
+		agentX = other.agentX;
+		agentY = other.agentY;
+		agentDir = other.agentDir;
+		robotOff = other.robotOff;
+		bump = other.bump;
+	}
+
 	/** Return the agent's X position. */
 	public int getAgentX() {
 		return agentX;
@@ -239,25 +285,70 @@ public class VacuumState extends State {
 	/** Remove dirt from the specified location. */
 	public void removeDirt(int x, int y) {
 
-		if (map[x][y] == DIRT) {
-			map[x][y] = CLEAR;
+		if (map.hasDirt(x, y)) {
+			map.removeDirt(x, y);
 			numDirtyLocs--;
+			if (numMarks > 0) {
+				if (dirtLogSize == dirtLog.length)
+					dirtLog = Arrays.copyOf(dirtLog, dirtLogSize * 2);
+				dirtLog[dirtLogSize++] = x;
+				dirtLog[dirtLogSize++] = y;
+			}
+		}
+	}
+
+	/** Remember the agent's situation for Action.apply(). An action changes
+      at most the agent and one square, so this only saves a few ints, and
+      the squares that are sucked clean are logged by removeDirt(). */
+	public void markChanges() {
+
+		if (marks == null) {
+			marks = new int[16 * MARK_SIZE];
+			dirtLog = new int[32];
+		}
+		else if (numMarks * MARK_SIZE == marks.length)
+			marks = Arrays.copyOf(marks, marks.length * 2);
+		int m = numMarks++ * MARK_SIZE;
+		marks[m] = agentX;
+		marks[m + 1] = agentY;
+		marks[m + 2] = agentDir;
+		marks[m + 3] = (robotOff ? 1 : 0) | (bump ? 2 : 0);
+		marks[m + 4] = dirtLogSize;
+	}
+
+	/** Put the agent and the dirt back the way they were at the most
+      recent mark, for Action.undo(). */
+	public void undoChanges() {
+
+		if (numMarks == 0)
+			throw new IllegalStateException("No changes to undo");
+		int m = --numMarks * MARK_SIZE;
+		agentX = marks[m];
+		agentY = marks[m + 1];
+		agentDir = marks[m + 2];
+		robotOff = (marks[m + 3] & 1) != 0;
+		bump = (marks[m + 3] & 2) != 0;
+		while (dirtLogSize > marks[m + 4]) {
+			dirtLogSize -= 2;
+			map.set(dirtLog[dirtLogSize], dirtLog[dirtLogSize + 1], DIRT);
+			numDirtyLocs++;
 		}
 	}
 
 	/** Return true if the specified location has dirt in it. */
 	public boolean hasDirt(int x, int y) {
 
-		if (map[x][y] == DIRT)
+		if (map.hasDirt(x, y))
 			return true;
 		else
 			return false;
 	}
 
-	/** Return true if the specified location has an obstacle in it. */
+	/** Return true if the specified location has an obstacle in it.
+      Locations outside the map count as obstacles. */
 	public boolean hasObstacle(int x, int y) {
 
-		if (map[x][y] == WALL)
+		if (map.hasWall(x, y))
 			return true;
 		else
 			return false;
@@ -285,6 +376,49 @@ public class VacuumState extends State {
 		return robotOff;
 	}
 
+	/** Return a 64-bit Zobrist hash of the state: the dirt hash of the
+      map (see VacuumMap.getDirtHash()) combined with agentKey() for the
+      agent's position and orientation, and with ROBOT_OFF_KEY and
+      BUMP_KEY if those flags are set. */
+	public long getZobristHash() {
+
+		long h = map.getDirtHash() ^ agentKey(agentX, agentY, agentDir);
+		if (robotOff)
+			h ^= ROBOT_OFF_KEY;
+		if (bump)
+			h ^= BUMP_KEY;
+		return h;
+	}
+
+	/** Return the key for an agent at (x,y) facing dir, used in the
+      Zobrist hash of a state. */
+	public static long agentKey(int x, int y, int dir) {
+
+		return VacuumMap.mix(AGENT_SALT ^ (((long)x << 40) ^ ((long)y << 8) ^ dir));
+	}
+
+	/** Two states are equal if the agent is in the same situation, and the
+      maps have the same walls and dirt. The Zobrist hashes are compared
+      first, so unequal states are usually told apart without looking at
+      the maps. */
+	public boolean equals(Object o) {
+
+		if (!(o instanceof VacuumState))
+			return false;
+		VacuumState s = (VacuumState)o;
+		if (getZobristHash() != s.getZobristHash())
+			return false;
+		return agentX == s.agentX && agentY == s.agentY &&
+			agentDir == s.agentDir && robotOff == s.robotOff &&
+			bump == s.bump && map.equals(s.map);
+	}
+
+	public int hashCode() {
+
+		long h = getZobristHash();
+		return (int)(h ^ (h >>> 32));
+	}
+
 	/** Return the number of dirty locations in the state. */
 	public int getNumDirtyLocs() {
 
@@ -352,14 +486,7 @@ public class VacuumState extends State {
       state. */
 	private int countDirtyLocs() {
 
-		int dirtCount = 0;
-		for (int dx=1; dx < width; dx++) {
-			for (int dy=1; dy < height; dy++) {
-				if (map[dx][dy] == DIRT)
-					dirtCount++;
-			}
-		}
-		return dirtCount;
+		return map.countDirt();
 	}
 
 	/** A utility method used to determine what character should
@@ -380,24 +507,3 @@ public class VacuumState extends State {
 		return "A";
 	}
 }
-
-/** This class is used to encapsulate the notion of a position in the map. */
-class Square {
-	int x;
-	int y;
-	
-	Square(int x, int y) {
-		this.x = x;
-		this.y = y;
-	}
-	
-	public boolean equals(Object o) {
-		if (!(o instanceof Square))
-			return false;
-		Square s = (Square)o;
-		if (s.x == x && s.y == y)
-			return true;
-		else
-			return false;
-	}
-}
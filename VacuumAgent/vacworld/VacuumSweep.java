@@ -0,0 +1,284 @@
+package vacworld;
+
+import agent.*;
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/** Runs a vacuum cleaning agent over a range of random seeds in parallel
+    and summarizes the scores. Every run uses its own non-interactive
+    VacuumWorld whose output is sent to a null sink, so the cost of a
+    sweep is the cost of the agent and the simulation, not of console I/O.
+    The components reported by VacuumWorld.printScore() are aggregated
+    into percentiles. */
+public class VacuumSweep {
+
+   /** The names of the score components, in the order they are stored
+      in a Result. */
+   public static final String[] COMPONENTS =
+   {"score", "moves", "turns", "sucks", "bumps", "dirt", "timeouts"};
+
+   protected static final int SCORE = 0;
+   protected static final int MOVES = 1;
+   protected static final int TURNS = 2;
+   protected static final int SUCKS = 3;
+   protected static final int BUMPS = 4;
+   protected static final int DIRT = 5;
+   protected static final int TIMEOUTS = 6;
+
+   /** An output stream that throws away everything written to it. */
+   protected static final PrintStream NULL_OUTPUT =
+      new PrintStream(new OutputStream() {
+         public void write(int b) {
+         }
+         public void write(byte[] b, int off, int len) {
+         }
+      });
+
+   /** The score components of a single run. */
+   public static class Result {
+
+      int seed;
+      int[] values = new int[COMPONENTS.length];
+      String error;
+
+      public int getSeed() {
+         return seed;
+      }
+
+      /** Return the value of a component, indexed as in COMPONENTS. */
+      public int getValue(int component) {
+         return values[component];
+      }
+
+      /** Returns a description of the exception that ended the run, or
+         null if the simulation ran to completion. */
+      public String getError() {
+         return error;
+      }
+
+      public String toString() {
+         StringBuffer str = new StringBuffer();
+         str.append(seed);
+         for (int i = 0; i < values.length; i++)
+            str.append("," + values[i]);
+         if (error != null)
+            str.append(",\"" + error.replace("\"", "'") + "\"");
+         return str.toString();
+      }
+   }
+
+   private Constructor<? extends Agent> agentConstructor;
+   private int numThreads;
+
+   /** Create a sweep for the given agent class, which must have a public
+      no-arg constructor. If numThreads is less than one, all available
+      processors are used. */
+   public VacuumSweep(Class<? extends Agent> agentClass, int numThreads) {
+
+      try {
+         this.agentConstructor = agentClass.getDeclaredConstructor();
+      } catch (NoSuchMethodException ex) {
+         throw new IllegalArgumentException(agentClass.getName()
+            + " has no no-arg constructor");
+      }
+      if (numThreads < 1)
+         numThreads = Runtime.getRuntime().availableProcessors();
+      this.numThreads = numThreads;
+   }
+
+   /** Run the agent on the random state for a single seed. This is safe to
+      call from several threads at once. */
+   public Result runOne(int seed) throws Exception {
+
+      Result r = new Result();
+      r.seed = seed;
+
+      VacuumWorld world = new VacuumWorld(NULL_OUTPUT, false);
+      try {
+         world.addAgent(agentConstructor.newInstance());
+      } catch (InvocationTargetException ex) {
+         // report what the agent's constructor threw, not the wrapper
+         Throwable cause = ex.getCause();
+         if (cause instanceof Exception)
+            throw (Exception) cause;
+         throw (Error) cause;
+      }
+      try {
+         world.start(VacuumState.getRandomState(seed));
+      } catch (RuntimeException ex) {
+         r.error = ex.toString();
+      }
+
+      r.values[SCORE] = world.getPerformanceMeasure();
+      r.values[MOVES] = world.numMoves;
+      r.values[TURNS] = world.numTurns;
+      r.values[SUCKS] = world.numSucks;
+      r.values[BUMPS] = world.numBumps;
+      r.values[DIRT] = world.getNumDirtyLocs();
+      r.values[TIMEOUTS] = world.timedOut() ? 1 : 0;
+      return r;
+   }
+
+   /** Run every seed in [firstSeed, firstSeed + numSeeds). The results are
+      returned in seed order. */
+   public List<Result> run(int firstSeed, int numSeeds)
+      throws InterruptedException, ExecutionException {
+
+      List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+      for (int i = 0; i < numSeeds; i++) {
+         final int seed = firstSeed + i;
+         tasks.add(new Callable<Result>() {
+            public Result call() throws Exception {
+               return runOne(seed);
+            }
+         });
+      }
+
+      ForkJoinPool pool = new ForkJoinPool(numThreads);
+      List<Result> results = new ArrayList<Result>(numSeeds);
+      try {
+         List<Future<Result>> futures = pool.invokeAll(tasks);
+         for (Future<Result> f : futures)
+            results.add(f.get());
+      }
+      finally {
+         pool.shutdown();
+      }
+      return results;
+   }
+
+   /** Return the value at the given percentile (0 to 100) of a sorted
+      array, using the nearest-rank method. */
+   protected static int percentile(int[] sorted, double pct) {
+
+      if (sorted.length == 0)
+         return 0;
+      int rank = (int)Math.ceil(pct / 100.0 * sorted.length);
+      if (rank < 1)
+         rank = 1;
+      return sorted[rank - 1];
+   }
+
+   /** Print the mean, minimum, median, 90th and 99th percentile and
+      maximum of each score component. */
+   public static void printSummary(List<Result> results, PrintStream out) {
+
+      int n = results.size();
+      int errors = 0;
+      for (Result r : results)
+         if (r.error != null)
+            errors++;
+
+      out.println("Sweep of " + n + " seeds" +
+            (errors > 0 ? " (" + errors + " ended with an error)" : ""));
+      out.println("----------");
+      out.println("  \tmean\tmin\tp50\tp90\tp99\tmax");
+      for (int c = 0; c < COMPONENTS.length; c++) {
+         int[] vals = new int[n];
+         long sum = 0;
+         for (int i = 0; i < n; i++) {
+            vals[i] = results.get(i).values[c];
+            sum += vals[i];
+         }
+         Arrays.sort(vals);
+         out.println("  " + COMPONENTS[c] + ":\t" +
+               (n == 0 ? 0 : Math.round(100.0 * sum / n) / 100.0) + "\t" +
+               percentile(vals, 0) + "\t" + percentile(vals, 50) + "\t" +
+               percentile(vals, 90) + "\t" + percentile(vals, 99) + "\t" +
+               percentile(vals, 100));
+      }
+      out.println();
+   }
+
+   /** Runs the sweep. The usage is:
+    * <pre>
+    * java vacworld.VacuumSweep [-threads n] [-seeds first count]
+    *    [-agent classname] [-runs] agentpack
+    * </pre>
+    * As with VacuumWorld, the agent is loaded from the VacAgentWithState
+    * class of the given package, unless another class name is given with
+    * -agent. The -runs switch prints the score components of every seed
+    * as well as the summary. Anything the agent prints to System.out is
+    * discarded while the sweep runs. */
+   public static void main(String[] args) {
+
+      int numThreads = 0;
+      int firstSeed = 0;
+      int numSeeds = 100;
+      boolean printRuns = false;
+      String className = "VacAgentWithState";
+      String agentPack = null;
+      String usage = "Usage: java vacworld.VacuumSweep [-threads n] " +
+      "[-seeds first count] [-agent classname] [-runs] agentpack";
+
+      try {
+         for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads"))
+               numThreads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seeds")) {
+               firstSeed = Integer.parseInt(args[++i]);
+               numSeeds = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-agent"))
+               className = args[++i];
+            else if (args[i].equals("-runs"))
+               printRuns = true;
+            else if (agentPack == null)
+               agentPack = args[i];
+            else
+               throw new IllegalArgumentException("Invalid command line arguments.");
+         }
+      } catch (RuntimeException ex) {
+         System.err.println("ERROR: " + ex.getMessage());
+         System.err.println(usage);
+         System.exit(1);
+      }
+      if (agentPack == null) {
+         System.err.println(usage);
+         System.exit(1);
+      }
+
+      Class<? extends Agent> agentClass = null;
+      String agentName = agentPack + "." + className;
+      try {
+         ClassLoader myClassLoader = ClassLoader.getSystemClassLoader();
+         agentClass = myClassLoader.loadClass(agentName).asSubclass(Agent.class);
+      } catch (Exception ex) {
+         System.err.println("ERROR: Loading class " + agentName);
+         System.exit(1);
+      }
+
+      PrintStream console = System.out;
+      List<Result> results = null;
+      try {
+         System.setOut(NULL_OUTPUT);
+         results = new VacuumSweep(agentClass, numThreads).run(firstSeed, numSeeds);
+      } catch (Exception ex) {
+         System.setOut(console);
+         System.err.println("ERROR - Running sweep");
+         ex.printStackTrace();
+         System.exit(1);
+      }
+      System.setOut(console);
+
+      if (printRuns) {
+         StringBuffer header = new StringBuffer("seed");
+         for (int c = 0; c < COMPONENTS.length; c++)
+            header.append("," + COMPONENTS[c]);
+         header.append(",error");
+         console.println(header);
+         for (Result r : results)
+            console.println(r);
+         console.println();
+      }
+      printSummary(results, console);
+   }
+}
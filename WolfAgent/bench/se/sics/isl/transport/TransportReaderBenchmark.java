@@ -0,0 +1,298 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TransportReaderBenchmark
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.isl.transport;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.Random;
+
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.props.AdminContent;
+import se.sics.tasim.props.OfferBundle;
+import se.sics.tasim.props.RFQBundle;
+import se.sics.tasim.props.SCMInfo;
+
+/**
+ * Measures BinaryTransportReader.  It first checks that messages with
+ * bundles, many (repeated and non-ASCII) strings, and int arrays are
+ * read back as they were written, from heap arrays and from direct
+ * buffers.  It then reports the time and the bytes allocated to parse
+ * RFQ and offer bundles like those sent every day in a game.
+ *
+ * Usage: java se.sics.isl.transport.TransportReaderBenchmark
+ *          [-size 100] [-millis 1000]
+ */
+public class TransportReaderBenchmark {
+
+  /** A content with an int array, which no props use yet */
+  public static class ArrayContent implements Transportable {
+
+    int[] values;
+
+    public ArrayContent() {
+    }
+
+    ArrayContent(int[] values) {
+      this.values = values;
+    }
+
+    public String getTransportName() {
+      return "arrayContent";
+    }
+
+    public void read(TransportReader reader) throws ParseException {
+      values = new int[reader.getAttributeArrayLength("values")];
+      reader.getAttributeAsIntArray("values", values, 0);
+    }
+
+    public void write(TransportWriter writer) {
+      writer.attr("values", values);
+    }
+  }
+
+  private static Context context;
+  private static long measureMillis = 1000;
+
+  /**
+   * Returns the bytes of the messages as written on one connection,
+   * where only the first message carries the aliases of the names.
+   */
+  private static byte[][] encode(Message[] messages) {
+    BinaryTransportWriter writer = new BinaryTransportWriter();
+    byte[][] data = new byte[messages.length][];
+    for (int i = 0; i < messages.length; i++) {
+      writer.clear();
+      writer.node(messages[i].getTransportName());
+      messages[i].write(writer);
+      writer.endNode(messages[i].getTransportName());
+      writer.finish();
+      data[i] = writer.getBytes();
+    }
+    return data;
+  }
+
+  private static Message parse(BinaryTransportReader reader, byte[] data,
+			       ByteBuffer buffer) throws ParseException {
+    if (buffer == null) {
+      reader.setMessage(data);
+    } else {
+      // Leave some other data before the message in the buffer
+      buffer.clear();
+      buffer.position(7);
+      buffer.put(data);
+      reader.setMessage(buffer, 7, data.length);
+    }
+    Message msg = new Message();
+    reader.nextNode(msg.getTransportName(), true);
+    reader.enterNode();
+    msg.read(reader);
+    return msg;
+  }
+
+  private static RFQBundle createRFQs(Random random, int size) {
+    RFQBundle rfqs = new RFQBundle(random.nextInt(220));
+    for (int i = 0; i < size; i++) {
+      rfqs.addRFQ(i + 1, 1 + random.nextInt(16), 1 + random.nextInt(20),
+		  random.nextInt(220), 1000 + random.nextInt(2000),
+		  random.nextInt(500));
+    }
+    return rfqs;
+  }
+
+  private static OfferBundle createOffers(Random random, int size) {
+    OfferBundle offers = new OfferBundle(random.nextInt(220));
+    for (int i = 0; i < size; i++) {
+      offers.addOffer(i + 1, random.nextInt(1000), 1000 + random.nextInt(2000),
+		      random.nextInt(220), 1 + random.nextInt(20));
+    }
+    return offers;
+  }
+
+  private static String randomString(Random random) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0, n = random.nextInt(80); i < n; i++) {
+      // Mostly ASCII with some two and three byte characters
+      int r = random.nextInt(10);
+      sb.append((char) (r < 8 ? 'a' + random.nextInt(26)
+			: r == 8 ? 0xe5 : 0x20ac));
+    }
+    return sb.toString();
+  }
+
+  private static boolean check(boolean direct) throws ParseException {
+    Random random = new Random(1);
+    String[] names = new String[40];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = randomString(random);
+    }
+
+    Message[] messages = new Message[400];
+    for (int i = 0; i < messages.length; i++) {
+      Transportable content;
+      switch (i % 4) {
+      case 0:
+	content = createRFQs(random, random.nextInt(50));
+	break;
+      case 1:
+	content = createOffers(random, random.nextInt(50));
+	break;
+      case 2: {
+	AdminContent admin = new AdminContent(AdminContent.NONE);
+	for (int j = 0, n = random.nextInt(30); j < n; j++) {
+	  // Repeated strings (from the cache) and new strings
+	  admin.setAttribute("a" + j, random.nextBoolean()
+			     ? names[random.nextInt(names.length)]
+			     : randomString(random));
+	}
+	content = admin;
+	break;
+      }
+      default: {
+	int[] values = new int[random.nextInt(100)];
+	for (int j = 0; j < values.length; j++) {
+	  values[j] = random.nextInt();
+	}
+	content = new ArrayContent(values);
+	break;
+      }
+      }
+      messages[i] = new Message(names[random.nextInt(names.length)],
+				names[random.nextInt(names.length)],
+				content);
+    }
+
+    byte[][] data = encode(messages);
+    BinaryTransportReader reader = new BinaryTransportReader();
+    reader.setContext(context);
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(1 << 16) : null;
+    int bad = 0;
+    for (int i = 0; i < messages.length; i++) {
+      Message msg = parse(reader, data[i], buffer);
+      if (!msg.getSender().equals(messages[i].getSender())
+	  || !msg.getReceiver().equals(messages[i].getReceiver())
+	  || !toString(msg.getContent())
+	  .equals(toString(messages[i].getContent()))) {
+	bad++;
+      }
+    }
+    System.out.println("check " + (direct ? "direct buffer" : "byte array")
+		       + ": " + bad + " wrong of " + messages.length);
+    return bad == 0;
+  }
+
+  private static String toString(Transportable content) {
+    if (content instanceof ArrayContent) {
+      int[] values = ((ArrayContent) content).values;
+      StringBuffer sb = new StringBuffer();
+      for (int i = 0; i < values.length; i++) {
+	sb.append(values[i]).append(',');
+      }
+      return sb.toString();
+    }
+    return content.toString();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean)
+	    ManagementFactory.getThreadMXBean())
+      .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void bench(String name, Transportable content,
+			    boolean direct) throws ParseException {
+    Message[] messages = new Message[2];
+    for (int i = 0; i < messages.length; i++) {
+      messages[i] = new Message("Pintel", "wolfagent", content);
+    }
+    byte[][] data = encode(messages);
+    BinaryTransportReader reader = new BinaryTransportReader();
+    reader.setContext(context);
+    ByteBuffer buffer = null;
+    if (direct) {
+      buffer = ByteBuffer.allocateDirect(data[0].length + 7);
+    }
+    // The first message carries the aliases
+    parse(reader, data[0], buffer);
+
+    // Warm up, then measure
+    long end = System.currentTimeMillis() + measureMillis / 2;
+    while (System.currentTimeMillis() < end) {
+      parse(reader, data[1], buffer);
+    }
+    long count = 0;
+    long allocated = allocatedBytes();
+    long start = System.nanoTime();
+    end = System.currentTimeMillis() + measureMillis;
+    do {
+      for (int i = 0; i < 100; i++) {
+	parse(reader, data[1], buffer);
+      }
+      count += 100;
+    } while (System.currentTimeMillis() < end);
+    long nanos = System.nanoTime() - start;
+    allocated = allocatedBytes() - allocated;
+    System.out.println(String.format("%-14s %-6s %8d %12.0f %14.0f",
+	new Object[] {
+	  name, direct ? "direct" : "array", new Integer(data[1].length),
+	  new Double(nanos / (double) count),
+	  new Double(allocated / (double) count)
+	}));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = 100;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-size")) {
+	size = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-millis")) {
+	measureMillis = Long.parseLong(args[++i]);
+      } else {
+	System.err.println("Usage: java se.sics.isl.transport."
+			   + "TransportReaderBenchmark [-size 100]"
+			   + " [-millis 1000]");
+	System.exit(1);
+      }
+    }
+
+    context = SCMInfo.createContext(AdminContent.createContext());
+    context.addTransportable(new ArrayContent());
+    boolean ok = check(false);
+    ok &= check(true);
+
+    System.out.println("message        buffer    bytes       ns/msg"
+		       + "    bytes/msg");
+    Random random = new Random(2);
+    RFQBundle rfqs = createRFQs(random, size);
+    OfferBundle offers = createOffers(random, size);
+    bench("RFQBundle", rfqs, false);
+    bench("RFQBundle", rfqs, true);
+    bench("OfferBundle", offers, false);
+    bench("OfferBundle", offers, true);
+    if (!ok) {
+      System.exit(1);
+    }
+  }
+
+} // TransportReaderBenchmark
@@ -0,0 +1,291 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TransportWriterBenchmark
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.isl.transport;
+import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import se.sics.isl.util.BufferPool;
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.props.AdminContent;
+import se.sics.tasim.props.OfferBundle;
+import se.sics.tasim.props.RFQBundle;
+
+/**
+ * Measures BinaryTransportWriter when writing messages to a channel.
+ * It first checks that messages encoded into pooled buffers (with
+ * small buffers, to split numbers and strings between buffers) are
+ * framed and encoded exactly as when encoded into an array.  It then
+ * compares writing the daily burst of bundles by copying each message
+ * into one direct buffer with a gathering write from the buffers the
+ * message was encoded into.
+ *
+ * Usage: java se.sics.isl.transport.TransportWriterBenchmark
+ *          [-size 100] [-millis 1000] [-file /dev/null]
+ */
+public class TransportWriterBenchmark {
+
+  private static long measureMillis = 1000;
+
+  private static void encode(BinaryTransportWriter writer, Message msg) {
+    writer.clear();
+    writer.node(msg.getTransportName());
+    msg.write(writer);
+    writer.endNode(msg.getTransportName());
+    writer.finish();
+  }
+
+  private static RFQBundle createRFQs(Random random, int size) {
+    RFQBundle rfqs = new RFQBundle(random.nextInt(220));
+    for (int i = 0; i < size; i++) {
+      rfqs.addRFQ(i + 1, 1 + random.nextInt(16), 1 + random.nextInt(20),
+		  random.nextInt(220), 1000 + random.nextInt(2000),
+		  random.nextInt(500));
+    }
+    return rfqs;
+  }
+
+  private static OfferBundle createOffers(Random random, int size) {
+    OfferBundle offers = new OfferBundle(random.nextInt(220));
+    for (int i = 0; i < size; i++) {
+      offers.addOffer(i + 1, random.nextInt(1000), 1000 + random.nextInt(2000),
+		      random.nextInt(220), 1 + random.nextInt(20));
+    }
+    return offers;
+  }
+
+  private static String randomString(Random random) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0, n = random.nextInt(120); i < n; i++) {
+      int r = random.nextInt(10);
+      sb.append((char) (r < 8 ? 'a' + random.nextInt(26)
+			: r == 8 ? 0xe5 : 0x20ac));
+    }
+    return sb.toString();
+  }
+
+  private static boolean check(int bufferSize) {
+    Random random = new Random(1);
+    BufferPool pool = new BufferPool(bufferSize, 16);
+    BinaryTransportWriter arrayWriter = new BinaryTransportWriter();
+    BinaryTransportWriter bufferWriter = new BinaryTransportWriter();
+    bufferWriter.setBufferPool(pool);
+    ByteBuffer[] buffers = new ByteBuffer[4];
+    int bad = 0;
+    int messages = 400;
+    for (int i = 0; i < messages; i++) {
+      Transportable content;
+      switch (i % 3) {
+      case 0:
+	content = createRFQs(random, random.nextInt(50));
+	break;
+      case 1:
+	content = createOffers(random, random.nextInt(50));
+	break;
+      default: {
+	AdminContent admin = new AdminContent(AdminContent.NONE);
+	for (int j = 0, n = random.nextInt(30); j < n; j++) {
+	  // New attribute names give aliases in later messages
+	  admin.setAttribute("a" + random.nextInt(i + 1),
+			     randomString(random));
+	}
+	content = admin;
+	break;
+      }
+      }
+      Message msg = new Message("Pintel", "wolfagent", content);
+      encode(arrayWriter, msg);
+      encode(bufferWriter, msg);
+      byte[] expected = arrayWriter.getBytes();
+      if (bufferWriter.size() != expected.length
+	  || !Arrays.equals(bufferWriter.getBytes(), expected)) {
+	bad++;
+	continue;
+      }
+
+      int count = bufferWriter.getBufferCount();
+      if (count > buffers.length) {
+	buffers = new ByteBuffer[count];
+      }
+      int added = bufferWriter.drainBuffers(buffers, 0);
+      ByteBuffer frame = ByteBuffer.allocate(expected.length + 4);
+      for (int j = 0; j < added; j++) {
+	if (frame.remaining() < buffers[j].remaining()) {
+	  break;
+	}
+	frame.put(buffers[j]);
+	pool.release(buffers[j]);
+	buffers[j] = null;
+      }
+      frame.flip();
+      if (added != count || bufferWriter.size() != 0
+	  || frame.remaining() != expected.length + 4
+	  || frame.getInt() != expected.length) {
+	bad++;
+	continue;
+      }
+      byte[] data = new byte[expected.length];
+      frame.get(data);
+      if (!Arrays.equals(data, expected)) {
+	bad++;
+      }
+    }
+    System.out.println("check " + bufferSize + " byte buffers: " + bad
+		       + " wrong of " + messages + ", allocated "
+		       + pool.getAllocatedCount() + " buffers");
+    return bad == 0;
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean)
+	    ManagementFactory.getThreadMXBean())
+      .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void writeCopied(FileChannel channel, BufferPool pool,
+				  BinaryTransportWriter writer, Message[] burst)
+    throws Exception
+  {
+    for (int i = 0; i < burst.length; i++) {
+      encode(writer, burst[i]);
+      int size = writer.size();
+      ByteBuffer buffer = pool.acquire(size + 4);
+      buffer.putInt(size);
+      writer.write(buffer);
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+	channel.write(buffer);
+      }
+      pool.release(buffer);
+    }
+  }
+
+  private static void writeGathered(FileChannel channel, BufferPool pool,
+				    BinaryTransportWriter writer,
+				    Message[] burst, ByteBuffer[] buffers)
+    throws Exception
+  {
+    for (int i = 0; i < burst.length; i++) {
+      encode(writer, burst[i]);
+      int count = writer.drainBuffers(buffers, 0);
+      int offset = 0;
+      while (offset < count) {
+	channel.write(buffers, offset, count - offset);
+	while (offset < count && !buffers[offset].hasRemaining()) {
+	  pool.release(buffers[offset]);
+	  buffers[offset++] = null;
+	}
+      }
+    }
+  }
+
+  private static void bench(String name, FileChannel channel,
+			    Message[] burst, boolean gather)
+    throws Exception
+  {
+    BufferPool pool = new BufferPool(16 * 1024, 64);
+    BinaryTransportWriter writer = new BinaryTransportWriter();
+    ByteBuffer[] buffers = new ByteBuffer[16];
+    if (gather) {
+      writer.setBufferPool(pool);
+    }
+
+    long end = System.currentTimeMillis() + measureMillis / 2;
+    long count = 0;
+    long allocated = 0;
+    long start = 0;
+    boolean warmup = true;
+    do {
+      if (gather) {
+	writeGathered(channel, pool, writer, burst, buffers);
+      } else {
+	writeCopied(channel, pool, writer, burst);
+      }
+      count++;
+      if (warmup && System.currentTimeMillis() >= end) {
+	warmup = false;
+	count = 0;
+	allocated = allocatedBytes();
+	start = System.nanoTime();
+	end = System.currentTimeMillis() + measureMillis;
+      }
+    } while (warmup || System.currentTimeMillis() < end);
+    long nanos = System.nanoTime() - start;
+    allocated = allocatedBytes() - allocated;
+    System.out.println(String.format("%-14s %-8s %12.0f %14.0f",
+	new Object[] {
+	  name, gather ? "gather" : "copy",
+	  new Double(nanos / (double) count / burst.length),
+	  new Double(allocated / (double) count / burst.length)
+	}));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = 100;
+    String file = "/dev/null";
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-size")) {
+	size = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-millis")) {
+	measureMillis = Long.parseLong(args[++i]);
+      } else if (args[i].equals("-file")) {
+	file = args[++i];
+      } else {
+	System.err.println("Usage: java se.sics.isl.transport."
+			   + "TransportWriterBenchmark [-size 100]"
+			   + " [-millis 1000] [-file /dev/null]");
+	System.exit(1);
+      }
+    }
+
+    boolean ok = check(16 * 1024);
+    ok &= check(64);
+    ok &= check(7);
+
+    // The daily burst of an agent: RFQs, offers and orders
+    Random random = new Random(2);
+    Message[] burst = new Message[] {
+      new Message("wolfagent", "Pintel", createRFQs(random, size)),
+      new Message("wolfagent", "Mec", createRFQs(random, size)),
+      new Message("wolfagent", "customer", createOffers(random, size)),
+      new Message("wolfagent", "Queenmax", createRFQs(random, size / 4))
+    };
+    FileChannel channel = new FileOutputStream(file).getChannel();
+    System.out.println("messages       write          ns/msg"
+		       + "    bytes/msg");
+    bench("daily burst", channel, burst, false);
+    bench("daily burst", channel, burst, true);
+    bench("daily burst", channel, burst, false);
+    bench("daily burst", channel, burst, true);
+    channel.close();
+    if (!ok) {
+      System.exit(1);
+    }
+  }
+
+} // TransportWriterBenchmark
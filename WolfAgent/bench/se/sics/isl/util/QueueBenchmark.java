@@ -0,0 +1,268 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * QueueBenchmark
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.isl.util;
+import com.botbox.util.ArrayQueue;
+
+/**
+ * Compares ConcurrentArrayQueue with an ArrayQueue guarded by
+ * synchronized and wait/notify, as the message queues of the sim
+ * client and the message senders used to be.  Each producer thread
+ * adds a number of messages that one consumer thread takes, and the
+ * consumer checks that no message is lost and that the messages of
+ * each producer arrive in order.  The benchmark is repeated for each
+ * queue and number of producers, and the best run is reported.
+ *
+ * It first checks that producers using <code>add</code> never wait on
+ * a full ConcurrentArrayQueue: the producers add many times the
+ * capacity before the consumer starts, and the consumer then checks
+ * that every message arrives in order, also while producers keep
+ * adding to the overflow list.
+ *
+ * Usage: java se.sics.isl.util.QueueBenchmark
+ *          [-producers 1,2,4] [-messages 1000000] [-runs 5]
+ *          [-capacity 4096]
+ */
+public class QueueBenchmark {
+
+  private static final int TOKENS = 1024;
+
+  /** A message: the producer and its sequence number (modulo TOKENS) */
+  private static class Token {
+    final int producer;
+    final int index;
+
+    Token(int producer, int index) {
+      this.producer = producer;
+      this.index = index;
+    }
+  }
+
+  private interface Queue {
+    void add(Object element);
+    Object next();
+  }
+
+  /** The old queue handling */
+  private static class SynchronizedQueue implements Queue {
+    private final ArrayQueue queue = new ArrayQueue();
+
+    public synchronized void add(Object element) {
+      queue.add(element);
+      notify();
+    }
+
+    public synchronized Object next() {
+      while (queue.size() == 0) {
+	try {
+	  wait();
+	} catch (InterruptedException e) {
+	}
+      }
+      return queue.remove(0);
+    }
+  }
+
+  private static class LockFreeQueue implements Queue {
+    private final ConcurrentArrayQueue queue;
+
+    LockFreeQueue(int capacity) {
+      queue = new ConcurrentArrayQueue(capacity);
+    }
+
+    public void add(Object element) {
+      queue.put(element);
+    }
+
+    public Object next() {
+      return queue.take();
+    }
+  }
+
+  private static Token[][] tokens;
+
+  /**
+   * Returns the time in nanoseconds to pass the messages or -1 if
+   * any message was lost or out of order.
+   */
+  private static long run(final Queue queue, int producers,
+			  final int messages) throws InterruptedException {
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final Token[] producerTokens = tokens[p];
+      threads[p] = new Thread(new Runnable() {
+	  public void run() {
+	    for (int i = 0; i < messages; i++) {
+	      queue.add(producerTokens[i % TOKENS]);
+	    }
+	  }
+	}, "Producer." + p);
+    }
+
+    long start = System.nanoTime();
+    for (int p = 0; p < producers; p++) {
+      threads[p].start();
+    }
+    int[] next = new int[producers];
+    boolean ok = true;
+    for (int i = 0, n = producers * messages; i < n; i++) {
+      Token token = (Token) queue.next();
+      if (token.index != next[token.producer]++ % TOKENS) {
+	ok = false;
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    for (int p = 0; p < producers; p++) {
+      threads[p].join();
+      if (next[p] != messages) {
+	ok = false;
+      }
+    }
+    return ok ? nanos : -1L;
+  }
+
+  /**
+   * Returns true if producers could add far more messages than the
+   * capacity without a consumer, and all messages arrived in order.
+   */
+  private static boolean checkOverflow(int producers, int capacity)
+    throws InterruptedException
+  {
+    final ConcurrentArrayQueue queue = new ConcurrentArrayQueue(capacity);
+    final int messages = capacity * 8;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final Token[] producerTokens = tokens[p];
+      threads[p] = new Thread(new Runnable() {
+	  public void run() {
+	    for (int i = 0; i < messages; i++) {
+	      queue.add(producerTokens[i % TOKENS]);
+	    }
+	  }
+	}, "Producer." + p);
+    }
+
+    // First half of the producers without a consumer
+    int half = (producers + 1) / 2;
+    for (int p = 0; p < half; p++) {
+      threads[p].start();
+    }
+    boolean ok = true;
+    for (int p = 0; p < half; p++) {
+      threads[p].join(10000);
+      if (threads[p].isAlive()) {
+	// Waiting for room
+	ok = false;
+      }
+    }
+    // The rest while the consumer empties the queue
+    for (int p = half; p < producers; p++) {
+      threads[p].start();
+    }
+    int[] next = new int[producers];
+    for (int i = 0, n = producers * messages; i < n && ok; i++) {
+      Token token = (Token) queue.take();
+      if (token.index != next[token.producer]++ % TOKENS) {
+	ok = false;
+      }
+    }
+    for (int p = 0; p < producers; p++) {
+      threads[p].join();
+    }
+    ok = ok && queue.isEmpty();
+    System.out.println("check overflow with " + producers + " producers: "
+		       + (ok ? "ok" : "FAILED"));
+    return ok;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String producerList = "1,2,4";
+    int messages = 1000000;
+    int runs = 5;
+    int capacity = 4096;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-producers")) {
+	producerList = args[++i];
+      } else if (args[i].equals("-messages")) {
+	messages = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-runs")) {
+	runs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-capacity")) {
+	capacity = Integer.parseInt(args[++i]);
+      } else {
+	System.err.println("Usage: java se.sics.isl.util.QueueBenchmark"
+			   + " [-producers 1,2,4] [-messages 1000000]"
+			   + " [-runs 5] [-capacity 4096]");
+	System.exit(1);
+      }
+    }
+
+    String[] counts = producerList.split(",");
+    int maxProducers = 0;
+    for (int i = 0; i < counts.length; i++) {
+      maxProducers = Math.max(maxProducers, Integer.parseInt(counts[i].trim()));
+    }
+    tokens = new Token[maxProducers][TOKENS];
+    for (int p = 0; p < maxProducers; p++) {
+      for (int i = 0; i < TOKENS; i++) {
+	tokens[p][i] = new Token(p, i);
+      }
+    }
+
+    boolean ok = checkOverflow(1, capacity);
+    ok &= checkOverflow(maxProducers, capacity);
+
+    System.out.println("queue          producers   messages/s     ns/msg");
+    for (int c = 0; c < counts.length; c++) {
+      int producers = Integer.parseInt(counts[c].trim());
+      for (int q = 0; q < 2; q++) {
+	long best = Long.MAX_VALUE;
+	for (int r = 0; r < runs; r++) {
+	  Queue queue = q == 0
+	    ? (Queue) new SynchronizedQueue()
+	    : (Queue) new LockFreeQueue(capacity);
+	  long nanos = run(queue, producers, messages);
+	  if (nanos < 0) {
+	    ok = false;
+	  } else if (nanos < best) {
+	    best = nanos;
+	  }
+	}
+	long total = (long) producers * messages;
+	System.out.println(String.format("%-14s %9d %12.0f %10.1f",
+	    new Object[] {
+	      q == 0 ? "ArrayQueue" : "Concurrent",
+	      new Integer(producers),
+	      new Double(total * 1e9 / best),
+	      new Double(best / (double) total)
+	    }));
+      }
+    }
+    if (!ok) {
+      System.out.println("messages were lost or out of order");
+      System.exit(1);
+    }
+  }
+
+} // QueueBenchmark
@@ -0,0 +1,336 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * ConnectionBenchmark
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.tasim.aw.client;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import se.sics.isl.transport.BinaryTransportReader;
+import se.sics.isl.transport.BinaryTransportWriter;
+import se.sics.isl.transport.Context;
+import se.sics.isl.transport.Transportable;
+import se.sics.isl.util.ConfigManager;
+import se.sics.tasim.aw.Agent;
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.props.AdminContent;
+import se.sics.tasim.props.SCMInfo;
+
+/**
+ * Measures the server connections of many agents in one JVM against a
+ * minimal local server.  For every agent the server answers the login
+ * with an old server version, which makes the sim client ask for the
+ * server time, and times such round trips.  With a burst larger than
+ * one, the server sends several logins at once and the agent answers
+ * them all at once, like the messages sent at the end of each day,
+ * which the message senders can batch.  Before the round trips it
+ * sends a message larger than the pooled read buffers, to check that
+ * large messages are read correctly.  The number of client threads and
+ * the mean number of messages written per batch are reported after
+ * each group of agents has connected.
+ *
+ * Usage: java se.sics.tasim.aw.client.ConnectionBenchmark
+ *          [-agents 1,10,50] [-rounds 2000] [-burst 1]
+ *          [-batch true] [-linger 0]
+ */
+public class ConnectionBenchmark {
+
+  /** An agent that ignores all messages (no simulation is started) */
+  public static class IdleAgent extends Agent {
+    protected void messageReceived(Message message) {
+    }
+    protected void simulationSetup() {
+    }
+    protected void simulationFinished() {
+    }
+  }
+
+  private static int rounds = 2000;
+  private static int burst = 1;
+
+  private static int finished = 0;
+  private static int failed = 0;
+  private static long totalNanos = 0L;
+
+  private static synchronized void finished(boolean ok, long nanos) {
+    finished++;
+    if (!ok) {
+      failed++;
+    }
+    totalNanos += nanos;
+    ConnectionBenchmark.class.notifyAll();
+  }
+
+  private static synchronized void waitFor(int count) {
+    while (finished < count) {
+      try {
+	ConnectionBenchmark.class.wait();
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // The server side of a connection
+  // -------------------------------------------------------------------
+
+  private static class Handler implements Runnable {
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final BinaryTransportReader reader = new BinaryTransportReader();
+    private final BinaryTransportWriter writer = new BinaryTransportWriter();
+    private String agentName;
+
+    Handler(Socket socket, Context context) throws IOException {
+      this.socket = socket;
+      this.input = new DataInputStream
+	(new BufferedInputStream(socket.getInputStream()));
+      this.output = new DataOutputStream
+	(new BufferedOutputStream(socket.getOutputStream()));
+      reader.setContext(context);
+    }
+
+    private void send(Transportable content) throws IOException {
+      send(content, true);
+    }
+
+    private void send(Transportable content, boolean flush)
+      throws IOException
+    {
+      Message msg = new Message(Agent.ADMIN, agentName, content);
+      writer.clear();
+      writer.node(msg.getTransportName());
+      msg.write(writer);
+      writer.endNode(msg.getTransportName());
+      writer.finish();
+      output.writeInt(writer.size());
+      writer.write(output);
+      if (flush) {
+	output.flush();
+      }
+    }
+
+    private AdminContent receive() throws Exception {
+      byte[] data = new byte[input.readInt()];
+      input.readFully(data);
+      Message msg = new Message();
+      reader.setMessage(data);
+      reader.nextNode(msg.getTransportName(), true);
+      reader.enterNode();
+      msg.read(reader);
+      agentName = msg.getSender();
+      return (AdminContent) msg.getContent();
+    }
+
+    public void run() {
+      boolean ok = false;
+      long nanos = 0L;
+      try {
+	// The TACT header
+	input.readFully(new byte[8]);
+	if (receive().getType() != AdminContent.AUTH) {
+	  throw new IOException("no login from " + agentName);
+	}
+
+	// Larger than the pooled buffers
+	StringBuffer sb = new StringBuffer();
+	while (sb.length() < ConnectionSelector.BUFFER_SIZE * 3) {
+	  sb.append("0123456789abcdef");
+	}
+	AdminContent large = new AdminContent(AdminContent.NONE);
+	large.setAttribute("data", sb.toString());
+	send(large);
+
+	AdminContent auth = new AdminContent(AdminContent.AUTH);
+	auth.setAttribute("server.version", "0.8");
+	long start = System.nanoTime();
+	for (int i = 0; i < rounds; i++) {
+	  for (int j = 0; j < burst; j++) {
+	    send(auth, j == burst - 1);
+	  }
+	  for (int j = 0; j < burst; j++) {
+	    if (receive().getType() != AdminContent.SERVER_TIME) {
+	      throw new IOException("expected a server time request");
+	    }
+	  }
+	}
+	nanos = System.nanoTime() - start;
+	ok = true;
+      } catch (Exception e) {
+	e.printStackTrace();
+      }
+      finished(ok, nanos);
+
+      // Keep the connection until the benchmark exits
+      try {
+	while (true) {
+	  receive();
+	}
+      } catch (Exception e) {
+      }
+    }
+  }
+
+  private static int countThreads(String prefix) {
+    int count = 0;
+    Iterator iterator = Thread.getAllStackTraces().keySet().iterator();
+    while (iterator.hasNext()) {
+      Thread thread = (Thread) iterator.next();
+      if (thread.isAlive() && thread.getName().startsWith(prefix)) {
+	count++;
+      }
+    }
+    return count;
+  }
+
+  private static double getMeanBatchSize(ArrayList clients) {
+    int batches = 0;
+    int messages = 0;
+    for (int i = 0, n = clients.size(); i < n; i++) {
+      ServerConnection connection =
+	((SimClient) clients.get(i)).getServerConnection();
+      MessageSender sender =
+	connection == null ? null : connection.getMessageSender();
+      if (sender != null) {
+	batches += sender.getBatchCount();
+	messages += sender.getMessageCount();
+      }
+    }
+    return batches > 0 ? messages / (double) batches : 0.0;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String agentList = "1,10,50";
+    String batch = "true";
+    String linger = "0";
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-agents")) {
+	agentList = args[++i];
+      } else if (args[i].equals("-rounds")) {
+	rounds = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-burst")) {
+	burst = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-batch")) {
+	batch = args[++i];
+      } else if (args[i].equals("-linger")) {
+	linger = args[++i];
+      } else {
+	System.err.println("Usage: java se.sics.tasim.aw.client."
+			   + "ConnectionBenchmark [-agents 1,10,50]"
+			   + " [-rounds 2000] [-burst 1]"
+			   + " [-batch true] [-linger 0]");
+	System.exit(1);
+      }
+    }
+
+    final ServerSocket serverSocket =
+      new ServerSocket(0, 128, InetAddress.getByName("localhost"));
+    final Context context =
+      SCMInfo.createContext(AdminContent.createContext());
+    Thread acceptThread = new Thread(new Runnable() {
+	public void run() {
+	  try {
+	    while (true) {
+	      Socket socket = serverSocket.accept();
+	      Thread thread = new Thread(new Handler(socket, context),
+					 "Server." + socket.getPort());
+	      thread.setDaemon(true);
+	      thread.start();
+	    }
+	  } catch (IOException e) {
+	    e.printStackTrace();
+	  }
+	}
+      }, "Server");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    ConfigManager config = new ConfigManager();
+    config.setProperty("autojoin", "0");
+    config.setProperty("useGUI", "false");
+    config.setProperty("sender.batch", batch);
+    config.setProperty("sender.linger", linger);
+    config.setProperty("log.consoleLevel", "6");
+    config.setProperty("log.fileLevel", "6");
+    config.setProperty("log.prefix", System.getProperty("java.io.tmpdir")
+		       + "/aw-bench");
+
+    System.out.println("agents  round trips/s  mean us  selector"
+		       + "  worker  connection  sender  simclient  batch");
+    ArrayList clients = new ArrayList();
+    String[] counts = agentList.split(",");
+    int agents = 0;
+    for (int c = 0; c < counts.length; c++) {
+      int count = Integer.parseInt(counts[c].trim());
+      long start = System.nanoTime();
+      long before;
+      synchronized (ConnectionBenchmark.class) {
+	before = totalNanos;
+      }
+      for (int i = 0; i < count; i++) {
+	clients.add(new SimClient(config, "localhost",
+				  serverSocket.getLocalPort(),
+				  "agent" + (agents + i), "password",
+				  IdleAgent.class.getName()));
+      }
+      agents += count;
+      waitFor(agents);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      long nanos;
+      synchronized (ConnectionBenchmark.class) {
+	nanos = totalNanos - before;
+      }
+      System.out.println(String.format("%-7d %14.0f %8.1f %9d %7d %11d %7d"
+				       + " %10d %6.2f",
+	  new Object[] {
+	    new Integer(agents),
+	    new Double(count * (double) rounds * burst / seconds),
+	    new Double(nanos / 1000.0 / count / rounds),
+	    new Integer(countThreads("ConnectionSelector")
+			- countThreads("ConnectionSelector.Worker.")),
+	    new Integer(countThreads("ConnectionSelector.Worker.")),
+	    new Integer(countThreads("Connection.")),
+	    new Integer(countThreads("Sender.")),
+	    new Integer(countThreads("SimClient")),
+	    new Double(getMeanBatchSize(clients))
+	  }));
+    }
+    if (failed > 0) {
+      System.out.println(failed + " connections failed");
+      System.exit(1);
+    }
+    System.exit(0);
+  }
+
+} // ConnectionBenchmark
@@ -0,0 +1,302 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * SelectorFloodCheck
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.tasim.aw.client;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import se.sics.isl.transport.BinaryTransportReader;
+import se.sics.isl.transport.BinaryTransportWriter;
+import se.sics.isl.transport.Context;
+import se.sics.isl.transport.Transportable;
+import se.sics.isl.util.ConfigManager;
+import se.sics.tasim.aw.Agent;
+import se.sics.tasim.aw.Message;
+import se.sics.tasim.props.AdminContent;
+import se.sics.tasim.props.SCMInfo;
+
+/**
+ * Checks that an agent that can not send its messages does not stall
+ * the other agents in the same JVM.  The server floods the first agent
+ * with logins from an old server version, which the agent answers
+ * with server time requests, but does not read the answers for a
+ * while.  The message sender of the agent then waits for the socket
+ * while its queue grows past the size of the lock-free queue, and the
+ * messages keep coming from the connection threads, which must never
+ * wait.  Meanwhile the second agent must still get its round trips
+ * through, and the first agent must get all its answers sent once
+ * the server reads them.
+ *
+ * Usage: java se.sics.tasim.aw.client.SelectorFloodCheck
+ *          [-flood 200000] [-stall 2000]
+ */
+public class SelectorFloodCheck {
+
+  private static int flood = 200000;
+  private static long stallMillis = 2000;
+
+  private static Context context;
+
+  // Progress reported by the server side
+  private static boolean isFlooded = false;
+  private static boolean isStallOver = false;
+  private static int floodAnswers = 0;
+  private static int stallRoundTrips = 0;
+  private static boolean isDone = false;
+
+  private static synchronized void setFlooded() {
+    isFlooded = true;
+    SelectorFloodCheck.class.notifyAll();
+  }
+
+  private static synchronized void waitForFlood() {
+    while (!isFlooded) {
+      try {
+	SelectorFloodCheck.class.wait();
+      } catch (InterruptedException e) {
+      }
+    }
+  }
+
+  private static synchronized boolean isStallOver() {
+    return isStallOver;
+  }
+
+  private static synchronized void setStallOver() {
+    isStallOver = true;
+  }
+
+  private static synchronized void setFloodAnswers(int count) {
+    floodAnswers = count;
+    isDone = true;
+    SelectorFloodCheck.class.notifyAll();
+  }
+
+  private static synchronized void addStallRoundTrip() {
+    stallRoundTrips++;
+  }
+
+  private static class Connection {
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final BinaryTransportReader reader = new BinaryTransportReader();
+    private final BinaryTransportWriter writer = new BinaryTransportWriter();
+    private String agentName;
+
+    Connection(Socket socket) throws IOException {
+      this.input = new DataInputStream
+	(new BufferedInputStream(socket.getInputStream()));
+      this.output = new DataOutputStream
+	(new BufferedOutputStream(socket.getOutputStream()));
+      reader.setContext(context);
+    }
+
+    void login() throws Exception {
+      // The TACT header
+      input.readFully(new byte[8]);
+      if (receive().getType() != AdminContent.AUTH) {
+	throw new IOException("no login from " + agentName);
+      }
+    }
+
+    void send(Transportable content, boolean flush) throws IOException {
+      Message msg = new Message(Agent.ADMIN, agentName, content);
+      writer.clear();
+      writer.node(msg.getTransportName());
+      msg.write(writer);
+      writer.endNode(msg.getTransportName());
+      writer.finish();
+      output.writeInt(writer.size());
+      writer.write(output);
+      if (flush) {
+	output.flush();
+      }
+    }
+
+    AdminContent receive() throws Exception {
+      byte[] data = new byte[input.readInt()];
+      input.readFully(data);
+      Message msg = new Message();
+      reader.setMessage(data);
+      reader.nextNode(msg.getTransportName(), true);
+      reader.enterNode();
+      msg.read(reader);
+      agentName = msg.getSender();
+      return (AdminContent) msg.getContent();
+    }
+  }
+
+  private static AdminContent createAuth() {
+    AdminContent auth = new AdminContent(AdminContent.AUTH);
+    // Makes the agent ask for the server time
+    auth.setAttribute("server.version", "0.8");
+    return auth;
+  }
+
+  /** Floods the agent, then stops reading for a while */
+  private static void flood(Socket socket) throws Exception {
+    Connection connection = new Connection(socket);
+    connection.login();
+    AdminContent auth = createAuth();
+    for (int i = 0; i < flood; i++) {
+      connection.send(auth, i == flood - 1);
+    }
+    setFlooded();
+    Thread.sleep(stallMillis);
+    setStallOver();
+
+    int count = 0;
+    try {
+      while (count < flood) {
+	if (connection.receive().getType() == AdminContent.SERVER_TIME) {
+	  count++;
+	}
+      }
+    } finally {
+      setFloodAnswers(count);
+    }
+  }
+
+  /** Makes round trips while the flooded agent is stalled */
+  private static void roundTrips(Socket socket) throws Exception {
+    Connection connection = new Connection(socket);
+    connection.login();
+    waitForFlood();
+    AdminContent auth = createAuth();
+    while (!isStallOver()) {
+      connection.send(auth, true);
+      if (connection.receive().getType() != AdminContent.SERVER_TIME) {
+	throw new IOException("expected a server time request");
+      }
+      addStallRoundTrip();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-flood")) {
+	flood = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-stall")) {
+	stallMillis = Long.parseLong(args[++i]);
+      } else {
+	System.err.println("Usage: java se.sics.tasim.aw.client."
+			   + "SelectorFloodCheck [-flood 200000]"
+			   + " [-stall 2000]");
+	System.exit(1);
+      }
+    }
+
+    context = SCMInfo.createContext(AdminContent.createContext());
+    final ServerSocket serverSocket = new ServerSocket();
+    // A small receive window makes the flooded agent's socket fill up
+    serverSocket.setReceiveBufferSize(4096);
+    serverSocket.bind(new InetSocketAddress(InetAddress.getByName("localhost"),
+					    0));
+    Thread acceptThread = new Thread(new Runnable() {
+	public void run() {
+	  for (int i = 0; i < 2; i++) {
+	    try {
+	      final Socket socket = serverSocket.accept();
+	      final boolean isFlooded = i == 0;
+	      Thread thread = new Thread(new Runnable() {
+		  public void run() {
+		    try {
+		      if (isFlooded) {
+			flood(socket);
+		      } else {
+			roundTrips(socket);
+		      }
+		    } catch (Exception e) {
+		      e.printStackTrace();
+		    }
+		  }
+		}, "Server." + i);
+	      thread.setDaemon(true);
+	      thread.start();
+	    } catch (IOException e) {
+	      e.printStackTrace();
+	    }
+	  }
+	}
+      }, "Server");
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    ConfigManager config = new ConfigManager();
+    config.setProperty("autojoin", "0");
+    config.setProperty("useGUI", "false");
+    config.setProperty("log.consoleLevel", "6");
+    config.setProperty("log.fileLevel", "6");
+    config.setProperty("log.prefix", System.getProperty("java.io.tmpdir")
+		       + "/aw-flood");
+
+    int port = serverSocket.getLocalPort();
+    SimClient flooded = new SimClient(config, "localhost", port, "flooded",
+				      "password",
+				      ConnectionBenchmark.IdleAgent.class
+				      .getName());
+    // Make sure the flooded agent connects first
+    while (flooded.getServerConnection() == null
+	   || flooded.getServerConnection().getMessageSender() == null) {
+      Thread.sleep(10);
+    }
+    new SimClient(config, "localhost", port, "other", "password",
+		  ConnectionBenchmark.IdleAgent.class.getName());
+
+    int maxQueueSize = 0;
+    long deadline = System.currentTimeMillis() + stallMillis + 60000;
+    synchronized (SelectorFloodCheck.class) {
+      while (!isDone && System.currentTimeMillis() < deadline) {
+	ServerConnection connection = flooded.getServerConnection();
+	MessageSender sender =
+	  connection == null ? null : connection.getMessageSender();
+	if (sender != null) {
+	  maxQueueSize = Math.max(maxQueueSize, sender.getQueueSize());
+	}
+	SelectorFloodCheck.class.wait(50);
+      }
+    }
+
+    boolean ok;
+    synchronized (SelectorFloodCheck.class) {
+      System.out.println("flooded agent: " + floodAnswers + " of " + flood
+			 + " answers, largest send queue " + maxQueueSize);
+      System.out.println("other agent: " + stallRoundTrips
+			 + " round trips during the "
+			 + stallMillis + " ms stall");
+      ok = isDone && floodAnswers == flood && stallRoundTrips > 0;
+    }
+    System.out.println(ok ? "OK" : "FAILED");
+    System.exit(ok ? 0 : 1);
+  }
+
+} // SelectorFloodCheck
@@ -26,6 +26,8 @@
  */
 package se.sics.isl.transport;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.text.ParseException;
 import java.util.Hashtable;
 
@@ -41,7 +43,9 @@ public class BinaryTransportReader extends TransportReader
   private int currentNode = -1;
   private int currentValue = -1;
 
-  private byte[] messageData;
+  private ByteBuffer messageData;
+  private ByteBuffer arrayData;
+  private boolean isBigEndian;
   private int dataOffset;
   private int dataLen;
 
@@ -52,6 +56,23 @@ public class BinaryTransportReader extends TransportReader
   private String[] aliases = new String[48];
   private Hashtable nameLookup = new Hashtable();
 
+  // The type of the attribute last found by findAttribute()
+  private int attributeType;
+
+  // Decoded strings by their bytes. The same addresses and names are
+  // received over and over on a connection and need only be decoded once.
+  private static final int CACHE_SIZE = 512;
+  private static final int MAX_CACHED_LENGTH = 64;
+  private byte[][] cachedBytes = new byte[CACHE_SIZE][];
+  private String[] cachedStrings = new String[CACHE_SIZE];
+  private char[] charBuffer = new char[MAX_CACHED_LENGTH];
+
+  // The ids of the last names looked up. The names are mostly string
+  // constants in the transportables and are compared by identity.
+  private static final int LOOKUP_SIZE = 256;
+  private String[] lookupNames = new String[LOOKUP_SIZE];
+  private int[] lookupIDs = new int[LOOKUP_SIZE];
+
   public BinaryTransportReader() {
   }
 
@@ -63,7 +84,30 @@ public class BinaryTransportReader extends TransportReader
     if ((offset | length | (messageData.length - offset - length)) < 0) {
       throw new IndexOutOfBoundsException();
     }
+    // Reuse the wrapper when the same array is parsed again
+    if (arrayData == null || arrayData.array() != messageData) {
+      arrayData = ByteBuffer.wrap(messageData);
+    }
+    setData(arrayData, offset, length);
+  }
+
+  /**
+   * Sets the message to the specified bytes of the buffer, which is
+   * read in place (the buffer may be direct).  The offset is an
+   * absolute index in the buffer and the position and limit of the
+   * buffer are not changed.  The buffer must not be modified while
+   * the message is being read.
+   */
+  public void setMessage(ByteBuffer buffer, int offset, int length) {
+    if ((offset | length | (buffer.limit() - offset - length)) < 0) {
+      throw new IndexOutOfBoundsException();
+    }
+    setData(buffer, offset, length);
+  }
+
+  private void setData(ByteBuffer messageData, int offset, int length) {
     this.messageData = messageData;
+    this.isBigEndian = messageData.order() == ByteOrder.BIG_ENDIAN;
     this.dataOffset = offset;
     this.dataLen = offset + length;
     nodeLevel = 0;
@@ -75,6 +119,7 @@ public class BinaryTransportReader extends TransportReader
     dataOffset = dataLen = 0;
     reset();
     messageData = null;
+    arrayData = null;
   }
 
   public void reset() {
@@ -95,12 +140,23 @@ public class BinaryTransportReader extends TransportReader
   }
 
   private int getAlias(String alias) {
+    int hash = alias.hashCode();
+    int index = (hash ^ (hash >>> 8)) & (LOOKUP_SIZE - 1);
+    if (lookupNames[index] == alias) {
+      return lookupIDs[index];
+    }
     Integer i = (Integer) nameLookup.get(alias);
-    return i == null ? -1 : i.intValue();
+    if (i == null) {
+      return -1;
+    }
+    // An alias is never changed once it has been added
+    lookupNames[index] = alias;
+    lookupIDs[index] = i.intValue();
+    return i.intValue();
   }
 
   private int addAliases(int pos) throws ParseException {
-    while ((pos < dataLen) && ((messageData[pos] & 0xff) == ALIAS)) {
+    while ((pos < dataLen) && ((messageData.get(pos) & 0xff) == ALIAS)) {
       pos = addAlias(pos);
     }
     return pos;
@@ -111,9 +167,9 @@ public class BinaryTransportReader extends TransportReader
       throw new ParseException("unexpected EOF", pos);
     }
     pos++;
-    int id = ((messageData[pos] & 0xff) << 8) + (messageData[pos + 1] & 0xff);
+    int id = getUShort(pos);
     pos += 2;
-    int len = ((messageData[pos] & 0xff) << 8) + (messageData[pos + 1] & 0xff);
+    int len = getUShort(pos);
     pos += 2;
 
     String alias = getSValue(pos, len);
@@ -150,9 +206,9 @@ public class BinaryTransportReader extends TransportReader
   public boolean nextNode(boolean isRequired) throws ParseException {
     // go to next node
     if (skipToNextNode()) {
-//     int attNo = messageData[currentPosition + 1] & 0xff;
-//     int nameID = ((messageData[currentPosition + 2] & 0xff) << 8) +
-//       (messageData[currentPosition + 3] & 0xff);
+//     int attNo = messageData.get(currentPosition + 1) & 0xff;
+//     int nameID = ((messageData.get(currentPosition + 2) & 0xff) << 8) +
+//       (messageData.get(currentPosition + 3) & 0xff);
 //     String name = getName(nameID);
 //     System.out.println(">> Node: " + name + " attCount = " + attNo);
       return true;
@@ -178,7 +234,7 @@ public class BinaryTransportReader extends TransportReader
 	return false;
       }
       currentPosition = dataOffset;
-      if ((messageData[currentPosition] & 0xff) == TABLE) {
+      if ((messageData.get(currentPosition) & 0xff) == TABLE) {
 	throw new ParseException("table without type", currentPosition);
       }
       currentNode = currentPosition;
@@ -188,7 +244,7 @@ public class BinaryTransportReader extends TransportReader
 
     // Ok we are at a node, that we should skip...
     int pos = currentPosition;
-    int op = messageData[pos] & 0xff;
+    int op = messageData.get(pos) & 0xff;
 
     // If we have entered an automatically-ended node there are no
     // subnodes...
@@ -208,7 +264,7 @@ public class BinaryTransportReader extends TransportReader
       // - can only be at end or alias between...
       pos = addAliases(pos);
       if (pos < dataLen) {
-	switch (messageData[pos] & 0xff) {
+	switch (messageData.get(pos) & 0xff) {
 	case NODE:
 	case START_NODE:
 	  currentPosition = pos;
@@ -236,7 +292,7 @@ public class BinaryTransportReader extends TransportReader
       int levelTarget = nodeEntered ? 1 : 0;
       int lastNode = currentNode;
       while (pos < dataLen && level >= 0) {
-	op = messageData[pos] & 0xff;
+	op = messageData.get(pos) & 0xff;
 	switch (op) {
 	case END_NODE:
 	  level--;
@@ -291,7 +347,7 @@ public class BinaryTransportReader extends TransportReader
   }
 
   private int getValuePosForNode(int node) {
-    return node + 4 + 3 * (messageData[node + 1] & 0xFF);
+    return node + 4 + 3 * (messageData.get(node + 1) & 0xFF);
   }
 
   private int skipNode(int nodePos, int valPos) {
@@ -301,12 +357,12 @@ public class BinaryTransportReader extends TransportReader
       return dataLen;
     }
 
-    int attNo = messageData[nodePos + 1] & 0xff;
+    int attNo = messageData.get(nodePos + 1) & 0xff;
 //     System.out.println("-- skipping node: at " + pos +
 // 		       " atts = " + attNo);
     nodePos += 4;
     for (int i = 0; i < attNo; i++) {
-      switch (messageData[nodePos] & 0xff) {
+      switch (messageData.get(nodePos) & 0xff) {
       case INT:
       case FLOAT:
 	valPos += 4;
@@ -315,8 +371,7 @@ public class BinaryTransportReader extends TransportReader
 	valPos += 8;
 	break;
       case STRING: {
-	int slen = ((messageData[valPos] & 0xff) << 8)
-	  + (messageData[valPos + 1] & 0xff);
+	int slen = getUShort(valPos);
 	valPos += slen + 2;
 	break;
       }
@@ -324,8 +379,7 @@ public class BinaryTransportReader extends TransportReader
 	valPos += 2;
 	break;
       case INT_ARR: {
-	int slen = ((messageData[valPos] & 0xff) << 8)
-	  + (messageData[valPos + 1] & 0xff);
+	int slen = getUShort(valPos);
 	valPos += slen * 4 + 2;
 	break;
       }
@@ -335,39 +389,87 @@ public class BinaryTransportReader extends TransportReader
     return valPos;
   }
 
+  private int getUShort(int pos) {
+    if (isBigEndian) {
+      return messageData.getShort(pos) & 0xffff;
+    }
+    return ((messageData.get(pos) & 0xff) << 8)
+      + (messageData.get(pos + 1) & 0xff);
+  }
+
   private int getIValue(int pos) {
-    return ((messageData[pos] & 0xff) << 24) +
-      ((messageData[pos + 1] & 0xff) << 16) +
-      ((messageData[pos + 2] & 0xff) << 8) +
-      (messageData[pos + 3] & 0xff);
+    if (isBigEndian) {
+      return messageData.getInt(pos);
+    }
+    return ((messageData.get(pos) & 0xff) << 24) +
+      ((messageData.get(pos + 1) & 0xff) << 16) +
+      ((messageData.get(pos + 2) & 0xff) << 8) +
+      (messageData.get(pos + 3) & 0xff);
   }
 
   private long getLValue(int pos) {
-    long v = ((messageData[pos] & 0xffL) << 56) +
-      ((messageData[pos + 1] & 0xffL) << 48) +
-      ((messageData[pos + 2] & 0xffL) << 40) +
-      ((messageData[pos + 3] & 0xffL) << 32) +
-      ((messageData[pos + 4] & 0xffL) << 24) +
-      ((messageData[pos + 5] & 0xffL) << 16) +
-      ((messageData[pos + 6] & 0xffL) << 8) +
-      (messageData[pos + 7] & 0xffL);
+    if (isBigEndian) {
+      return messageData.getLong(pos);
+    }
+    long v = ((messageData.get(pos) & 0xffL) << 56) +
+      ((messageData.get(pos + 1) & 0xffL) << 48) +
+      ((messageData.get(pos + 2) & 0xffL) << 40) +
+      ((messageData.get(pos + 3) & 0xffL) << 32) +
+      ((messageData.get(pos + 4) & 0xffL) << 24) +
+      ((messageData.get(pos + 5) & 0xffL) << 16) +
+      ((messageData.get(pos + 6) & 0xffL) << 8) +
+      (messageData.get(pos + 7) & 0xffL);
     return v;
   }
 
   private String getSValue(int pos, int length) throws ParseException {
-    int end = pos + length;
-    if (end > dataLen) {
+    if (pos + length > dataLen) {
       throw new ParseException("unexpected EOF", pos);
     }
+    if (length > MAX_CACHED_LENGTH) {
+      return decodeString(pos, length);
+    }
+
+    int hash = length;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + messageData.get(pos + i);
+    }
+    int index = (hash ^ (hash >>> 9)) & (CACHE_SIZE - 1);
+    byte[] bytes = cachedBytes[index];
+    if (bytes != null && bytes.length == length) {
+      int i = 0;
+      while (i < length && bytes[i] == messageData.get(pos + i)) {
+	i++;
+      }
+      if (i == length) {
+	return cachedStrings[index];
+      }
+    }
+
+    String value = decodeString(pos, length);
+    bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = messageData.get(pos + i);
+    }
+    cachedBytes[index] = bytes;
+    cachedStrings[index] = value;
+    return value;
+  }
+
+  private String decodeString(int pos, int length) throws ParseException {
+    int end = pos + length;
     // Allocate char for max length
-    char[] buf = new char[length];
+    if (charBuffer.length < length) {
+      charBuffer = new char[length];
+    }
+    char[] buf = charBuffer;
 
     // This code has been "inspired" from Core JavaTM Technologies Tech
     // Tips, January 10, 2003 and java.io.Data{Input,Output}Stream.
     int index = 0;
     int c, char2, char3;
     while (pos < end) {
-      c = messageData[pos] & 0xff;
+      c = messageData.get(pos) & 0xff;
 
       switch (c >> 4) {
       case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
@@ -381,7 +483,7 @@ public class BinaryTransportReader extends TransportReader
 	if (pos > end) {
 	  throw new ParseException("malformed UTF-8", pos);
 	}
-	char2 = messageData[pos - 1] & 0xff;
+	char2 = messageData.get(pos - 1) & 0xff;
 	if ((char2 & 0xC0) != 0x80) {
 	  throw new ParseException("malformed UTF-8", pos - 2);
 	}
@@ -392,8 +494,8 @@ public class BinaryTransportReader extends TransportReader
 	pos += 3;
 	if (pos > end)
 	  throw new ParseException("malformed UTF-8", pos);
-	char2 = messageData[pos - 2] & 0xff;
-	char3 = messageData[pos - 1] & 0xff;
+	char2 = messageData.get(pos - 2) & 0xff;
+	char3 = messageData.get(pos - 1) & 0xff;
 	if (((char2 & 0xC0) != 0x80) || ((char3 & 0xC0) != 0x80)) {
 	  throw new ParseException("malformed UTF-8", pos - 3);
 	}
@@ -411,7 +513,7 @@ public class BinaryTransportReader extends TransportReader
   }
 
   private String getCValue(int pos) throws ParseException {
-    int id = ((messageData[pos] & 0xff) << 8) + (messageData[pos + 1] & 0xff);
+    int id = getUShort(pos);
     return getName(id);
   }
 
@@ -451,8 +553,7 @@ public class BinaryTransportReader extends TransportReader
     if (currentNode < 0) {
       throw new ParseException("before first node", 0);
     }
-    int nameID = ((messageData[currentNode + 2] & 0xff) << 8) +
-      (messageData[currentNode + 3] & 0xff);
+    int nameID = getUShort(currentNode + 2);
     return getName(nameID);
   }
 
@@ -464,8 +565,7 @@ public class BinaryTransportReader extends TransportReader
     if (currentNode < 0) {
       return false;
     }
-    int nameID = ((messageData[currentNode + 2] & 0xff) << 8) +
-      (messageData[currentNode + 3] & 0xff);
+    int nameID = getUShort(currentNode + 2);
     return nameID == getAlias(name);
   }
 
@@ -489,7 +589,7 @@ public class BinaryTransportReader extends TransportReader
     if (nodeLevel > 0) {
       nodeLevel--;
       currentPosition = nodeStack[nodeLevel];
-      if ((messageData[currentPosition] & 0xFF) == TABLE) {
+      if ((messageData.get(currentPosition) & 0xFF) == TABLE) {
 	currentValue = currentPosition + 1;
       } else {
 	currentNode = currentPosition;
@@ -506,7 +606,7 @@ public class BinaryTransportReader extends TransportReader
 
   public int getAttributeCount() {
     if (currentNode >= 0) {
-      return messageData[currentNode + 1] & 0xff;
+      return messageData.get(currentNode + 1) & 0xff;
     }
     return 0;
   }
@@ -519,69 +619,95 @@ public class BinaryTransportReader extends TransportReader
     }
 
     int pos = currentNode + 5 + index * 3;
-    int nid = ((messageData[pos] & 0xff) << 8) + (messageData[pos + 1] & 0xff);
+    int nid = getUShort(pos);
     return getName(nid);
   }
 
-  private Object getAttributeAsObject(int id) throws ParseException {
+  /**
+   * Returns the position of the value of the attribute with the
+   * specified name id in the current node and sets attributeType to
+   * its type, or returns -1 if the node has no such attribute.
+   */
+  private int findAttribute(int id) {
     if (currentNode < 0) {
-      return null;
+      return -1;
     }
 
-    int attNo = messageData[currentNode + 1] & 0xff;
+    int attNo = messageData.get(currentNode + 1) & 0xff;
     int pos = currentNode + 4;
     int valPos = currentValue;
     for (int i = 0; i < attNo; i++) {
-      int nid = ((messageData[pos + 1] & 0xff) << 8)
-	+ (messageData[pos + 2] & 0xff);
-      switch (messageData[pos] & 0xff) {
+      int nid = getUShort(pos + 1);
+      int type = messageData.get(pos) & 0xff;
+      if (nid == id) {
+	attributeType = type;
+	return valPos;
+      }
+      switch (type) {
       case INT:
-	if (nid == id) {
-	  return Integer.toString(getIValue(valPos));
-	}
+      case FLOAT:
 	valPos += 4;
 	break;
       case LONG:
-	if (nid == id) {
-	  return Long.toString(getLValue(valPos));
-	}
 	valPos += 8;
 	break;
-      case FLOAT:
-	if (nid == id) {
-	  return Float.toString(Float.intBitsToFloat(getIValue(valPos)));
-	}
-	valPos += 4;
-	break;
       case STRING: {
-	int slen = ((messageData[valPos] & 0xff) << 8)
-	  + (messageData[valPos + 1] & 0xff);
- 	if (nid == id) {
-	  return getSValue(valPos + 2, slen);
-	}
+	int slen = getUShort(valPos);
 	valPos += slen + 2;
 	break;
       }
       case CONSTANT_STRING:
-	if (nid == id) {
-	  return getCValue(valPos);
-	}
 	valPos += 2;
 	break;
       case INT_ARR: {
-	int slen = ((messageData[valPos] & 0xff) << 8)
-	  + (messageData[valPos + 1] & 0xff);
-	// Only return if correct ID otherwise step on...
-	if (nid == id) {
-	  return getAttributeAsIntArray(valPos + 2, slen);
-	}
+	int slen = getUShort(valPos);
 	valPos += slen * 4 + 2;
 	break;
       }
       }
       pos += 3;
     }
-    return null;
+    return -1;
+  }
+
+  private int findAttribute(String name, boolean isRequired)
+    throws ParseException
+  {
+    int id = getAlias(name);
+    int valPos = id >= 0 ? findAttribute(id) : -1;
+    if (valPos < 0 && isRequired) {
+      throw new ParseException("attribute " + name + " not found",
+			       currentPosition);
+    }
+    return valPos;
+  }
+
+  private Object getAttributeAsObject(int id) throws ParseException {
+    int valPos = findAttribute(id);
+    if (valPos < 0) {
+      return null;
+    }
+
+    switch (attributeType) {
+    case INT:
+      return Integer.toString(getIValue(valPos));
+    case LONG:
+      return Long.toString(getLValue(valPos));
+    case FLOAT:
+      return Float.toString(Float.intBitsToFloat(getIValue(valPos)));
+    case STRING: {
+      int slen = getUShort(valPos);
+      return getSValue(valPos + 2, slen);
+    }
+    case CONSTANT_STRING:
+      return getCValue(valPos);
+    case INT_ARR: {
+      int slen = getUShort(valPos);
+      return getAttributeAsIntArray(valPos + 2, slen);
+    }
+    default:
+      return null;
+    }
   }
 
   private String getAttributeAsString(int id) throws ParseException {
@@ -611,8 +737,8 @@ public class BinaryTransportReader extends TransportReader
 				boolean isRequired)
     throws ParseException
   {
-    Integer id = (Integer) nameLookup.get(name);
-    String value = id != null ? getAttributeAsString(id.intValue()) : null;
+    int id = getAlias(name);
+    String value = id >= 0 ? getAttributeAsString(id) : null;
     if (value == null) {
       if (isRequired) {
 	throw new ParseException("attribute " + name + " not found",
@@ -635,8 +761,8 @@ public class BinaryTransportReader extends TransportReader
   protected int[] getAttributeAsIntArray(String name,
 					 boolean isRequired)
     throws ParseException {
-    Integer id = (Integer) nameLookup.get(name);
-    Object val = id != null ? getAttributeAsObject(id.intValue()) : null;
+    int id = getAlias(name);
+    Object val = id >= 0 ? getAttributeAsObject(id) : null;
     if (val != null) {
       if (val instanceof int[]) {
 	return (int[]) val;
@@ -648,6 +774,85 @@ public class BinaryTransportReader extends TransportReader
     return null;
   }
 
+  // The numbers are read directly from the message data without
+  // going through strings when the attribute has a matching type
+
+  protected int getAttributeAsInt(String name, int defaultValue,
+				  boolean isRequired)
+    throws ParseException
+  {
+    int valPos = findAttribute(name, isRequired);
+    if (valPos < 0) {
+      return defaultValue;
+    } else if (attributeType == INT) {
+      return getIValue(valPos);
+    } else {
+      return super.getAttributeAsInt(name, defaultValue, isRequired);
+    }
+  }
+
+  protected long getAttributeAsLong(String name, long defaultValue,
+				    boolean isRequired)
+    throws ParseException
+  {
+    int valPos = findAttribute(name, isRequired);
+    if (valPos < 0) {
+      return defaultValue;
+    } else if (attributeType == LONG) {
+      return getLValue(valPos);
+    } else if (attributeType == INT) {
+      return getIValue(valPos);
+    } else {
+      return super.getAttributeAsLong(name, defaultValue, isRequired);
+    }
+  }
+
+  protected float getAttributeAsFloat(String name, float defaultValue,
+				      boolean isRequired)
+    throws ParseException
+  {
+    int valPos = findAttribute(name, isRequired);
+    if (valPos < 0) {
+      return defaultValue;
+    } else if (attributeType == FLOAT) {
+      return Float.intBitsToFloat(getIValue(valPos));
+    } else if (attributeType == INT) {
+      return getIValue(valPos);
+    } else {
+      return super.getAttributeAsFloat(name, defaultValue, isRequired);
+    }
+  }
+
+  public int getAttributeArrayLength(String name) throws ParseException {
+    int valPos = findAttribute(name, false);
+    if (valPos < 0 || attributeType != INT_ARR) {
+      return -1;
+    }
+    return getUShort(valPos);
+  }
+
+  public int getAttributeAsIntArray(String name, int[] values, int offset)
+    throws ParseException
+  {
+    int valPos = findAttribute(name, false);
+    if (valPos < 0) {
+      return -1;
+    } else if (attributeType != INT_ARR) {
+      throw new ParseException("Illegal value type, expected int[] for "
+			       + name, currentPosition);
+    }
+    int slen = getUShort(valPos);
+    if (offset + slen > values.length) {
+      throw new IndexOutOfBoundsException("Index: " + (offset + slen)
+					  + " Size: " + values.length);
+    }
+    valPos += 2;
+    for (int i = 0; i < slen; i++) {
+      values[offset + i] = getIValue(valPos + i * 4);
+    }
+    return slen;
+  }
+
 
 
 
@@ -42,6 +42,7 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 
 import com.botbox.util.ArrayUtils;
+import se.sics.isl.util.BufferPool;
 
 public class BinaryTransportWriter extends TransportWriter
   implements BinaryTransport
@@ -83,6 +84,16 @@ public class BinaryTransportWriter extends TransportWriter
   private byte[] byteData = new byte[DATA_SIZE]; // Current 'message' buffer
   private int nrOfBytes;
 
+  // Segment mode: the message is encoded into buffers from the pool
+  // instead of into byteData. The first segment starts with room for
+  // the message size (see drainBuffers).
+  private static final int HEADER_SIZE = 4;
+  private BufferPool bufferPool;
+  private ByteBuffer[] segments;
+  private int segmentCount = 0;
+  private ByteBuffer segment;
+  private byte[] stringData;
+
   public BinaryTransportWriter() {
     clear();
   }
@@ -113,6 +124,10 @@ public class BinaryTransportWriter extends TransportWriter
   // HACK!!!! BECAUSE ALIASES ARE PER CONNECTION BUT WE WANT TO USE BROADCAST. FIX THIS!!!
 
   private void writeInit() {
+    if (bufferPool != null) {
+      throw new IllegalStateException("not supported when writing to "
+				      + "buffers");
+    }
     Enumeration enumb = constantLookup.keys();
     while (enumb.hasMoreElements()) {
       String name = (String) enumb.nextElement();
@@ -171,12 +186,25 @@ public class BinaryTransportWriter extends TransportWriter
     if (aliasSize > 0) {
       buffer.put(aliasData, 0, aliasSize);
     }
-    if (nrOfBytes > 0) {
+    if (bufferPool != null) {
+      for (int i = 0; i < segmentCount; i++) {
+	ByteBuffer data = segments[i].duplicate();
+	data.flip();
+	if (i == 0) {
+	  data.position(HEADER_SIZE);
+	}
+	buffer.put(data);
+      }
+    } else if (nrOfBytes > 0) {
       buffer.put(byteData, 0, nrOfBytes);
     }
   }
 
   public void write(OutputStream stream) throws IOException {
+    if (bufferPool != null) {
+      stream.write(getBytes());
+      return;
+    }
     if (aliasSize > 0) {
       stream.write(aliasData, 0, aliasSize);
     }
@@ -192,6 +220,10 @@ public class BinaryTransportWriter extends TransportWriter
 					  + (aliasSize + nrOfBytes)
 					  + ", got " + buffer.length);
     }
+    if (bufferPool != null) {
+      write(ByteBuffer.wrap(buffer));
+      return;
+    }
     if (aliasSize > 0) {
       System.arraycopy(aliasData, 0, buffer, 0, aliasSize);
     }
@@ -202,13 +234,125 @@ public class BinaryTransportWriter extends TransportWriter
 
   public byte[] getBytes() {
     byte[] buffer = new byte[aliasSize + nrOfBytes];
+    write(buffer);
+    return buffer;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Segment mode - encoding into pooled buffers for gathering writes
+  // -------------------------------------------------------------------
+
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * Sets the pool of buffers to encode the messages into, or
+   * <code>null</code> to encode into an internal array.  When a pool
+   * is set, each message is encoded directly into buffers from the
+   * pool, which are then handed over with <code>drainBuffers</code>
+   * for a gathering write to a channel.  Clears the current message.
+   */
+  public void setBufferPool(BufferPool bufferPool) {
+    releaseSegments();
+    this.bufferPool = bufferPool;
+    if (bufferPool != null && segments == null) {
+      segments = new ByteBuffer[DEF_SIZE];
+      stringData = new byte[DATA_SIZE];
+    }
+    clear();
+  }
+
+  /**
+   * Returns the number of buffers that <code>drainBuffers</code> will
+   * add for the current message.
+   */
+  public int getBufferCount() {
+    return (aliasSize > 0 ? 1 : 0) + (segmentCount > 0 ? segmentCount : 1);
+  }
+
+  /**
+   * Adds the buffers with the current (finished) message to the array,
+   * ready to be written with a gathering write, and returns the number
+   * of buffers added.  The message is preceded by its size as a four
+   * byte int, the way messages are framed on a connection.  The
+   * buffers then belong to the caller, which should release them to
+   * the buffer pool after writing them, and the writer is cleared for
+   * the next message.
+   */
+  public int drainBuffers(ByteBuffer[] buffers, int offset) {
+    if (bufferPool == null) {
+      throw new IllegalStateException("no buffer pool");
+    }
+    if (segmentCount == 0) {
+      // Empty message
+      nextSegment();
+    }
+
+    int count = 0;
+    int size = aliasSize + nrOfBytes;
+    ByteBuffer first = segments[0];
+    first.flip();
     if (aliasSize > 0) {
-      System.arraycopy(aliasData, 0, buffer, 0, aliasSize);
+      // The aliases are only sent the first time a name is used and
+      // must precede the message
+      ByteBuffer header = bufferPool.acquire(HEADER_SIZE + aliasSize);
+      header.putInt(size);
+      header.put(aliasData, 0, aliasSize);
+      header.flip();
+      buffers[offset + count++] = header;
+      first.position(HEADER_SIZE);
+    } else {
+      first.putInt(0, size);
     }
-    if (nrOfBytes > 0) {
-      System.arraycopy(byteData, 0, buffer, aliasSize, nrOfBytes);
+    buffers[offset + count++] = first;
+    for (int i = 1; i < segmentCount; i++) {
+      segments[i].flip();
+      buffers[offset + count++] = segments[i];
+    }
+
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = null;
+    }
+    segmentCount = 0;
+    segment = null;
+    clear();
+    return count;
+  }
+
+  private void nextSegment() {
+    if (segmentCount == segments.length) {
+      segments = (ByteBuffer[])
+	ArrayUtils.setSize(segments, segmentCount + DEF_SIZE);
+    }
+    segment = bufferPool.acquire();
+    if (segmentCount == 0) {
+      segment.position(HEADER_SIZE);
+    }
+    segments[segmentCount++] = segment;
+  }
+
+  private void releaseSegments() {
+    for (int i = 0; i < segmentCount; i++) {
+      bufferPool.release(segments[i]);
+      segments[i] = null;
+    }
+    segmentCount = 0;
+    segment = null;
+  }
+
+  private void writeBytes(byte[] data, int offset, int length) {
+    nrOfBytes += length;
+    while (length > 0) {
+      if (segment == null || !segment.hasRemaining()) {
+	nextSegment();
+      }
+      int len = segment.remaining() < length ? segment.remaining() : length;
+      segment.put(data, offset, len);
+      offset += len;
+      length -= len;
     }
-    return buffer;
   }
 
 
@@ -375,6 +519,14 @@ public class BinaryTransportWriter extends TransportWriter
   }
 
   private void writeByte(int data) {
+    if (bufferPool != null) {
+      if (segment == null || !segment.hasRemaining()) {
+	nextSegment();
+      }
+      segment.put((byte) data);
+      nrOfBytes++;
+      return;
+    }
     if (nrOfBytes >= byteData.length) {
       byteData = (byte[]) ArrayUtils.setSize(byteData, nrOfBytes + DATA_SIZE);
     }
@@ -384,11 +536,21 @@ public class BinaryTransportWriter extends TransportWriter
   }
 
   private void writeShort(int data) {
+    if (segment != null && segment.remaining() >= 2) {
+      segment.putShort((short) data);
+      nrOfBytes += 2;
+      return;
+    }
     writeByte((data >> 8) & 0xff);
     writeByte(data & 0xff);
   }
 
   private void writeInt(int data) {
+    if (segment != null && segment.remaining() >= 4) {
+      segment.putInt(data);
+      nrOfBytes += 4;
+      return;
+    }
     writeByte((int)(data >>> 24) & 0xff);
     writeByte((int)(data >>> 16) & 0xff);
     writeByte((int)(data >>> 8) & 0xff);
@@ -396,6 +558,11 @@ public class BinaryTransportWriter extends TransportWriter
   }
 
   private void writeLong(long data) {
+    if (segment != null && segment.remaining() >= 8) {
+      segment.putLong(data);
+      nrOfBytes += 8;
+      return;
+    }
     writeByte((int)(data >>> 56) & 0xff);
     writeByte((int)(data >>> 48) & 0xff);
     writeByte((int)(data >>> 40) & 0xff);
@@ -417,6 +584,13 @@ public class BinaryTransportWriter extends TransportWriter
     // Make sure there is room for the maximum encoded string size
     // where each character takes three bytes.
     int maxSize = getMaxUTF8Size(value);
+    if (bufferPool != null) {
+      if (maxSize > stringData.length) {
+	stringData = new byte[maxSize + DATA_SIZE];
+      }
+      writeBytes(stringData, 0, writeUTF8(stringData, 0, value));
+      return;
+    }
     if (nrOfBytes + maxSize > byteData.length) {
       byteData = (byte[])
 	ArrayUtils.setSize(byteData, nrOfBytes + maxSize + DATA_SIZE);
@@ -475,7 +649,7 @@ public class BinaryTransportWriter extends TransportWriter
     // Make sure there is room for the maximum int arr
     // where each int takes 4 bytes.
     int len = value.length;
-    if (nrOfBytes + len * 4 >= byteData.length) {
+    if (bufferPool == null && nrOfBytes + len * 4 >= byteData.length) {
       byteData = (byte[])
 	ArrayUtils.setSize(byteData, nrOfBytes + len * 4 + DATA_SIZE);
     }
@@ -522,6 +696,9 @@ public class BinaryTransportWriter extends TransportWriter
   }
 
   public void clear() {
+    if (segmentCount > 0) {
+      releaseSegments();
+    }
     aliasSize = 0;
     nrOfBytes = 0;
     nodeLevel = 0;
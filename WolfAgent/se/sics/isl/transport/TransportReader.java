@@ -222,5 +222,32 @@ public abstract class TransportReader {
     return null;
   }
 
+  /**
+   * Returns the number of values in the int array attribute, or -1 if
+   * the current node has no such attribute.
+   */
+  public int getAttributeArrayLength(String name) throws ParseException {
+    int[] values = getAttributeAsIntArray(name, false);
+    return values == null ? -1 : values.length;
+  }
+
+  /**
+   * Reads the values of the int array attribute into the specified
+   * array starting at the offset, and returns the number of values
+   * read, or -1 if the current node has no such attribute.  Readers
+   * that can read the values directly do so without allocating an
+   * array.
+   */
+  public int getAttributeAsIntArray(String name, int[] values, int offset)
+    throws ParseException
+  {
+    int[] array = getAttributeAsIntArray(name, false);
+    if (array == null) {
+      return -1;
+    }
+    System.arraycopy(array, 0, values, offset, array.length);
+    return array.length;
+  }
+
 
 } // TransportReader
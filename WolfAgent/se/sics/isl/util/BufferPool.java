@@ -0,0 +1,124 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * BufferPool
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.isl.util;
+import java.nio.ByteBuffer;
+
+/**
+ * <code>BufferPool</code> keeps direct byte buffers of a fixed size
+ * for reuse.  Allocating direct buffers is expensive and they are
+ * only freed by the garbage collector, so network code should acquire
+ * its buffers from a pool and release them when done instead of
+ * allocating new ones.
+ *
+ * Buffers larger than the pool size can be acquired for unusually
+ * large data.  These are allocated when needed and are not kept when
+ * released, which means that a pool never holds more than
+ * <code>maxPooled</code> buffers of the pool size.
+ *
+ * This class is thread safe.
+ */
+public class BufferPool {
+
+  private final int bufferSize;
+  private ByteBuffer[] buffers;
+  private int count = 0;
+
+  private int allocated = 0;
+
+  public BufferPool(int bufferSize, int maxPooled) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("illegal buffer size: "
+					 + bufferSize);
+    }
+    if (maxPooled < 0) {
+      throw new IllegalArgumentException("illegal pool size: " + maxPooled);
+    }
+    this.bufferSize = bufferSize;
+    this.buffers = new ByteBuffer[maxPooled];
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the number of buffers currently kept in the pool.
+   */
+  public synchronized int getPooledCount() {
+    return count;
+  }
+
+  /**
+   * Returns the number of buffers this pool has allocated.
+   */
+  public synchronized int getAllocatedCount() {
+    return allocated;
+  }
+
+  /**
+   * Returns a cleared buffer of the pool size.
+   */
+  public ByteBuffer acquire() {
+    synchronized (this) {
+      if (count > 0) {
+	ByteBuffer buffer = buffers[--count];
+	buffers[count] = null;
+	return buffer;
+      }
+      allocated++;
+    }
+    return ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  /**
+   * Returns a cleared buffer with room for at least the specified
+   * number of bytes.
+   */
+  public ByteBuffer acquire(int minSize) {
+    if (minSize <= bufferSize) {
+      return acquire();
+    }
+    synchronized (this) {
+      allocated++;
+    }
+    // Round up to whole pool buffers to avoid growing a buffer many
+    // times for data that grows a little at a time
+    int size = ((minSize + bufferSize - 1) / bufferSize) * bufferSize;
+    return ByteBuffer.allocateDirect(size);
+  }
+
+  /**
+   * Returns the buffer to the pool.  The buffer must not be used by
+   * the caller after it has been released.
+   */
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize && buffer.isDirect()
+	&& count < buffers.length) {
+      buffer.clear();
+      buffers[count++] = buffer;
+    }
+  }
+
+} // BufferPool
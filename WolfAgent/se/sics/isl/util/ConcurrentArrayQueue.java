@@ -0,0 +1,289 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * ConcurrentArrayQueue
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.isl.util;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.botbox.util.ArrayQueue;
+
+/**
+ * <code>ConcurrentArrayQueue</code> is a bounded queue for many
+ * producer threads and a single consumer thread that uses no locks.
+ * Producers claim a slot in a ring of elements by advancing the tail
+ * and the consumer removes elements by advancing the head.  The
+ * consumer parks while the queue is empty and is unparked by the next
+ * producer.
+ *
+ * <strong>
+ * Note that only one thread at a time may remove elements from the
+ * queue (<code>poll</code>, <code>take</code>, and
+ * <code>drainTo</code>).  Any number of threads may add elements.
+ * </strong>
+ *
+ * The elements may not be <code>null</code>.  Elements added with
+ * <code>add</code> when the queue is full are kept in an overflow list
+ * (which takes a lock) until the consumer has caught up, which means
+ * that <code>add</code> never waits and can be used by threads that
+ * must not block, such as a selector thread.  Producers that instead
+ * add elements with <code>put</code> to a full queue wait until the
+ * consumer has made room for them.
+ */
+public class ConcurrentArrayQueue {
+
+  // The head and tail are kept in the same array but 128 bytes apart,
+  // and away from the array header, so that the consumer and the
+  // producers do not write to the same cache lines
+  private static final int HEAD = 16;
+  private static final int TAIL = 32;
+  private static final int INDEX_SIZE = 48;
+
+  /** The number of times to yield before waiting on a full queue */
+  private static final int FULL_YIELDS = 16;
+
+  /** The time to wait between attempts to add to a full queue */
+  private static final long FULL_WAIT_NANOS = 50000L;
+
+  private final AtomicReferenceArray elements;
+  private final int mask;
+  private final AtomicLongArray indices = new AtomicLongArray(INDEX_SIZE);
+
+  /** The consumer thread when it is about to park */
+  private final AtomicReference waitingConsumer = new AtomicReference();
+
+  /** The elements added after the ring was full, in order */
+  private final ArrayQueue overflow = new ArrayQueue();
+  /** Set while there are elements in the overflow list */
+  private volatile boolean isOverflowing = false;
+
+  /**
+   * Creates a new queue with room for at least the specified number
+   * of elements.  The capacity is rounded up to a power of two.
+   */
+  public ConcurrentArrayQueue(int capacity) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("illegal capacity: " + capacity);
+    }
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    this.elements = new AtomicReferenceArray(size);
+    this.mask = size - 1;
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Returns the number of elements in the queue.  The size changes
+   * concurrently and should only be used as a hint.
+   */
+  public int size() {
+    long head = indices.get(HEAD);
+    long size = indices.get(TAIL) - head;
+    int ringSize = size < 0 ? 0 : (size > mask ? mask + 1 : (int) size);
+    if (isOverflowing) {
+      synchronized (overflow) {
+	return ringSize + overflow.size();
+      }
+    }
+    return ringSize;
+  }
+
+  public boolean isEmpty() {
+    return !isOverflowing
+      && elements.get((int) indices.get(HEAD) & mask) == null;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Producer API
+  // -------------------------------------------------------------------
+
+  /**
+   * Adds the element last in the queue unless the queue is full.
+   * Returns <code>true</code> if the element was added.
+   */
+  public boolean offer(Object element) {
+    if (element == null) {
+      throw new NullPointerException();
+    }
+
+    long tail;
+    do {
+      tail = indices.get(TAIL);
+      if (tail - indices.get(HEAD) > mask) {
+	return false;
+      }
+    } while (!indices.compareAndSet(TAIL, tail, tail + 1));
+
+    // The slot is free because the consumer clears it before
+    // advancing the head past it
+    elements.set((int) tail & mask, element);
+    wakeConsumer();
+    return true;
+  }
+
+  /**
+   * Adds the element last in the queue without waiting.  If the queue
+   * is full, the element is kept in an overflow list until the
+   * consumer has room for it.
+   */
+  public void add(Object element) {
+    // Once elements have overflowed, the following elements must also
+    // go to the overflow list to keep them in order
+    if (isOverflowing || !offer(element)) {
+      synchronized (overflow) {
+	overflow.add(element);
+	isOverflowing = true;
+      }
+      wakeConsumer();
+    }
+  }
+
+  private void wakeConsumer() {
+    // Only the first producer after the consumer started to wait
+    // needs to wake it up
+    if (waitingConsumer.get() != null) {
+      Thread consumer = (Thread) waitingConsumer.getAndSet(null);
+      if (consumer != null) {
+	LockSupport.unpark(consumer);
+      }
+    }
+  }
+
+  /**
+   * Adds the element last in the queue, waiting for room if the queue
+   * is full.
+   */
+  public void put(Object element) {
+    for (int i = 0; !offer(element); i++) {
+      // Give the consumer a chance to catch up
+      if (i < FULL_YIELDS) {
+	Thread.yield();
+      } else {
+	LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+      }
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Consumer API (only one thread at a time)
+  // -------------------------------------------------------------------
+
+  /**
+   * Removes and returns the first element in the queue or
+   * <code>null</code> if the queue is empty.
+   */
+  public Object poll() {
+    long head = indices.get(HEAD);
+    int index = (int) head & mask;
+    Object element = elements.get(index);
+    if (element != null) {
+      elements.lazySet(index, null);
+      indices.lazySet(HEAD, head + 1);
+    } else if (isOverflowing && indices.get(TAIL) == head) {
+      // The ring is empty, and no producer is still writing to it.
+      // The elements in the ring were all added before the elements
+      // in the overflow list.
+      synchronized (overflow) {
+	if (overflow.size() > 0) {
+	  element = overflow.remove(0);
+	}
+	if (overflow.size() == 0) {
+	  isOverflowing = false;
+	}
+      }
+    }
+    return element;
+  }
+
+  /**
+   * Removes and returns the first element in the queue, waiting at
+   * most the specified time for an element to be added if the queue
+   * is empty.  Returns <code>null</code> if the time passed.
+   */
+  public Object poll(long timeout, TimeUnit unit) {
+    Object element = poll();
+    if (element == null && timeout > 0) {
+      long endTime = System.nanoTime() + unit.toNanos(timeout);
+      long waitTime;
+      while ((element = poll()) == null
+	     && (waitTime = endTime - System.nanoTime()) > 0) {
+	await(waitTime);
+      }
+    }
+    return element;
+  }
+
+  /**
+   * Removes and returns the first element in the queue, waiting for
+   * an element to be added if the queue is empty.
+   */
+  public Object take() {
+    Object element;
+    while ((element = poll()) == null) {
+      await(0L);
+    }
+    return element;
+  }
+
+  /**
+   * Removes at most <code>maxElements</code> elements from the queue
+   * into the array starting at <code>offset</code> and returns the
+   * number of elements removed.  Does not wait for more elements.
+   */
+  public int drainTo(Object[] array, int offset, int maxElements) {
+    int count = 0;
+    Object element;
+    while (count < maxElements && (element = poll()) != null) {
+      array[offset + count++] = element;
+    }
+    return count;
+  }
+
+  private void await(long nanos) {
+    waitingConsumer.set(Thread.currentThread());
+    // Check again after announcing the wait: any producer adding an
+    // element from now on will unpark this thread
+    if (isEmpty()) {
+      if (nanos > 0L) {
+	LockSupport.parkNanos(this, nanos);
+      } else {
+	LockSupport.park(this);
+      }
+      // Interrupts are ignored as when waiting on a monitor, but must
+      // be cleared to not make park return immediately
+      Thread.interrupted();
+    }
+    waitingConsumer.lazySet(null);
+  }
+
+} // ConcurrentArrayQueue
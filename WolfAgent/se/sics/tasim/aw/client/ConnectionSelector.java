@@ -0,0 +1,276 @@
+/**
+ * TAC Supply Chain Management Simulator
+ * http://www.sics.se/tac/    tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * ConnectionSelector
+ *
+ * This file is not part of the original SICS distribution.  It was
+ * added later; see the version control history for its changes.
+ */
+package se.sics.tasim.aw.client;
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
+import se.sics.isl.util.BufferPool;
+
+/**
+ * <code>ConnectionSelector</code> reads from the channels of many
+ * server connections using a single thread.  All connections in a JVM
+ * share the default selector, which means that any number of agents
+ * can run in the same JVM without a reader thread for each agent.
+ *
+ * The selector thread owns the read buffers of the connections and
+ * parses the received messages, but never handles them: the messages
+ * of each connection are handled in order by a worker thread from a
+ * shared pool, so that a slow agent can not delay the reading for the
+ * other connections.  Other threads only queue requests to the
+ * selector thread.
+ */
+public class ConnectionSelector implements Runnable {
+
+  private static final Logger log =
+    Logger.getLogger(ConnectionSelector.class.getName());
+
+  /** The size of the pooled read and write buffers */
+  public static final int BUFFER_SIZE = 16 * 1024;
+
+  /** The maximal number of unused buffers kept in the pool */
+  private static final int MAX_POOLED = 256;
+
+  private static final int REGISTER = 0;
+  private static final int UNREGISTER = 1;
+  private static final int WRITE = 2;
+
+  private static ConnectionSelector defaultSelector;
+
+  private final Selector selector;
+  private final BufferPool bufferPool;
+  private final ArrayQueue taskQueue = new ArrayQueue();
+  private final ExecutorService workers;
+  private int connectionCount = 0;
+  private int workerCount = 0;
+
+  public static synchronized ConnectionSelector getDefault()
+    throws IOException
+  {
+    if (defaultSelector == null) {
+      defaultSelector = new ConnectionSelector("ConnectionSelector");
+    }
+    return defaultSelector;
+  }
+
+  public ConnectionSelector(final String name) throws IOException {
+    this.selector = Selector.open();
+    this.bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED);
+    // Idle workers are stopped after a while
+    this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+	public Thread newThread(Runnable runnable) {
+	  Thread thread = new Thread(runnable, name + ".Worker."
+				     + nextWorkerNumber());
+	  thread.setDaemon(true);
+	  return thread;
+	}
+      });
+
+    Thread thread = new Thread(this, name);
+    // The connections are kept alive by the sim clients
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  private synchronized int nextWorkerNumber() {
+    return ++workerCount;
+  }
+
+  /**
+   * Returns the number of connections currently served by this selector.
+   */
+  public synchronized int getConnectionCount() {
+    return connectionCount;
+  }
+
+
+  // -------------------------------------------------------------------
+  // API towards the server connections
+  // -------------------------------------------------------------------
+
+  /**
+   * Starts reading messages for the connection from the specified
+   * (non-blocking) channel.
+   */
+  void register(ServerConnection connection, SocketChannel channel) {
+    addTask(new Task(REGISTER, connection, channel));
+  }
+
+  /**
+   * Stops reading messages for the connection and releases its read
+   * buffer.  The channel should already have been closed.
+   */
+  void unregister(ServerConnection connection, SocketChannel channel) {
+    addTask(new Task(UNREGISTER, connection, channel));
+  }
+
+  /**
+   * Notifies the connection with <code>channelWritable()</code> when
+   * the channel can be written to again.
+   */
+  void requestWrite(ServerConnection connection, SocketChannel channel) {
+    addTask(new Task(WRITE, connection, channel));
+  }
+
+  /**
+   * Runs the task on a worker thread.  The connections use this to
+   * handle their received messages outside the selector thread.
+   */
+  void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  private void addTask(Task task) {
+    synchronized (taskQueue) {
+      taskQueue.add(task);
+    }
+    selector.wakeup();
+  }
+
+  private Task nextTask() {
+    synchronized (taskQueue) {
+      return taskQueue.size() > 0 ? (Task) taskQueue.remove(0) : null;
+    }
+  }
+
+  private void handleTask(Task task) {
+    ServerConnection connection = task.connection;
+    SocketChannel channel = task.channel;
+    switch (task.type) {
+    case REGISTER:
+      try {
+	channel.register(selector, SelectionKey.OP_READ, connection);
+	connection.setReadBuffer(bufferPool.acquire());
+	synchronized (this) {
+	  connectionCount++;
+	}
+      } catch (ClosedChannelException e) {
+	// The connection was closed before it could be registered
+      }
+      break;
+    case UNREGISTER: {
+      SelectionKey key = channel.keyFor(selector);
+      if (key != null) {
+	key.cancel();
+      }
+      if (connection.releaseReadBuffer(bufferPool)) {
+	synchronized (this) {
+	  connectionCount--;
+	}
+      }
+      break;
+    }
+    case WRITE: {
+      SelectionKey key = channel.keyFor(selector);
+      if (key != null && key.isValid()) {
+	key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      } else {
+	// Let the connection notice that the channel has been closed
+	connection.channelWritable();
+      }
+      break;
+    }
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Selector thread
+  // -------------------------------------------------------------------
+
+  public void run() {
+    do {
+      try {
+	Task task;
+	while ((task = nextTask()) != null) {
+	  handleTask(task);
+	}
+
+	selector.select();
+
+	Iterator iterator = selector.selectedKeys().iterator();
+	while (iterator.hasNext()) {
+	  SelectionKey key = (SelectionKey) iterator.next();
+	  iterator.remove();
+
+	  ServerConnection connection = (ServerConnection) key.attachment();
+	  try {
+	    if (key.isWritable()) {
+	      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	      connection.channelWritable();
+	    }
+	    if (key.isReadable()) {
+	      connection.channelReadable(bufferPool);
+	    }
+	  } catch (CancelledKeyException e) {
+	    // The connection has been closed
+	  }
+	}
+
+      } catch (ThreadDeath e) {
+	log.log(Level.SEVERE, "selector thread died", e);
+	throw e;
+
+      } catch (Throwable e) {
+	log.log(Level.SEVERE, "could not handle connections", e);
+      }
+    } while (true);
+  }
+
+
+  // -------------------------------------------------------------------
+  // Task
+  // -------------------------------------------------------------------
+
+  private static class Task {
+
+    public final int type;
+    public final ServerConnection connection;
+    public final SocketChannel channel;
+
+    public Task(int type, ServerConnection connection,
+		SocketChannel channel) {
+      this.type = type;
+      this.connection = connection;
+      this.channel = channel;
+    }
+
+  } // Task
+
+} // ConnectionSelector
@@ -25,26 +25,75 @@
  *           $Revision: 1.2 $
  */
 package se.sics.tasim.aw.client;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.botbox.util.ArrayQueue;
+import se.sics.isl.util.ConcurrentArrayQueue;
 import se.sics.tasim.aw.Message;
 
 /**
+ * <code>MessageSender</code> delivers the queued messages of a server
+ * connection.  In batching mode it takes all queued messages (up to
+ * the maximal batch size) at once and lets the connection write them
+ * with a single write.  An agent typically sends several messages at
+ * the same time, for example RFQs, orders, and offers at the end of
+ * each day.  The sender can also linger a short time after the first
+ * message for more messages to batch, at the cost of delaying single
+ * messages by the same time.
  */
 public class MessageSender extends Thread {
 
   private static final Logger log =
     Logger.getLogger(MessageSender.class.getName());
 
+  /** Batch sizes are counted in buckets of 1, 2, 3-4, 5-8, ... */
+  private static final int BUCKETS = 8;
+
+  /**
+   * The number of queued messages kept in the lock-free part of the
+   * queue.  More messages are kept in its overflow list: messages are
+   * added by the connection threads, which must never wait.
+   */
+  private static final int QUEUE_SIZE = 1024;
+
+  /** Wakes up the sender when closed */
+  private static final Object CLOSED = new Object();
+
   private final ServerConnection connection;
-  private ArrayQueue messageQueue = new ArrayQueue();
-  private boolean isClosed = false;
+  private final ConcurrentArrayQueue messageQueue =
+    new ConcurrentArrayQueue(QUEUE_SIZE);
+  private volatile boolean isClosed = false;
+
+  private final Message[] batch;
+  private final long lingerMillis;
+
+  // Batch statistics (only updated by the sender thread)
+  private volatile int batchCount = 0;
+  private volatile int messageCount = 0;
+  private volatile int largestBatchSize = 0;
+  private int[] batchSizes = new int[BUCKETS];
 
   public MessageSender(ServerConnection connection, String name) {
+    this(connection, name, 1, 0L);
+  }
+
+  /**
+   * Creates a new message sender that delivers at most
+   * <code>maxBatchSize</code> messages at a time, waiting at most
+   * <code>lingerMillis</code> milliseconds after the first message for
+   * more messages to fill a batch.
+   */
+  public MessageSender(ServerConnection connection, String name,
+		       int maxBatchSize, long lingerMillis) {
     super(name);
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("illegal batch size: "
+					 + maxBatchSize);
+    }
     this.connection = connection;
+    this.batch = new Message[maxBatchSize];
+    this.lingerMillis = maxBatchSize > 1 ? lingerMillis : 0L;
     start();
   }
 
@@ -55,29 +104,123 @@ public class MessageSender extends Thread {
   public synchronized void close() {
     if (!isClosed) {
       this.isClosed = true;
-      messageQueue.clear();
-      messageQueue.add(null);
-      notify();
+      // Any messages still queued are dropped by the sender thread
+      messageQueue.add(CLOSED);
     }
   }
 
-  public synchronized boolean addMessage(Message message) {
+  public boolean addMessage(Message message) {
     if (isClosed) {
       return false;
     }
     messageQueue.add(message);
-    notify();
     return true;
   }
 
-  private synchronized Message nextMessage() {
-    while (messageQueue.size() == 0) {
-      try {
-	wait();
-      } catch (InterruptedException e) {
+  private int nextMessages(Message[] batch) {
+    Object message = messageQueue.take();
+    long endTime = System.nanoTime() + lingerMillis * 1000000L;
+    int count = 0;
+    while (message != CLOSED) {
+      batch[count++] = (Message) message;
+      if (count == batch.length) {
+	break;
       }
+
+      message = messageQueue.poll();
+      if (message == null) {
+	long waitTime = endTime - System.nanoTime();
+	if (lingerMillis == 0L || waitTime <= 0L
+	    || (message = messageQueue.poll(waitTime, TimeUnit.NANOSECONDS))
+	    == null) {
+	  break;
+	}
+      }
+    }
+
+    if (isClosed) {
+      for (int i = 0; i < count; i++) {
+	batch[i] = null;
+      }
+      return 0;
     }
-    return (Message) messageQueue.remove(0);
+    if (count > 0) {
+      batchCount++;
+      messageCount += count;
+      if (count > largestBatchSize) {
+	largestBatchSize = count;
+      }
+      int bucket = 32 - Integer.numberOfLeadingZeros(count - 1);
+      batchSizes[bucket < BUCKETS ? bucket : BUCKETS - 1]++;
+    }
+    return count;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Batch statistics
+  // -------------------------------------------------------------------
+
+  /**
+   * Returns the number of messages waiting to be sent.
+   */
+  public int getQueueSize() {
+    return messageQueue.size();
+  }
+
+  public int getMaxBatchSize() {
+    return batch.length;
+  }
+
+  public long getLingerMillis() {
+    return lingerMillis;
+  }
+
+  /**
+   * Returns the number of batches delivered by this sender.
+   */
+  public int getBatchCount() {
+    return batchCount;
+  }
+
+  /**
+   * Returns the number of messages delivered by this sender.
+   */
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  /**
+   * Returns the size of the largest batch delivered by this sender.
+   */
+  public int getLargestBatchSize() {
+    return largestBatchSize;
+  }
+
+  /**
+   * Returns a summary of the batch sizes, such as
+   * <code>"120 messages in 40 batches (1:10 2:20 3-4:10)"</code>.
+   */
+  public String getBatchStatistics() {
+    StringBuffer sb = new StringBuffer();
+    sb.append(messageCount).append(" messages in ")
+      .append(batchCount).append(" batches (");
+    for (int i = 0, low = 1; i < BUCKETS; i++, low = (1 << (i - 1)) + 1) {
+      if (batchSizes[i] > 0) {
+	int high = 1 << i;
+	if (sb.charAt(sb.length() - 1) != '(') {
+	  sb.append(' ');
+	}
+	sb.append(low);
+	if (i == BUCKETS - 1) {
+	  sb.append('+');
+	} else if (high > low) {
+	  sb.append('-').append(high);
+	}
+	sb.append(':').append(batchSizes[i]);
+      }
+    }
+    return sb.append(')').toString();
   }
 
 
@@ -88,11 +231,11 @@ public class MessageSender extends Thread {
 
   public void run() {
     do {
-      Message msg = null;
+      int count = 0;
       try {
-	msg = nextMessage();
-	if (msg != null) {
-	  connection.deliverMessage(msg);
+	count = nextMessages(batch);
+	if (count > 0) {
+	  connection.deliverMessages(batch, count);
 	}
 
       } catch (ThreadDeath e) {
@@ -100,7 +243,12 @@ public class MessageSender extends Thread {
 	throw e;
 
       } catch (Throwable e) {
-	log.log(Level.SEVERE, "could not handle message " + msg, e);
+	log.log(Level.SEVERE, "could not handle message "
+		+ (count > 0 ? batch[0] : null), e);
+      } finally {
+	for (int i = 0; i < count; i++) {
+	  batch[i] = null;
+	}
       }
     } while (!isClosed);
   }
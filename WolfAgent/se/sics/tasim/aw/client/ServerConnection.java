@@ -25,15 +25,22 @@
  *           $Revision: 1.10 $
  */
 package se.sics.tasim.aw.client;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.botbox.util.ArrayUtils;
 import se.sics.isl.transport.BinaryTransportReader;
 import se.sics.isl.transport.BinaryTransportWriter;
 import se.sics.isl.transport.Transportable;
+import se.sics.isl.util.BufferPool;
+import se.sics.isl.util.ConcurrentArrayQueue;
+import se.sics.isl.util.ConfigManager;
 import se.sics.tasim.aw.Agent;
 import se.sics.tasim.aw.Message;
 import se.sics.tasim.props.AdminContent;
@@ -41,6 +48,14 @@ import se.sics.tasim.props.Alert;
 import se.sics.tasim.props.Ping;
 
 /**
+ * <code>ServerConnection</code> handles the connection to the TAC
+ * server using a non-blocking socket channel.  A connection thread is
+ * only used while connecting.  After that the messages from the server
+ * are read by the shared connection selector, which reads the length
+ * prefixed messages into pooled direct buffers and parses them where
+ * they are.  The parsed messages are handled in order by a worker
+ * thread from the selector's pool, and the messages to the server are
+ * written by the message sender.
  */
 public class ServerConnection implements Runnable {
 
@@ -54,6 +69,15 @@ public class ServerConnection implements Runnable {
     0, 0 // reserved
   };
 
+  /** The maximal number of messages written at a time when batching */
+  private static final int MAX_BATCH_SIZE = 64;
+
+  /** The number of received messages kept in the lock-free queue */
+  private static final int RECEIVE_QUEUE_SIZE = 256;
+
+  /** Tells the worker that the connection has been closed */
+  private static final Object CLOSED = new Object();
+
   private static int connectionCounter = 0;
 
   private final SimClient simClient;
@@ -62,12 +86,29 @@ public class ServerConnection implements Runnable {
 
   private MessageSender messageSender;
 
-  private DataInputStream input;
-  private DataOutputStream output;
-  private Socket socket;
+  private ConnectionSelector connectionSelector;
+  private BufferPool bufferPool;
+  private volatile SocketChannel channel;
   private BinaryTransportWriter transportWriter = new BinaryTransportWriter();
+  private ByteBuffer[] writeBuffers = new ByteBuffer[8];
   private BinaryTransportReader transportReader = new BinaryTransportReader();
 
+  // Only accessed by the selector thread
+  private ByteBuffer readBuffer;
+
+  // The received messages, handled in order by one worker at a time
+  private final ConcurrentArrayQueue receivedQueue =
+    new ConcurrentArrayQueue(RECEIVE_QUEUE_SIZE);
+  private final AtomicBoolean isDispatching = new AtomicBoolean();
+  private final Runnable dispatcher = new Runnable() {
+      public void run() {
+	dispatchMessages();
+      }
+    };
+
+  private final Object writeLock = new Object();
+  private boolean isWriteReady = false;
+
   private boolean isAuthenticated = false;
 
   public ServerConnection(SimClient simClient, long delayInMillis) {
@@ -92,11 +133,16 @@ public class ServerConnection implements Runnable {
     }
   }
 
+  MessageSender getMessageSender() {
+    return messageSender;
+  }
+
   public void setTransportSupported(String name) {
     transportWriter.setSupported(name, true);
   }
 
   public boolean sendMessage(Message msg) {
+    MessageSender messageSender = this.messageSender;
     if (messageSender == null) {
       return false;
     }
@@ -127,61 +173,93 @@ public class ServerConnection implements Runnable {
   // -------------------------------------------------------------------
 
   private boolean connect() {
+    SocketChannel channel = null;
     try {
       String host = simClient.getServerHost();
       int port = simClient.getServerPort();
 
       log.fine("(" + id + ") connecting to server " + host
 	       + " at port " + port);
-      socket = new Socket(host, port);
-      input = new DataInputStream(socket.getInputStream());
-      output = new DataOutputStream(socket.getOutputStream());
-      // Send the TAC protocol header
-      output.write(TACT_HEADER);
+      this.connectionSelector = ConnectionSelector.getDefault();
+      this.bufferPool = connectionSelector.getBufferPool();
+      if (transportWriter.getBufferPool() == null) {
+	transportWriter.setBufferPool(bufferPool);
+      }
+      channel = SocketChannel.open(new InetSocketAddress(host, port));
+      // Send the TAC protocol header while the channel still blocks
+      ByteBuffer header = ByteBuffer.wrap(TACT_HEADER);
+      while (header.hasRemaining()) {
+	channel.write(header);
+      }
+      channel.configureBlocking(false);
       log.fine("(" + id + ") connected to server " + host);
-      this.messageSender = new MessageSender(this, "Sender." + id);
+
+      ConfigManager config = simClient.getConfig();
+      boolean isBatching = config.getPropertyAsBoolean("sender.batch", true);
+      long lingerMillis = config.getPropertyAsInt("sender.linger", 0);
+      if (isBatching) {
+	// Messages sent together are written together, and there is no
+	// reason to let the socket delay the last part of a batch
+	channel.socket().setTcpNoDelay(true);
+      }
+      this.channel = channel;
+      this.messageSender =
+	new MessageSender(this, "Sender." + id,
+			  isBatching ? MAX_BATCH_SIZE : 1, lingerMillis);
       return true;
 
     } catch (Exception e) {
       log.log(Level.SEVERE, "(" + id + ") connection to server failed", e);
-      disconnect();
+      if (channel != null) {
+	try {
+	  channel.close();
+	} catch (Exception e2) {
+	  log.log(Level.SEVERE, "(" + id + ") could not close connection", e2);
+	}
+      }
       return false;
     }
   }
 
   private boolean disconnect() {
-    if (socket != null) {
-      try {
-	log.fine("(" + id + ") disconnected from server "
-		 + simClient.getServerHost());
+    SocketChannel channel;
+    MessageSender messageSender;
+    synchronized (this) {
+      channel = this.channel;
+      if (channel == null) {
+	return false;
+      }
+      messageSender = this.messageSender;
+      this.channel = null;
+      this.messageSender = null;
+      this.isAuthenticated = false;
+    }
 
-	if (output != null) {
-	  output.close();
-	}
-	if (input != null) {
-	  input.close();
-	}
-	socket.close();
-      } catch (Exception e) {
-	log.log(Level.SEVERE, "(" + id + ") could not close connection", e);
-      } finally {
-	socket = null;
-	output = null;
-	input = null;
-	isAuthenticated = false;
-	if (messageSender != null) {
-	  messageSender.close();
-	  messageSender = null;
+    try {
+      log.fine("(" + id + ") disconnected from server "
+	       + simClient.getServerHost());
+      channel.close();
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "(" + id + ") could not close connection", e);
+    } finally {
+      // The read buffer is released by the selector thread
+      connectionSelector.unregister(this, channel);
+      if (messageSender != null) {
+	messageSender.close();
+	if (log.isLoggable(Level.FINE)) {
+	  log.fine("(" + id + ") sent "
+		   + messageSender.getBatchStatistics());
 	}
       }
-      return true;
+      // Wake up the message sender if it waits to write
+      channelWritable();
     }
-    return false;
+    return true;
   }
 
 
   // -------------------------------------------------------------------
-  //  Client thread - handles communication with the TAC server
+  //  Connection thread - connects to the TAC server
   // -------------------------------------------------------------------
 
   public void run() {
@@ -205,58 +283,167 @@ public class ServerConnection implements Runnable {
       }
     } while (messageSender == null);
 
+    SocketChannel channel = this.channel;
     simClient.connectionOpened(this);
+    // Anything the server sends before the channel has been registered
+    // waits in the socket
+    connectionSelector.register(this, channel);
+  }
 
-    try {
-      byte[] buffer = new byte[8192];
-      int len;
-      int lastPos;
-
-      while (socket != null) {
-	int size = input.readInt();
-	if (size > buffer.length) {
-	  buffer = new byte[size + 8192];
-	}
-	input.readFully(buffer, 0, size);
 
-	Message msg = parseMessage(buffer, 0, size);
-	if (msg != null) {
-	  Transportable content = msg.getContent();
-	  if (content instanceof AdminContent) {
-	    AdminContent admin = (AdminContent) content;
-	    if (admin.getType() == AdminContent.QUIT) {
-	      if (log.isLoggable(Level.FINEST)) {
-		log.finest("(" + id + ") received " + msg);
-	      }
-	      disconnect();
-	      simClient.connectionClosed(this);
-	    } else {
-	      simClient.adminFromServer(this, admin);
-	    }
+  // -------------------------------------------------------------------
+  // API towards the connection selector
+  // -------------------------------------------------------------------
+
+  void setReadBuffer(ByteBuffer buffer) {
+    this.readBuffer = buffer;
+  }
+
+  boolean releaseReadBuffer(BufferPool pool) {
+    ByteBuffer buffer = this.readBuffer;
+    if (buffer != null) {
+      this.readBuffer = null;
+      pool.release(buffer);
+      return true;
+    }
+    return false;
+  }
 
-	  } else if (content instanceof Alert) {
-	    Alert alert = (Alert) content;
-	    simClient.alertFromServer(this, alert);
+  void channelReadable(BufferPool pool) {
+    SocketChannel channel = this.channel;
+    ByteBuffer buffer = this.readBuffer;
+    if (channel == null || buffer == null) {
+      return;
+    }
 
-	  } else if (content instanceof Ping) {
-	    // Ping from server: respond immediately with pong
-	    sendMessage(msg.createReply(new Ping(Ping.PONG)));
+    try {
+      if (channel.read(buffer) < 0) {
+	throw new ClosedChannelException();
+      }
 
-	  } else {
-	    simClient.messageFromServer(this, msg);
+      // Handle all complete messages in the buffer
+      buffer.flip();
+      while (buffer.remaining() >= 4) {
+	int position = buffer.position();
+	int size = buffer.getInt(position);
+	if (size < 0) {
+	  throw new IOException("illegal message size " + size);
+	}
+	if (buffer.remaining() - 4 < size) {
+	  if (size + 4 > buffer.capacity()) {
+	    // The message is larger than the buffer. Move what has
+	    // been received of it to a larger buffer.
+	    ByteBuffer largerBuffer = pool.acquire(size + 4);
+	    largerBuffer.put(buffer);
+	    pool.release(buffer);
+	    this.readBuffer = largerBuffer;
+	    return;
 	  }
+	  break;
 	}
+
+	buffer.position(position + 4 + size);
+	Message msg = parseMessage(buffer, position + 4, size);
+	if (msg != null) {
+	  // Handled by a worker thread to not delay the other connections
+	  receivedQueue.add(msg);
+	  dispatch();
+	}
+      }
+
+      if (!buffer.hasRemaining() && buffer.capacity() > pool.getBufferSize()) {
+	// Give a larger buffer back as soon as it is no longer needed
+	pool.release(buffer);
+	this.readBuffer = pool.acquire();
+      } else {
+	buffer.compact();
+      }
+
+    } catch (ClosedChannelException e) {
+      if (disconnect()) {
+	// The sim client is told after the messages already received
+	receivedQueue.add(CLOSED);
+	dispatch();
       }
     } catch (Throwable e) {
       log.log(Level.SEVERE, "(" + id + ") could not read", e);
-    } finally {
       if (disconnect()) {
+	receivedQueue.add(CLOSED);
+	dispatch();
+      }
+    }
+  }
+
+  private void dispatch() {
+    if (isDispatching.compareAndSet(false, true)) {
+      connectionSelector.execute(dispatcher);
+    }
+  }
+
+  // Runs on a worker thread, and only one at a time per connection
+  private void dispatchMessages() {
+    do {
+      Object msg;
+      while ((msg = receivedQueue.poll()) != null) {
+	try {
+	  if (msg == CLOSED) {
+	    simClient.connectionClosed(this);
+	  } else if (this.channel != null) {
+	    handleMessage((Message) msg);
+	  }
+	  // Messages received before a disconnect are ignored
+
+	} catch (ThreadDeath e) {
+	  log.log(Level.SEVERE, "(" + id + ") worker thread died", e);
+	  throw e;
+
+	} catch (Throwable e) {
+	  log.log(Level.SEVERE, "(" + id + ") could not handle message "
+		  + msg, e);
+	}
+      }
+      isDispatching.set(false);
+      // A message might have been added after the queue was found
+      // empty but before the dispatching ended
+    } while (!receivedQueue.isEmpty()
+	     && isDispatching.compareAndSet(false, true));
+  }
+
+  void channelWritable() {
+    synchronized (writeLock) {
+      isWriteReady = true;
+      writeLock.notify();
+    }
+  }
+
+  private void handleMessage(Message msg) {
+    Transportable content = msg.getContent();
+    if (content instanceof AdminContent) {
+      AdminContent admin = (AdminContent) content;
+      if (admin.getType() == AdminContent.QUIT) {
+	if (log.isLoggable(Level.FINEST)) {
+	  log.finest("(" + id + ") received " + msg);
+	}
+	disconnect();
 	simClient.connectionClosed(this);
+      } else {
+	simClient.adminFromServer(this, admin);
       }
+
+    } else if (content instanceof Alert) {
+      Alert alert = (Alert) content;
+      simClient.alertFromServer(this, alert);
+
+    } else if (content instanceof Ping) {
+      // Ping from server: respond immediately with pong
+      sendMessage(msg.createReply(new Ping(Ping.PONG)));
+
+    } else {
+      simClient.messageFromServer(this, msg);
     }
   }
 
-  private Message parseMessage(byte[] buffer, int offset, int size) {
+  private Message parseMessage(ByteBuffer buffer, int offset, int size) {
     try {
       Message msg = new Message();
       transportReader.setMessage(buffer, offset, size);
@@ -279,46 +466,99 @@ public class ServerConnection implements Runnable {
   // API towards message sender
   // -------------------------------------------------------------------
 
-  boolean deliverMessage(Message msg) {
-    DataOutputStream output = this.output;
-    if (output == null) {
-      log.warning("(" + id + ") could not send message (closed connection) "
-		  + msg);
-      return false;
+  /**
+   * Writes the specified messages to the server using as few writes
+   * as possible and returns the number of messages written.
+   */
+  int deliverMessages(Message[] messages, int messageCount) {
+    SocketChannel channel = this.channel;
+    if (channel == null) {
+      log.warning("(" + id + ") could not send " + messageCount
+		  + " messages (closed connection) " + messages[0]);
+      return 0;
     }
 
-    try {
-      if (log.isLoggable(Level.FINEST)) {
-	log.finest("(" + id + ") sending " + msg);
+    int count = 0;
+    int written = 0;
+    for (int i = 0; i < messageCount; i++) {
+      Message msg = messages[i];
+      try {
+	if (log.isLoggable(Level.FINEST)) {
+	  log.finest("(" + id + ") sending " + msg);
+	}
+
+	String node = msg.getTransportName();
+	transportWriter.clear();
+	transportWriter.node(node);
+	msg.write(transportWriter);
+	transportWriter.endNode(node);
+	transportWriter.finish();
+
+	int size = count + transportWriter.getBufferCount();
+	if (size > writeBuffers.length) {
+	  writeBuffers = (ByteBuffer[])
+	    ArrayUtils.setSize(writeBuffers, size + 8);
+	}
+	// The messages are written directly from the buffers they were
+	// encoded into, using a single gathering write when possible
+	count += transportWriter.drainBuffers(writeBuffers, count);
+	written++;
+      } catch (Exception e) {
+	log.log(Level.SEVERE, "(" + id + ") could not generate message "
+		+ msg, e);
       }
+    }
 
-      String node = msg.getTransportName();
-      transportWriter.clear();
-      transportWriter.node(node);
-      msg.write(transportWriter);
-      transportWriter.endNode(node);
-      transportWriter.finish();
+    try {
+      write(channel, writeBuffers, 0, count);
+      return written;
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "(" + id
+	      + ") could not send message to server", e);
+      simClient.showWarning("Connection Failed",
+			    "could not send message to server");
+      // Need to do a complete reconnect
+      if (disconnect()) {
+	simClient.connectionClosed(this);
+      }
+      return 0;
+    } finally {
+      for (int i = 0; i < count; i++) {
+	bufferPool.release(writeBuffers[i]);
+	writeBuffers[i] = null;
+      }
+    }
+  }
 
-      try {
-	output.writeInt(transportWriter.size());
-	transportWriter.write(output);
-	output.flush();
-	return true;
-      } catch (Exception e) {
-	log.log(Level.SEVERE, "(" + id
-		+ ") could not send message to server", e);
-	simClient.showWarning("Connection Failed",
-			      "could not send message to server");
-	// Need to do a complete reconnect
-	if (disconnect()) {
-	  simClient.connectionClosed(this);
+  private void write(SocketChannel channel, ByteBuffer[] buffers,
+		     int offset, int length)
+    throws IOException
+  {
+    while (length > 0) {
+      if (!buffers[offset].hasRemaining()) {
+	offset++;
+	length--;
+
+      } else if ((length == 1
+		  ? channel.write(buffers[offset])
+		  : channel.write(buffers, offset, length)) == 0) {
+	// The socket buffer is full: wait for the selector to tell us
+	// when the channel can be written to again
+	synchronized (writeLock) {
+	  isWriteReady = false;
+	  connectionSelector.requestWrite(this, channel);
+	  while (!isWriteReady) {
+	    try {
+	      writeLock.wait();
+	    } catch (InterruptedException e) {
+	    }
+	  }
+	}
+	if (this.channel != channel) {
+	  throw new ClosedChannelException();
 	}
       }
-    } catch (Exception e) {
-      log.log(Level.SEVERE, "(" + id + ") could not generate message "
-	      + msg, e);
     }
-    return false;
   }
 
 } // ServerConnection
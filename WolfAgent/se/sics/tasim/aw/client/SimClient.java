@@ -38,10 +38,10 @@ import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
-import com.botbox.util.ArrayQueue;
 import se.sics.isl.transport.BinaryTransportWriter;
 import se.sics.isl.transport.Context;
 import se.sics.isl.transport.Transportable;
+import se.sics.isl.util.ConcurrentArrayQueue;
 import se.sics.isl.util.ConfigManager;
 import se.sics.isl.util.LogFormatter;
 import se.sics.tasim.aw.Agent;
@@ -63,6 +63,16 @@ public class SimClient implements Runnable {
   /** Disconnect if requested to wait for more than 50 seconds */
   private static final int MIN_MILLIS_BEFORE_DISCONNECT = 50000;
 
+  /**
+   * The number of received messages kept in the lock-free part of the
+   * queue.  More messages are kept in its overflow list: messages are
+   * added by the connection threads, which must never wait.
+   */
+  private static final int QUEUE_SIZE = 4096;
+
+  /** Marks where the message queue was cleared */
+  private static final Object CLEAR_MESSAGES = new Object();
+
   /** Configuration */
   private ConfigManager config;
 
@@ -83,7 +93,12 @@ public class SimClient implements Runnable {
   private boolean isAutoJoinPending = false;
 
   /** Message handling */
-  private ArrayQueue messageQueue = new ArrayQueue();
+  private ConcurrentArrayQueue messageQueue =
+    new ConcurrentArrayQueue(QUEUE_SIZE);
+  /** The number of requests to clear the message queue */
+  private volatile int clearRequests = 0;
+  /** The number of clear requests handled by the message thread */
+  private int clearCount = 0;
 
   /** Agent implementation handling */
   private String agentImpl;
@@ -177,6 +192,10 @@ public class SimClient implements Runnable {
     new Thread(this, "SimClient").start();
   }
 
+  public ConfigManager getConfig() {
+    return config;
+  }
+
   public String getUserName() {
     return userName;
   }
@@ -353,6 +372,10 @@ public class SimClient implements Runnable {
   // API towards ServerConnection
   // -------------------------------------------------------------------
 
+  ServerConnection getServerConnection() {
+    return connection;
+  }
+
   boolean connectionOpened(ServerConnection connection) {
     if (this.connection != connection) {
       connection.close();
@@ -436,26 +459,32 @@ public class SimClient implements Runnable {
     }
   }
 
-  private synchronized void addMessage(Message message, int connectionID) {
+  private void addMessage(Message message, int connectionID) {
     if (log.isLoggable(Level.FINEST)) {
       log.finest("(" + connectionID + ") received " + message);
     }
     messageQueue.add(message);
-    notify();
   }
 
-  private synchronized Message nextMessage() {
-    while (messageQueue.size() == 0) {
-      try {
-	wait();
-      } catch (InterruptedException e) {
+  private Message nextMessage() {
+    Object message;
+    do {
+      message = messageQueue.take();
+      if (message == CLEAR_MESSAGES) {
+	clearCount++;
       }
-    }
-    return (Message) messageQueue.remove(0);
+      // Drop all messages up to the last clear marker
+    } while (message == CLEAR_MESSAGES || clearCount < clearRequests);
+    return (Message) message;
   }
 
-  private synchronized void clearMessages() {
-    messageQueue.clear();
+  private void clearMessages() {
+    // Only the message thread may remove messages from the queue.  It
+    // drops the messages queued before the marker instead.
+    synchronized (this) {
+      clearRequests++;
+    }
+    messageQueue.add(CLEAR_MESSAGES);
   }
 
 